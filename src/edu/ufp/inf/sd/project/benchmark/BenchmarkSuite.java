@@ -0,0 +1,91 @@
+package edu.ufp.inf.sd.project.benchmark;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * Runs every benchmark of the project one after the other, with settings short enough to run for every release, and
+ * also writes what they print to a report, so the reports of two releases can be compared side by side:
+ * <ul>
+ *     <li>{@link DatabaseBenchmark}: logins, share lookups, registrations and shares under contention</li>
+ *     <li>{@link TreeSyncBenchmark}: synchronizing shared folders of different shapes, with each sync mode</li>
+ *     <li>{@link FileOperationBenchmark}: each type of file operation, on each storage</li>
+ *     <li>{@link SerializationBenchmark}: marshalling file operations</li>
+ *     <li>{@link TextEditingBenchmark}: collaborative text editing</li>
+ * </ul>
+ * A benchmark that fails is reported and the others still run; the exit status is then 1.
+ * <p>
+ * Usage: {@code java edu.ufp.inf.sd.project.benchmark.BenchmarkSuite [seconds per run] [report file]}, or
+ * {@code runscripts/runbenchmark.sh}, which keeps the reports under {@code benchmark-results}.
+ */
+public class BenchmarkSuite {
+
+    private static int failed;
+
+    public static void main(String[] args) throws IOException {
+        String seconds = args.length > 0 ? args[0] : "1";
+        PrintStream console = System.out;
+        PrintStream report = args.length > 1 ? new PrintStream(new FileOutputStream(new File(args[1])), true, StandardCharsets.UTF_8) : null;
+        if (report != null) {
+            System.setOut(new PrintStream(new OutputStream() {
+                @Override
+                public void write(int b) {
+                    console.write(b);
+                    report.write(b);
+                }
+
+                @Override
+                public void write(byte[] bytes, int offset, int length) {
+                    console.write(bytes, offset, length);
+                    report.write(bytes, offset, length);
+                }
+            }, true, StandardCharsets.UTF_8));
+        }
+        try {
+            Runtime runtime = Runtime.getRuntime();
+            System.out.println("Benchmarks of " + LocalDateTime.now().withNano(0).format(DateTimeFormatter.ISO_LOCAL_DATE_TIME)
+                    + ", Java " + System.getProperty("java.version") + " on " + System.getProperty("os.name") + " "
+                    + System.getProperty("os.arch") + ", " + runtime.availableProcessors() + " processors, "
+                    + runtime.maxMemory() / (1024 * 1024) + " MB heap");
+
+            run("Database", () -> DatabaseBenchmark.main(new String[]{"10000", seconds}));
+            run("Tree synchronization", () -> TreeSyncBenchmark.main(new String[]{"2000", "3"}));
+            run("File operations", () -> FileOperationBenchmark.main(new String[]{"2000", "5"}));
+            run("Serialization", () -> SerializationBenchmark.main(new String[]{"100000", "5"}));
+            run("Text editing", () -> TextEditingBenchmark.main(new String[]{"10000", seconds}));
+        } finally {
+            System.setOut(console);
+            if (report != null) {
+                report.close();
+            }
+        }
+        if (failed > 0) {
+            System.err.println(failed + " benchmarks failed");
+            System.exit(1);
+        }
+    }
+
+    private static void run(String name, Benchmark benchmark) {
+        System.out.println();
+        System.out.println("═══ " + name + " ═══");
+        long start = System.nanoTime();
+        try {
+            benchmark.run();
+            System.out.printf("(%.1f s)%n", (System.nanoTime() - start) / 1e9);
+        } catch (Exception e) {
+            failed++;
+            System.out.println("FAILED: " + e);
+            e.printStackTrace();
+        }
+    }
+
+    private interface Benchmark {
+        void run() throws Exception;
+    }
+}
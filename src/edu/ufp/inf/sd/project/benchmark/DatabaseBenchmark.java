@@ -0,0 +1,195 @@
+package edu.ufp.inf.sd.project.benchmark;
+
+import edu.ufp.inf.sd.project.server.Database;
+import edu.ufp.inf.sd.project.server.DatabaseStore;
+import edu.ufp.inf.sd.project.server.SessionRI;
+import edu.ufp.inf.sd.project.server.SubjectFileSystemRI;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.rmi.RemoteException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Measures how the {@link Database} scales with threads under contention, against a registry locked on one monitor
+ * the way the database used to be.
+ * <p>
+ * The login workload authenticates, opens a session, reads the shared folders and closes the session, all in memory.
+ * The lookup workload reads the folders shared with a user and the users an owner shares with, as every operation
+ * replicated to the shared copies does. The registration and share workloads add users, and share and unshare folders,
+ * which journals every change, so they show how concurrent changes share the journal fsyncs.
+ * <p>
+ * Usage: {@code java edu.ufp.inf.sd.project.benchmark.DatabaseBenchmark [users] [seconds per run]}
+ */
+public class DatabaseBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int users = args.length > 0 ? Integer.parseInt(args[0]) : 10_000;
+        double seconds = args.length > 1 ? Double.parseDouble(args[1]) : 2;
+        int processors = Runtime.getRuntime().availableProcessors();
+
+        File directory = Files.createTempDirectory("database-benchmark").toFile();
+        try {
+            Database database = new Database(new DatabaseStore(directory));
+            SynchronizedRegistry legacy = new SynchronizedRegistry();
+            SessionRI session = stub(SessionRI.class);
+            SubjectFileSystemRI fileSystem = stub(SubjectFileSystemRI.class);
+            for (int i = 0; i < users; i++) {
+                database.addUser("user" + i, "password" + i);
+                legacy.addUser("user" + i, "password" + i);
+            }
+            for (int i = 0; i < users; i++) {
+                database.addUserSharedFolder("user" + i, "user" + (i + 1) % users, fileSystem);
+                legacy.addUserSharedFolder("user" + i, "user" + (i + 1) % users, fileSystem);
+            }
+
+            System.out.println("Database contention, " + users + " users, " + processors + " processors, " + seconds + " s per run");
+            AtomicLong registered = new AtomicLong();
+            System.out.printf("%-8s %18s %18s %18s %18s %18s%n", "threads", "legacy logins/s", "logins/s", "lookups/s",
+                    "registrations/s", "shares/s");
+            for (int threads = 1; threads <= 2 * processors; threads *= 2) {
+                double legacyLogins = run(threads, seconds, random -> {
+                    String username = "user" + random.nextInt(users);
+                    if (legacy.authenticateUser(username, "password")) {
+                        throw new IllegalStateException();
+                    }
+                    if (legacy.addSession(username, session)) {
+                        legacy.getUserSharedFolders(username);
+                        legacy.removeSession(username);
+                    }
+                });
+                double logins = run(threads, seconds, random -> {
+                    String username = "user" + random.nextInt(users);
+                    if (database.authenticateUser(username, "password")) {
+                        throw new IllegalStateException();
+                    }
+                    if (database.addSession(username, session)) {
+                        database.getUserSharedFolders(username);
+                        database.removeSession(username);
+                    }
+                });
+                double lookups = run(threads, seconds, random -> {
+                    String username = "user" + random.nextInt(users);
+                    database.getUserSharedFolders(username);
+                    database.getSharers(username);
+                });
+                double registrations = run(threads, seconds, random -> {
+                    if (!database.addUser("new" + registered.getAndIncrement(), "password")) {
+                        throw new IllegalStateException();
+                    }
+                });
+                double shares = run(threads, seconds, random -> {
+                    String username = "user" + random.nextInt(users);
+                    String owner = "user" + random.nextInt(users);
+                    if (!database.removeUserSharedFolder(owner, username, fileSystem)) {
+                        database.addUserSharedFolder(username, owner, fileSystem);
+                    }
+                });
+                System.out.printf("%-8d %18.0f %18.0f %18.0f %18.0f %18.0f%n", threads, legacyLogins, logins, lookups,
+                        registrations, shares);
+            }
+        } finally {
+            for (File file : Objects.requireNonNull(directory.listFiles())) {
+                file.delete();
+            }
+            directory.delete();
+        }
+    }
+
+    /**
+     * Runs an operation on a number of threads for a while.
+     *
+     * @return The operations completed per second
+     */
+    private static double run(int threads, double seconds, Operation operation) throws InterruptedException {
+        LongAdder completed = new LongAdder();
+        CountDownLatch start = new CountDownLatch(1);
+        long duration = (long) (seconds * 1e9);
+        List<Thread> workers = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            Thread worker = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                try {
+                    start.await();
+                    long end = System.nanoTime() + duration;
+                    while (System.nanoTime() < end) {
+                        operation.run(random);
+                        completed.increment();
+                    }
+                } catch (InterruptedException | IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+            worker.start();
+            workers.add(worker);
+        }
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        return completed.sum() / seconds;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T stub(Class<T> type) {
+        return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "equals":
+                    return proxy == args[0];
+                default:
+                    return null;
+            }
+        });
+    }
+
+    private interface Operation {
+        void run(ThreadLocalRandom random) throws IOException;
+    }
+
+    /**
+     * The session and share registry as it was before the database was made concurrent: every change and every
+     * share lookup synchronized on the registry, with plain maps for the shares of each user.
+     */
+    private static class SynchronizedRegistry {
+        private final Map<String, String> users = new ConcurrentHashMap<>();
+        private final Map<String, SessionRI> sessions = new ConcurrentHashMap<>();
+        private final Map<String, Map<String, SubjectFileSystemRI>> userSharedFolders = new HashMap<>();
+
+        synchronized void addUser(String username, String password) {
+            users.putIfAbsent(username, password);
+        }
+
+        boolean authenticateUser(String username, String password) {
+            return password.equals(users.get(username));
+        }
+
+        synchronized boolean addSession(String username, SessionRI session) throws RemoteException {
+            if (sessions.containsKey(username)) {
+                return false;
+            }
+            sessions.put(username, session);
+            return true;
+        }
+
+        synchronized boolean removeSession(String username) throws RemoteException {
+            return sessions.remove(username) != null;
+        }
+
+        synchronized void addUserSharedFolder(String username, String owner, SubjectFileSystemRI fileSystem) {
+            userSharedFolders.computeIfAbsent(username, k -> new HashMap<>()).put(owner, fileSystem);
+        }
+
+        synchronized Map<String, SubjectFileSystemRI> getUserSharedFolders(String username) throws RemoteException {
+            return userSharedFolders.get(username);
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package edu.ufp.inf.sd.project.benchmark;
+
+import edu.ufp.inf.sd.project.server.Storage;
+import edu.ufp.inf.sd.project.server.StateFileSystemOperation;
+import edu.ufp.inf.sd.project.server.StateFileSystemOperation.OperationType;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Measures how many operations of each type {@link StateFileSystemOperation#executeOperation} applies per second, on
+ * each {@link Storage}.
+ * <p>
+ * A round creates folders, creates a file in each, updates every file, and deletes the files and then the folders, so
+ * every type runs against the tree the previous ones left. Updates are measured with small and large contents. What the
+ * operations print is discarded, so the console does not dominate the times. The first round warms up and is not counted.
+ * <p>
+ * Usage: {@code java edu.ufp.inf.sd.project.benchmark.FileOperationBenchmark [operations] [rounds]}
+ */
+public class FileOperationBenchmark {
+
+    private static final int SMALL_CONTENT = 1024;
+    private static final int LARGE_CONTENT = 256 * 1024;
+
+    public static void main(String[] args) throws Exception {
+        int operations = args.length > 0 ? Integer.parseInt(args[0]) : 2_000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        String smallContent = "a".repeat(SMALL_CONTENT);
+        String largeContent = "b".repeat(LARGE_CONTENT);
+
+        System.out.println("File operations, " + operations + " per type, best of " + rounds + " rounds, updates of "
+                + SMALL_CONTENT + " and " + LARGE_CONTENT + " bytes");
+        System.out.printf("%-8s %14s %14s %14s %14s %14s %14s%n", "storage", "mkdir/s", "create/s", "update 1K/s",
+                "update 256K/s", "delete/s", "rmdir/s");
+        for (Storage.Type type : Storage.Type.values()) {
+            File directory = Files.createTempDirectory("file-operation-benchmark").toFile();
+            try {
+                Storage storage = Storage.create(type, directory);
+                Map<Phase, Double> best = new EnumMap<>(Phase.class);
+                for (int round = 0; round <= rounds; round++) {
+                    Map<Phase, Double> rates = round(storage, operations, smallContent, largeContent);
+                    if (round > 0) {
+                        rates.forEach((phase, rate) -> best.merge(phase, rate, Math::max));
+                    }
+                }
+                System.out.printf("%-8s %14.0f %14.0f %14.0f %14.0f %14.0f %14.0f%n", type.name().toLowerCase(),
+                        best.get(Phase.CREATEFOLDER), best.get(Phase.CREATEFILE), best.get(Phase.UPDATE_SMALL),
+                        best.get(Phase.UPDATE_LARGE), best.get(Phase.DELETEFILE), best.get(Phase.DELETEFOLDER));
+            } finally {
+                deleteTree(directory);
+            }
+        }
+    }
+
+    private enum Phase {
+        CREATEFOLDER,
+        CREATEFILE,
+        UPDATE_SMALL,
+        UPDATE_LARGE,
+        DELETEFILE,
+        DELETEFOLDER
+    }
+
+    /**
+     * Runs every type once over a fresh set of folders.
+     *
+     * @return The operations per second of each phase
+     */
+    private static Map<Phase, Double> round(Storage storage, int operations, String smallContent, String largeContent) {
+        Map<Phase, Double> rates = new EnumMap<>(Phase.class);
+        rates.put(Phase.CREATEFOLDER, run(storage, operations, i -> operation(OperationType.CREATEFOLDER, folder(i))));
+        rates.put(Phase.CREATEFILE, run(storage, operations, i -> operation(OperationType.CREATEFILE, folder(i), "file.txt")));
+        rates.put(Phase.UPDATE_SMALL, run(storage, operations, i -> operation(OperationType.UPDATEFILE, folder(i), "file.txt", smallContent)));
+        // Large updates write far more bytes, so fewer of them are enough
+        rates.put(Phase.UPDATE_LARGE, run(storage, Math.max(1, operations / 16),
+                i -> operation(OperationType.UPDATEFILE, folder(i), "file.txt", largeContent)));
+        rates.put(Phase.DELETEFILE, run(storage, operations, i -> operation(OperationType.DELETEFILE, folder(i), "file.txt")));
+        rates.put(Phase.DELETEFOLDER, run(storage, operations, i -> operation(OperationType.DELETEFOLDER, folder(i))));
+        return rates;
+    }
+
+    /**
+     * Applies a number of operations, with what they print discarded.
+     *
+     * @return The operations applied per second
+     */
+    private static double run(Storage storage, int operations, OperationFactory factory) {
+        List<StateFileSystemOperation> workload = new ArrayList<>(operations);
+        for (int i = 0; i < operations; i++) {
+            workload.add(factory.create(i));
+        }
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        long start = System.nanoTime();
+        try {
+            for (StateFileSystemOperation operation : workload) {
+                if (!StateFileSystemOperation.executeOperation(operation, storage, Storage.SERVER)) {
+                    throw new IllegalStateException(operation.getType() + " " + operation.getParams().get(0) + " failed");
+                }
+            }
+        } finally {
+            System.setOut(console);
+        }
+        return operations / ((System.nanoTime() - start) / 1e9);
+    }
+
+    private static String folder(int i) {
+        return "alice/folder" + (i % 100) + "/" + i;
+    }
+
+    private static StateFileSystemOperation operation(OperationType type, String... params) {
+        return new StateFileSystemOperation("alice", new ArrayList<>(Arrays.asList(params)), type);
+    }
+
+    private static void deleteTree(File file) throws IOException {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteTree(child);
+            }
+        }
+        Files.deleteIfExists(file.toPath());
+    }
+
+    private interface OperationFactory {
+        StateFileSystemOperation create(int i);
+    }
+}
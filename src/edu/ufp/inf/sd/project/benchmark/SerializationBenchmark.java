@@ -0,0 +1,162 @@
+package edu.ufp.inf.sd.project.benchmark;
+
+import edu.ufp.inf.sd.project.server.OperationCodec;
+import edu.ufp.inf.sd.project.server.StateFileSystemOperation;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Compares the marshalled size and throughput of {@link StateFileSystemOperation} in the previous default
+ * serialization format, in its {@code Externalizable} encoding, and in the raw {@link OperationCodec} encoding
+ * with a path dictionary shared over a stream.
+ * <p>
+ * Each operation is written to its own object stream, as RMI does for every call, so the per-stream class
+ * descriptors are part of the measured size.
+ * <p>
+ * Usage: {@code java edu.ufp.inf.sd.project.benchmark.SerializationBenchmark [operations] [rounds]}
+ */
+public class SerializationBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int operations = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+        List<StateFileSystemOperation> workload = generate(operations, new Random(42));
+        List<LegacyOperation> legacyWorkload = new ArrayList<>(workload.size());
+        for (StateFileSystemOperation operation : workload) {
+            legacyWorkload.add(new LegacyOperation(operation));
+        }
+
+        System.out.println("Serialization of " + operations + " operations, best of " + rounds + " rounds");
+        System.out.printf("%-28s %14s %14s %14s%n", "format", "bytes/op", "write ops/s", "read ops/s");
+        report("default serialization", rounds, legacyWorkload, SerializationBenchmark::writeObject);
+        report("externalizable", rounds, workload, SerializationBenchmark::writeObject);
+        reportStream(rounds, workload);
+    }
+
+    private static <T> void report(String name, int rounds, List<T> workload, Encoder<T> encoder) throws Exception {
+        long bytes = 0;
+        long bestWrite = Long.MAX_VALUE;
+        long bestRead = Long.MAX_VALUE;
+        List<byte[]> encoded = new ArrayList<>(workload.size());
+        for (int round = 0; round < rounds; round++) {
+            encoded.clear();
+            bytes = 0;
+            long start = System.nanoTime();
+            for (T operation : workload) {
+                byte[] data = encoder.encode(operation);
+                encoded.add(data);
+                bytes += data.length;
+            }
+            bestWrite = Math.min(bestWrite, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            for (byte[] data : encoded) {
+                try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(data))) {
+                    in.readObject();
+                }
+            }
+            bestRead = Math.min(bestRead, System.nanoTime() - start);
+        }
+        print(name, bytes, workload.size(), bestWrite, bestRead);
+    }
+
+    private static void reportStream(int rounds, List<StateFileSystemOperation> workload) throws IOException {
+        long bytes = 0;
+        long bestWrite = Long.MAX_VALUE;
+        long bestRead = Long.MAX_VALUE;
+        for (int round = 0; round < rounds; round++) {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            long start = System.nanoTime();
+            try (DataOutputStream out = new DataOutputStream(buffer)) {
+                OperationCodec.PathDictionary dictionary = new OperationCodec.PathDictionary(4096);
+                for (StateFileSystemOperation operation : workload) {
+                    OperationCodec.write(out, operation, dictionary);
+                }
+            }
+            bestWrite = Math.min(bestWrite, System.nanoTime() - start);
+            bytes = buffer.size();
+
+            start = System.nanoTime();
+            try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(buffer.toByteArray()))) {
+                OperationCodec.PathDictionary dictionary = new OperationCodec.PathDictionary(4096);
+                for (int i = 0; i < workload.size(); i++) {
+                    OperationCodec.read(in, dictionary);
+                }
+            }
+            bestRead = Math.min(bestRead, System.nanoTime() - start);
+        }
+        print("codec stream + dictionary", bytes, workload.size(), bestWrite, bestRead);
+    }
+
+    private static void print(String name, long bytes, int count, long writeNanos, long readNanos) {
+        System.out.printf("%-28s %14.1f %14.0f %14.0f%n", name, (double) bytes / count,
+                count * 1e9 / writeNanos, count * 1e9 / readNanos);
+    }
+
+    private static byte[] writeObject(Object operation) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(256);
+        try (ObjectOutputStream out = new ObjectOutputStream(buffer)) {
+            out.writeObject(operation);
+        }
+        return buffer.toByteArray();
+    }
+
+    /**
+     * Operations shaped like the ones the client sends: paths under the user's folder, a few levels deep,
+     * and short text contents for updates.
+     */
+    static List<StateFileSystemOperation> generate(int count, Random random) {
+        StateFileSystemOperation.OperationType[] types = StateFileSystemOperation.OperationType.values();
+        List<StateFileSystemOperation> operations = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            String username = "user" + random.nextInt(100);
+            StringBuilder path = new StringBuilder(username);
+            int depth = 1 + random.nextInt(3);
+            for (int level = 0; level < depth; level++) {
+                path.append("/folder").append(random.nextInt(5));
+            }
+            StateFileSystemOperation.OperationType type = types[random.nextInt(types.length)];
+            ArrayList<String> params = new ArrayList<>();
+            params.add(path.toString());
+            if (type != StateFileSystemOperation.OperationType.CREATEFOLDER && type != StateFileSystemOperation.OperationType.DELETEFOLDER) {
+                params.add("document" + random.nextInt(50) + ".txt");
+            }
+            if (type == StateFileSystemOperation.OperationType.UPDATEFILE) {
+                StringBuilder content = new StringBuilder();
+                int lines = random.nextInt(4);
+                for (int line = 0; line < lines; line++) {
+                    content.append("line ").append(random.nextInt(1000)).append(" of the document\n");
+                }
+                params.add(content.toString());
+            }
+            operations.add(new StateFileSystemOperation(username, params, type));
+        }
+        return operations;
+    }
+
+    private interface Encoder<T> {
+        byte[] encode(T operation) throws IOException;
+    }
+
+    /**
+     * Same fields as {@link StateFileSystemOperation} had with default serialization.
+     */
+    private static class LegacyOperation implements Serializable {
+        @Serial
+        private static final long serialVersionUID = 1L;
+
+        private final String username;
+        private final StateFileSystemOperation.OperationType type;
+        private final ArrayList<String> params;
+
+        LegacyOperation(StateFileSystemOperation operation) {
+            this.username = operation.getUsername();
+            this.type = operation.getType();
+            this.params = operation.getParams();
+        }
+    }
+}
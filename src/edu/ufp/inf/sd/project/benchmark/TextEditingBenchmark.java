@@ -0,0 +1,171 @@
+package edu.ufp.inf.sd.project.benchmark;
+
+import edu.ufp.inf.sd.project.server.RgaDocument;
+import edu.ufp.inf.sd.project.server.TextDelta;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Measures collaborative text editing with {@link RgaDocument}s: how many edits a document takes per second as the
+ * editors grow, what an edit costs on the wire next to sending the whole file, and what a document costs in memory.
+ * <p>
+ * Every editor edits its own replica at random positions and sends each delta to the server's replica, which keeps
+ * them in order as the server pushes them to the editors; every editor merges the deltas of the others, in batches as
+ * they would arrive, and at the end every replica must have the server's text.
+ * <p>
+ * Usage: {@code java edu.ufp.inf.sd.project.benchmark.TextEditingBenchmark [document characters] [seconds per run]}
+ */
+public class TextEditingBenchmark {
+
+    private static final int CATCH_UP_EVERY = 16;
+
+    public static void main(String[] args) throws Exception {
+        int characters = args.length > 0 ? Integer.parseInt(args[0]) : 10_000;
+        double seconds = args.length > 1 ? Double.parseDouble(args[1]) : 2;
+        int processors = Runtime.getRuntime().availableProcessors();
+        String text = randomText(characters);
+
+        System.out.println("Collaborative editing, " + characters + " characters, " + processors + " processors, " + seconds + " s per run");
+        System.out.printf("%-8s %14s %16s %18s %10s%n", "editors", "edits/s", "delta bytes/edit", "file bytes/edit", "converged");
+        for (int editors = 1; editors <= Math.max(16, 2 * processors); editors *= 2) {
+            run(editors, seconds, text);
+        }
+
+        System.out.println();
+        System.out.printf("%-12s %14s %14s %14s%n", "deleted", "bytes/doc", "bytes/char", "tombstones");
+        for (int percent : new int[]{0, 25, 50}) {
+            measureMemory(text, percent);
+        }
+    }
+
+    /**
+     * Edits a document with a number of editors for a while and checks that their replicas converge.
+     */
+    private static void run(int editors, double seconds, String text) throws InterruptedException {
+        RgaDocument server = RgaDocument.fromText("server", text);
+        List<String> published = new ArrayList<>();
+        LongAdder edits = new LongAdder();
+        LongAdder deltaBytes = new LongAdder();
+        LongAdder fileBytes = new LongAdder();
+        List<RgaDocument> replicas = new ArrayList<>();
+        List<int[]> cursors = new ArrayList<>();
+        for (int i = 0; i < editors; i++) {
+            RgaDocument replica = new RgaDocument("editor" + i);
+            replica.integrate(server.snapshot());
+            replicas.add(replica);
+            cursors.add(new int[1]);
+        }
+
+        CountDownLatch start = new CountDownLatch(1);
+        long duration = (long) (seconds * 1e9);
+        List<Thread> workers = new ArrayList<>();
+        for (int i = 0; i < editors; i++) {
+            RgaDocument replica = replicas.get(i);
+            int[] cursor = cursors.get(i);
+            Thread worker = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                long end = System.nanoTime() + duration;
+                for (long n = 1; System.nanoTime() < end; n++) {
+                    TextDelta delta = edit(replica, random);
+                    String encoded = delta.encode();
+                    synchronized (published) {
+                        server.integrate(delta);
+                        published.add(encoded);
+                    }
+                    edits.increment();
+                    deltaBytes.add(encoded.length());
+                    fileBytes.add(replica.length());
+                    if (n % CATCH_UP_EVERY == 0) {
+                        catchUp(replica, published, cursor);
+                    }
+                }
+            });
+            worker.start();
+            workers.add(worker);
+        }
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        boolean converged = true;
+        String expected = server.getText();
+        for (int i = 0; i < editors; i++) {
+            catchUp(replicas.get(i), published, cursors.get(i));
+            converged &= replicas.get(i).getText().equals(expected);
+        }
+        long total = edits.sum();
+        System.out.printf("%-8d %14.0f %16.1f %18.1f %10s%n", editors, total / seconds,
+                (double) deltaBytes.sum() / total, (double) fileBytes.sum() / total, converged ? "yes" : "NO");
+    }
+
+    /**
+     * Makes a random edit, mostly typing, sometimes deleting.
+     */
+    private static TextDelta edit(RgaDocument replica, ThreadLocalRandom random) {
+        int length = replica.length();
+        if (length > 0 && random.nextInt(10) < 3) {
+            int position = random.nextInt(length);
+            return replica.delete(position, Math.min(length - position, 1 + random.nextInt(4)));
+        }
+        return replica.insert(random.nextInt(length + 1), randomText(1 + random.nextInt(8)));
+    }
+
+    private static void catchUp(RgaDocument replica, List<String> published, int[] cursor) {
+        List<String> received;
+        synchronized (published) {
+            received = new ArrayList<>(published.subList(cursor[0], published.size()));
+            cursor[0] = published.size();
+        }
+        for (String encoded : received) {
+            replica.integrate(TextDelta.parse(encoded));
+        }
+    }
+
+    /**
+     * Measures the heap taken by documents of the given text after a share of it was deleted.
+     */
+    private static void measureMemory(String text, int deletedPercent) {
+        int documents = 50;
+        long before = usedMemory();
+        List<RgaDocument> kept = new ArrayList<>();
+        for (int i = 0; i < documents; i++) {
+            RgaDocument document = RgaDocument.fromText("server", text);
+            int deletions = text.length() * deletedPercent / 100;
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            for (int deleted = 0; deleted < deletions; deleted++) {
+                document.delete(random.nextInt(document.length()), 1);
+            }
+            kept.add(document);
+        }
+        long bytes = (usedMemory() - before) / documents;
+        System.out.printf("%-12s %14d %14.1f %14d%n", deletedPercent + "%", bytes, (double) bytes / text.length(),
+                kept.get(0).getTombstoneCount());
+    }
+
+    private static long usedMemory() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static String randomText(int length) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        StringBuilder text = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            text.append(random.nextInt(8) == 0 ? ' ' : (char) ('a' + random.nextInt(26)));
+        }
+        return text.toString();
+    }
+}
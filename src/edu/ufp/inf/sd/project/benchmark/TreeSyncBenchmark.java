@@ -0,0 +1,189 @@
+package edu.ufp.inf.sd.project.benchmark;
+
+import edu.ufp.inf.sd.project.server.CopyEngine;
+import edu.ufp.inf.sd.project.server.DeltaSync;
+import edu.ufp.inf.sd.project.server.FileIndex;
+import edu.ufp.inf.sd.project.server.Storage;
+import edu.ufp.inf.sd.project.server.SyncMode;
+import edu.ufp.inf.sd.project.server.SyncStats;
+import edu.ufp.inf.sd.project.server.TreeSynchronizer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Measures how long the synchronization of a shared folder takes, the steps of {@code SessionImpl.copyDirectoryContents}:
+ * refreshing and storing the indexes of the owner's tree and of the copy, and synchronizing the files that differ, with
+ * each {@link SyncMode}, over trees of different shapes.
+ * <p>
+ * Each tree is synchronized to an empty copy, again with nothing changed, and again after 1% of its files changed. The
+ * files the first synchronization just wrote are too recent for their index entries to be trusted, so the second one
+ * hashes them again, as a synchronization right after another would.
+ * <p>
+ * Usage: {@code java edu.ufp.inf.sd.project.benchmark.TreeSyncBenchmark [files per tree] [rounds]}
+ */
+public class TreeSyncBenchmark {
+
+    private static final int FILE_SIZE = 4096;
+    private static final int LARGE_FILES = 8;
+    private static final int LARGE_FILE_SIZE = 4 * 1024 * 1024;
+
+    private static TreeSynchronizer treeSynchronizer;
+    private static CopyEngine copyEngine;
+    private static DeltaSync deltaSync;
+
+    public static void main(String[] args) throws Exception {
+        int files = args.length > 0 ? Integer.parseInt(args[0]) : 2_000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+        int processors = Runtime.getRuntime().availableProcessors();
+
+        File directory = Files.createTempDirectory("tree-sync-benchmark").toFile();
+        try {
+            // The indexes are stored by name in the storage of the process
+            Storage.select(Storage.create(Storage.Type.LOCAL, directory));
+            treeSynchronizer = new TreeSynchronizer(processors, 2 * processors);
+            copyEngine = new CopyEngine();
+            deltaSync = new DeltaSync(DeltaSync.DEFAULT_BLOCK_SIZE, copyEngine);
+
+            System.out.println("Tree synchronization, best of " + rounds + " rounds, " + processors + " processors");
+            System.out.printf("%-8s %8s %10s %-9s %12s %14s %14s %10s%n", "tree", "files", "MB", "mode", "first ms",
+                    "unchanged ms", "1% changed ms", "first MB/s");
+            Random random = new Random(42);
+            // One folder; a chain of 100; 4 levels of 4 folders each; a few large files
+            run(directory, "flat", tree(new File(directory, "flat"), files, 0, 1, FILE_SIZE, random), rounds);
+            run(directory, "deep", tree(new File(directory, "deep"), files, 99, 1, FILE_SIZE, random), rounds);
+            run(directory, "bushy", tree(new File(directory, "bushy"), files, 4, 4, FILE_SIZE, random), rounds);
+            run(directory, "large", tree(new File(directory, "large"), LARGE_FILES, 0, 1, LARGE_FILE_SIZE, random), rounds);
+        } finally {
+            deleteTree(directory);
+        }
+    }
+
+    /**
+     * Synchronizes a tree with every mode.
+     */
+    private static void run(File directory, String shape, List<File> files, int rounds) throws IOException {
+        File source = new File(directory, shape);
+        long bytes = 0;
+        for (File file : files) {
+            bytes += file.length();
+        }
+        for (SyncMode mode : SyncMode.values()) {
+            long[] best = {Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE};
+            for (int round = 0; round < rounds; round++) {
+                String name = shape + "-" + mode + "-" + round;
+                File destination = new File(directory, "copy-" + name);
+                long[] nanos = new long[3];
+                nanos[0] = synchronize(source, shape, destination, name, mode);
+                nanos[1] = synchronize(source, shape, destination, name, mode);
+                change(files, round);
+                nanos[2] = synchronize(source, shape, destination, name, mode);
+                for (int i = 0; i < best.length; i++) {
+                    best[i] = Math.min(best[i], nanos[i]);
+                }
+                deleteTree(destination);
+            }
+            System.out.printf("%-8s %8d %10.1f %-9s %12.1f %14.1f %14.1f %10.1f%n", shape, files.size(), bytes / 1e6,
+                    mode.name().toLowerCase(), best[0] / 1e6, best[1] / 1e6, best[2] / 1e6, bytes / 1e6 / (best[0] / 1e9));
+        }
+    }
+
+    /**
+     * Synchronizes a tree to its copy as a session does.
+     *
+     * @return The nanoseconds it took
+     */
+    private static long synchronize(File source, String sourceIndexName, File destination, String destinationIndexName,
+                                    SyncMode mode) throws IOException {
+        long start = System.nanoTime();
+        FileIndex sourceIndex = FileIndex.load(sourceIndexName).refresh(source, treeSynchronizer);
+        sourceIndex.save(sourceIndexName);
+        destination.mkdirs();
+        FileIndex destinationIndex = FileIndex.load(destinationIndexName).refresh(destination, treeSynchronizer);
+        try {
+            treeSynchronizer.synchronize(source, sourceIndex, destination, destinationIndex,
+                    (file, destinationFile) -> copyFile(file, destinationFile, mode));
+        } finally {
+            destinationIndex.save(destinationIndexName);
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static SyncStats copyFile(File source, File destination, SyncMode mode) throws IOException {
+        switch (mode) {
+            case TRANSFER:
+                return copyEngine.transfer(source, destination);
+            case LINK:
+                return copyEngine.link(source, destination);
+            default:
+                return deltaSync.synchronizeFile(source, destination);
+        }
+    }
+
+    /**
+     * Builds a tree of folders, each with the same number of files.
+     *
+     * @param depth  The levels of folders under the root
+     * @param fanOut The folders in each folder
+     * @return The files
+     */
+    private static List<File> tree(File root, int files, int depth, int fanOut, int size, Random random) throws IOException {
+        List<File> folders = new ArrayList<>();
+        folders.add(root);
+        List<File> level = List.of(root);
+        for (int d = 0; d < depth; d++) {
+            List<File> next = new ArrayList<>();
+            for (File parent : level) {
+                for (int i = 0; i < fanOut; i++) {
+                    next.add(new File(parent, "folder" + i));
+                }
+            }
+            folders.addAll(next);
+            level = next;
+        }
+        List<File> created = new ArrayList<>(files);
+        byte[] content = new byte[size];
+        // Old enough for the indexes to trust, so only what a synchronization changes is hashed again
+        long modified = System.currentTimeMillis() - 60_000;
+        for (int i = 0; i < files; i++) {
+            File folder = folders.get(i % folders.size());
+            folder.mkdirs();
+            File file = new File(folder, "file" + i + ".bin");
+            random.nextBytes(content);
+            Files.write(file.toPath(), content);
+            file.setLastModified(modified);
+            created.add(file);
+        }
+        return created;
+    }
+
+    /**
+     * Rewrites a few bytes in the middle of 1% of the files, at least one.
+     */
+    private static void change(List<File> files, int round) throws IOException {
+        long modified = System.currentTimeMillis() - 10_000 + round;
+        for (int i = round % Math.min(100, files.size()); i < files.size(); i += 100) {
+            File file = files.get(i);
+            try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+                out.seek(file.length() / 2);
+                out.write(new byte[64]);
+            }
+            file.setLastModified(modified);
+        }
+    }
+
+    private static void deleteTree(File file) throws IOException {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteTree(child);
+            }
+        }
+        Files.deleteIfExists(file.toPath());
+    }
+}
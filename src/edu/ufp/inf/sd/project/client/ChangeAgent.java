@@ -0,0 +1,145 @@
+package edu.ufp.inf.sd.project.client;
+
+import edu.ufp.inf.sd.project.server.ChangeWatcher;
+import edu.ufp.inf.sd.project.server.OperationCoalescer;
+import edu.ufp.inf.sd.project.server.OperationResult;
+import edu.ufp.inf.sd.project.server.StateFileSystemOperation;
+import edu.ufp.inf.sd.project.server.SubjectFileSystemRI;
+
+import java.io.File;
+import java.io.IOException;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends the edits made to the local folder of the user in the background, as they happen, without going through the
+ * menu.
+ * <p>
+ * The folder is watched with a {@link ChangeWatcher}, which debounces the bursts of events of an editor saving a file.
+ * The operations it captures are collected into a batch, where the ones made redundant by later edits of the same path
+ * are dropped, and the batch is sent every {@value #BATCH_INTERVAL_PROPERTY} milliseconds, or as soon as it holds
+ * {@value #MAX_BATCH_PROPERTY} operations, in a single call. A batch that fails to send is sent again, first, with the
+ * next one.
+ * Updates are sent with the version of the file they were edited from, and one rejected as a conflicting edit is
+ * reported instead of overwriting the other edit; saving the file again overwrites it.
+ * The copies of the folders shared with the user are written by synchronizations, not by the user, and are not watched.
+ */
+public class ChangeAgent {
+
+    public static final String BATCH_INTERVAL_PROPERTY = "edu.ufp.inf.sd.project.agent.batchIntervalMillis";
+    public static final String MAX_BATCH_PROPERTY = "edu.ufp.inf.sd.project.agent.maxBatch";
+
+    private final String username;
+    private final File root;
+    private final LocalVersions localVersions;
+    private final ChangeWatcher watcher;
+    private final OperationCoalescer batch = new OperationCoalescer();
+    private final List<StateFileSystemOperation> unsent = new ArrayList<>();
+    private final ScheduledExecutorService sender;
+    private final long batchIntervalMillis;
+    private final int maxBatch;
+    private volatile SubjectFileSystemRI fileSystem;
+    private long batchesSent;
+    private long operationsSent;
+
+    /**
+     * @param root The directory of the trees of the users of this client
+     */
+    public ChangeAgent(String username, SubjectFileSystemRI fileSystem, LocalVersions localVersions, File root) {
+        this.username = username;
+        this.root = root;
+        this.localVersions = localVersions;
+        this.fileSystem = fileSystem;
+        this.watcher = new ChangeWatcher(root, Long.getLong(ChangeWatcher.DEBOUNCE_PROPERTY, 200),
+                Long.getLong(ChangeWatcher.MAX_CONTENT_PROPERTY, 1024 * 1024));
+        this.batchIntervalMillis = Long.getLong(BATCH_INTERVAL_PROPERTY, 2000);
+        this.maxBatch = Integer.getInteger(MAX_BATCH_PROPERTY, 256);
+        this.sender = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "change-agent");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public void start() throws IOException {
+        watcher.ignore(new File(root, username + "/shared"));
+        watcher.start(new File(root, username), this::add);
+        sender.scheduleWithFixedDelay(this::flush, batchIntervalMillis, batchIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops watching, after sending what was captured so far.
+     */
+    public void stop() {
+        watcher.stop();
+        sender.execute(this::flush);
+        sender.shutdown();
+        try {
+            sender.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        System.out.println("Change agent stopped after sending " + operationsSent + " operations in " + batchesSent + " batches");
+    }
+
+    /**
+     * Sends to a new file system from now on, e.g. after the session was resumed.
+     */
+    public void setFileSystem(SubjectFileSystemRI fileSystem) {
+        this.fileSystem = fileSystem;
+    }
+
+    /**
+     * Announces a local change whose operation is sent by the caller, so the agent does not send it again.
+     */
+    public void expect(StateFileSystemOperation operation) {
+        watcher.expect(operation);
+    }
+
+    private synchronized void add(List<StateFileSystemOperation> operations) {
+        for (StateFileSystemOperation operation : operations) {
+            batch.add(operation);
+        }
+        if (batch.size() >= maxBatch) {
+            sender.execute(this::flush);
+        }
+    }
+
+    private void flush() {
+        List<StateFileSystemOperation> operations;
+        synchronized (this) {
+            operations = new ArrayList<>(unsent);
+            unsent.clear();
+            operations.addAll(batch.drain());
+        }
+        if (operations.isEmpty()) {
+            return;
+        }
+        for (StateFileSystemOperation operation : operations) {
+            localVersions.attachBase(operation);
+        }
+        try {
+            List<OperationResult> results = fileSystem.applyOperations(operations);
+            batchesSent++;
+            operationsSent += operations.size();
+            for (int i = 0; i < results.size(); i++) {
+                StateFileSystemOperation operation = operations.get(i);
+                if (localVersions.record(operation, results.get(i))) {
+                    System.err.println("✗ " + operation.getParams().get(0) + "/" + operation.getParams().get(1)
+                            + " was changed by someone else since you last saw it; save it again to overwrite their changes");
+                } else if (!results.get(i).isApplied()) {
+                    System.err.println("✗ The server could not apply " + operation.getType() + " " + operation.getParams().get(0));
+                }
+            }
+        } catch (RemoteException e) {
+            System.err.println("✗ Could not send local changes, retrying: " + e.getMessage());
+            synchronized (this) {
+                unsent.addAll(0, operations);
+            }
+        }
+    }
+}
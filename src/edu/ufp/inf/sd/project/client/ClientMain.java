@@ -4,22 +4,49 @@ import edu.ufp.inf.sd.project.server.*;
 import edu.ufp.inf.sd.project.util.SetupContextRMI;
 
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.rmi.NotBoundException;
-import java.rmi.RemoteException;
+import java.rmi.*;
 import java.rmi.registry.Registry;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.Scanner;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 public class ClientMain {
+    public static final String AGENT_ENABLED_PROPERTY = "edu.ufp.inf.sd.project.agent.enabled";
+
     private Registry registry;
+    private String serviceName;
     private AuthServiceRI authService;
     private SessionRI currentSession;
+    // Fetched once per session, instead of once per operation
+    private String currentUsername;
+    private SubjectFileSystemRI currentFileSystem;
+    private String resumptionToken;
     private Scanner scanner;
     private ObserverImpl observer;
+    private SyncJobListenerImpl syncJobListener;
+    private ChangeAgent changeAgent;
+    private final LocalVersions localVersions = new LocalVersions();
+    // The files of the users of this client, <root>/<username>/...
+    private final LocalStorage storage = Storage.openClientStorage();
+    private volatile String watchedJobId;
+    // The document being edited together, and where it is
+    private volatile RgaDocument editedDocument;
+    private volatile String editedPath;
+    private volatile String editedName;
     private boolean isLoggedIn = false;
+    private ScheduledExecutorService leaseRenewer;
+    // Fetches the files uploaded from elsewhere, one at a time, off the thread that delivers the operations
+    private final ExecutorService uploadFetcher = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "upload-fetcher");
+        thread.setDaemon(true);
+        return thread;
+    });
 
     public ClientMain() {
         this.scanner = new Scanner(System.in);
@@ -54,6 +81,7 @@ public class ClientMain {
             registry = contextRMI.getRegistry();
 
             // Lookup service on registry
+            this.serviceName = serviceName;
             authService = (AuthServiceRI) registry.lookup(serviceName);
 
             System.out.println("✓ Connected to service '" + serviceName + "' at " + registryHost + ":" + registryPort);
@@ -77,11 +105,55 @@ public class ClientMain {
                 }
             } catch (Exception e) {
                 System.err.println("✗ Error: " + e.getMessage());
-                e.printStackTrace();
+                if (isLoggedIn && isConnectionLost(e)) {
+                    resumeSession();
+                } else {
+                    e.printStackTrace();
+                }
             }
         }
     }
 
+    private static boolean isConnectionLost(Exception e) {
+        return e instanceof ConnectException || e instanceof ConnectIOException || e instanceof MarshalException
+                || e instanceof UnmarshalException || e instanceof NoSuchObjectException;
+    }
+
+    /**
+     * Gets the session back after the connection to the server was lost, without logging in again.
+     * The server keeps the session, and the observer attached to its file system, until its lease runs out.
+     */
+    private void resumeSession() {
+        System.out.println("⟳ Connection lost, resuming the session...");
+        stopLeaseRenewal();
+        try {
+            authService = (AuthServiceRI) registry.lookup(serviceName);
+            SessionRI session = authService.resume(resumptionToken);
+            if (session != null) {
+                currentSession = session;
+                currentFileSystem = session.getFileSystem();
+                resumptionToken = session.getResumptionToken();
+                startLeaseRenewal();
+                if (changeAgent != null) {
+                    changeAgent.setFileSystem(currentFileSystem);
+                }
+                System.out.println("✓ Session resumed.");
+                return;
+            }
+            System.out.println("✗ The session has expired. Please login again.");
+        } catch (RemoteException | NotBoundException e) {
+            System.err.println("✗ Could not resume the session: " + e.getMessage() + ". Please login again.");
+        }
+        stopChangeAgent();
+        currentSession = null;
+        currentUsername = null;
+        currentFileSystem = null;
+        resumptionToken = null;
+        isLoggedIn = false;
+        observer = null;
+        syncJobListener = null;
+    }
+
     private void printWelcomeBanner() {
         System.out.println();
         System.out.println("╔═══════════════════════════════════════════════════════════╗");
@@ -170,16 +242,22 @@ public class ClientMain {
         SessionRI session = authService.login(username, password);
         if (session != null) {
             currentSession = session;
+            currentUsername = username;
+            currentFileSystem = session.getFileSystem();
             isLoggedIn = true;
             System.out.println("✓ Login successful! Welcome, " + username + "!");
+            resumptionToken = session.getResumptionToken();
+            startLeaseRenewal();
 
             // Initialize observer
             try {
                 observer = new ObserverImpl(this);
+                syncJobListener = new SyncJobListenerImpl(this);
                 System.out.println("✓ Observer initialized successfully.");
             } catch (RemoteException e) {
                 System.out.println("⚠ Warning: Could not initialize observer: " + e.getMessage());
             }
+            startChangeAgent(username);
         } else {
             System.out.println("✗ Invalid username or password.");
         }
@@ -210,7 +288,10 @@ public class ClientMain {
         System.out.println("│ 1. Create File                                            │");
         System.out.println("│ 2. Update File                                            │");
         System.out.println("│ 3. Delete File                                            │");
-        System.out.println("│ 4. Back to Main Menu                                     │");
+        System.out.println("│ 4. Upload File                                            │");
+        System.out.println("│ 5. Download File                                          │");
+        System.out.println("│ 6. Edit Text Together                                     │");
+        System.out.println("│ 7. Back to Main Menu                                     │");
         System.out.println("└───────────────────────────────────────────────────────────┘");
         System.out.print("Choose an option: ");
 
@@ -226,6 +307,15 @@ public class ClientMain {
                 deleteFile();
                 break;
             case 4:
+                uploadFile();
+                break;
+            case 5:
+                downloadFile();
+                break;
+            case 6:
+                editTextTogether();
+                break;
+            case 7:
                 return;
             default:
                 System.out.println("✗ Invalid option. Please try again.");
@@ -258,7 +348,7 @@ public class ClientMain {
     private void createFile() throws RemoteException {
         System.out.println("\n═══ CREATE FILE ═══");
         System.out.print("Enter file path (e.g., test): ");
-        String filePath = currentSession.getUsername() + "/" + scanner.nextLine().trim();
+        String filePath = currentUsername + "/" + scanner.nextLine().trim();
         System.out.print("Enter file name (e.g., document.txt): ");
         String fileName = scanner.nextLine().trim();
 
@@ -267,44 +357,16 @@ public class ClientMain {
             return;
         }
 
-        String filePathLocal = "/home/oshico/Projects/SD/data/" + filePath;
-        File dir = new File(filePathLocal);
-        if (!dir.exists()) {
-            dir.mkdirs();
-            File file = new File(dir, fileName);
-            try {
-                if (file.createNewFile()) {
-                    System.out.println("File " + fileName + " created");
-                } else {
-                    System.out.println("File " + fileName + " already exists");
-                }
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-        } else {
-            File file = new File(dir, fileName);
-            try {
-                if (file.createNewFile()) {
-                    System.out.println("File " + fileName + " created");
-                } else {
-                    System.out.println("File " + fileName + " already exists");
-                }
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-        }
-
         ArrayList<String> params = new ArrayList<>();
         params.add(filePath);
         params.add(fileName);
 
         StateFileSystemOperation operation = new StateFileSystemOperation(
-                currentSession.getUsername(), params, StateFileSystemOperation.OperationType.CREATEFILE
+                currentUsername, params, StateFileSystemOperation.OperationType.CREATEFILE
         );
+        StateFileSystemOperation.executeOperation(operation, storage, "");
 
-        SubjectFileSystemRI fileSystem = currentSession.getFileSystem();
-        fileSystem.setStateFileSystemOperation(operation);
-        fileSystem.notifyObservers(operation);
+        sendOperation(operation);
 
         System.out.println("✓ File creation operation sent successfully!");
     }
@@ -312,7 +374,7 @@ public class ClientMain {
     private void updateFile() throws RemoteException {
         System.out.println("\n═══ UPDATE FILE ═══");
         System.out.print("Enter file path: ");
-        String filePath = currentSession.getUsername() + "/" + scanner.nextLine().trim();
+        String filePath = currentUsername + "/" + scanner.nextLine().trim();
         System.out.print("Enter file name: ");
         String fileName = scanner.nextLine().trim();
         System.out.println("Enter file content (press Enter twice to finish):");
@@ -336,47 +398,156 @@ public class ClientMain {
             return;
         }
 
-        String filePathLocal = "/home/oshico/Projects/SD/data/" + filePath;
-        File dir = new File(filePathLocal);
-        if (!dir.exists()) {
-            System.out.println("File " + filePathLocal + " is not at " + dir.getAbsolutePath());
-        } else {
-            File file = new File(dir, fileName);
-            if (!file.exists()) {
-                System.out.println("File " + filePathLocal + " does not exist at " + file.getAbsolutePath());
-            } else {
-                try {
-                    FileWriter fw = new FileWriter(file);
-                    fw.write(content.toString());
-                    fw.flush();
-                    System.out.println("File " + fileName + " updated");
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-
-            }
-        }
-
         ArrayList<String> params = new ArrayList<>();
         params.add(filePath);
         params.add(fileName);
         params.add(content.toString());
 
         StateFileSystemOperation operation = new StateFileSystemOperation(
-                currentSession.getUsername(), params, StateFileSystemOperation.OperationType.UPDATEFILE
+                currentUsername, params, StateFileSystemOperation.OperationType.UPDATEFILE
         );
+        StateFileSystemOperation.executeOperation(operation, storage, "");
 
-        SubjectFileSystemRI fileSystem = currentSession.getFileSystem();
-        fileSystem.setStateFileSystemOperation(operation);
-        fileSystem.notifyObservers(operation);
+        sendOperation(operation);
 
         System.out.println("✓ File update operation sent successfully!");
     }
 
+    /**
+     * Edits a text file together with the other users editing it, sending each change as a small delta.
+     */
+    private void editTextTogether() throws RemoteException {
+        System.out.println("\n═══ EDIT TEXT TOGETHER ═══");
+        if (observer == null) {
+            System.out.println("✗ Observer not initialized.");
+            return;
+        }
+        System.out.print("Owner of the file (Enter for yourself): ");
+        String owner = scanner.nextLine().trim();
+        if (owner.isEmpty()) {
+            owner = currentUsername;
+        }
+        SubjectFileSystemRI fileSystem = owner.equals(currentUsername)
+                ? currentFileSystem : currentSession.getSharedWithMeFileSystem().get(owner);
+        if (fileSystem == null) {
+            System.out.println("✗ " + owner + " does not share files with you.");
+            return;
+        }
+        System.out.print("Enter file path: ");
+        String filePath = owner + "/" + scanner.nextLine().trim();
+        System.out.print("Enter file name: ");
+        String fileName = scanner.nextLine().trim();
+        if (fileName.isEmpty()) {
+            System.out.println("✗ File name cannot be empty.");
+            return;
+        }
+
+        RgaDocument document = new RgaDocument(currentUsername + "#" + Long.toHexString(System.nanoTime()));
+        editedPath = filePath;
+        editedName = fileName;
+        editedDocument = document;
+        try {
+            document.integrate(fileSystem.openText(filePath, fileName, observer));
+            System.out.println("Commands: i <position> <text> to insert, d <position> <count> to delete, p to print, q to quit");
+            printDocument(document);
+            while (true) {
+                System.out.print("edit> ");
+                String[] command = scanner.nextLine().split(" ", 3);
+                try {
+                    switch (command[0]) {
+                        case "i":
+                            fileSystem.editText(filePath, fileName,
+                                    document.insert(Integer.parseInt(command[1]), command.length > 2 ? command[2] : ""));
+                            break;
+                        case "d":
+                            fileSystem.editText(filePath, fileName,
+                                    document.delete(Integer.parseInt(command[1]), Integer.parseInt(command[2])));
+                            break;
+                        case "p":
+                            printDocument(document);
+                            break;
+                        case "q":
+                            return;
+                        default:
+                            System.out.println("✗ Unknown command.");
+                    }
+                } catch (NumberFormatException | IndexOutOfBoundsException e) {
+                    System.out.println("✗ Invalid command: " + e.getMessage());
+                }
+            }
+        } finally {
+            editedDocument = null;
+            fileSystem.closeText(filePath, fileName, observer);
+        }
+    }
+
+    private static void printDocument(RgaDocument document) {
+        System.out.println("─── " + document.length() + " characters ───");
+        System.out.println(document.getText());
+        System.out.println("───");
+    }
+
+    /**
+     * Applies an operation received from the server to the local tree of the user, and then records the version of
+     * its file, so the next update of the file is edited from the content that is now local.
+     */
+    public void operationReceived(StateFileSystemOperation operation) {
+        if (changeAgent != null) {
+            // Not a local edit, so the change agent must not send it back
+            changeAgent.expect(operation);
+        }
+        if (operation.getType() == StateFileSystemOperation.OperationType.UPLOADFILE) {
+            SubjectFileSystemRI fileSystem = currentFileSystem;
+            uploadFetcher.execute(() -> fetchUpload(operation, fileSystem));
+            return;
+        }
+        if (StateFileSystemOperation.executeOperation(operation, storage, "")) {
+            localVersions.record(operation);
+        }
+    }
+
+    /**
+     * Downloads a file uploaded to the server, as the operation only carries its hash, unless it is here already.
+     */
+    private void fetchUpload(StateFileSystemOperation operation, SubjectFileSystemRI fileSystem) {
+        String filePath = operation.getParams().get(0);
+        String fileName = operation.getParams().get(1);
+        try {
+            File file = storage.toFile(Storage.path(filePath, fileName));
+            if (!file.isFile() || !FileIndex.hash(file).equals(operation.getParams().get(2))) {
+                new FileTransferClient(fileSystem).download(filePath, fileName, file);
+                if (changeAgent != null) {
+                    changeAgent.expect(operation);
+                }
+            }
+            localVersions.record(operation);
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.println("✗ Could not fetch the upload of " + fileName + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Merges a delta of the document being edited, received from the server.
+     */
+    public void textEdited(StateFileSystemOperation operation) {
+        RgaDocument document = editedDocument;
+        if (document == null || !operation.getParams().get(0).equals(editedPath) || !operation.getParams().get(1).equals(editedName)) {
+            return;
+        }
+        try {
+            // Our own deltas come back too, and change nothing
+            if (document.integrate(TextDelta.parse(operation.getParams().get(2)))) {
+                System.out.println("\n⟳ The text was edited by someone else (" + document.length() + " characters), 'p' to print it");
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println("✗ Ignoring an invalid edit of the text: " + e.getMessage());
+        }
+    }
+
     private void deleteFile() throws RemoteException {
         System.out.println("\n═══ DELETE FILE ═══");
         System.out.print("Enter file path: ");
-        String filePath = currentSession.getUsername() + "/" + scanner.nextLine().trim();
+        String filePath = currentUsername + "/" + scanner.nextLine().trim();
         System.out.print("Enter file name: ");
         String fileName = scanner.nextLine().trim();
 
@@ -385,63 +556,101 @@ public class ClientMain {
             return;
         }
 
-        String filePathLocal = "/home/oshico/Projects/SD/data/" + filePath;
-        File dir = new File(filePathLocal);
-        if (!dir.exists()) {
-            System.out.println("File is not at:" + filePathLocal);
-        } else {
-            File file3 = new File(dir, fileName);
-            if (file3.delete()) {
-                System.out.println("File " + fileName + " deleted");
-            } else {
-                System.out.println("File " + fileName + " does not exist");
-            }
-        }
-
         ArrayList<String> params = new ArrayList<>();
         params.add(filePath);
         params.add(fileName);
 
         StateFileSystemOperation operation = new StateFileSystemOperation(
-                currentSession.getUsername(), params, StateFileSystemOperation.OperationType.DELETEFILE
+                currentUsername, params, StateFileSystemOperation.OperationType.DELETEFILE
         );
+        StateFileSystemOperation.executeOperation(operation, storage, "");
 
-        SubjectFileSystemRI fileSystem = currentSession.getFileSystem();
-        fileSystem.setStateFileSystemOperation(operation);
-        fileSystem.notifyObservers(operation);
+        sendOperation(operation);
 
         System.out.println("✓ File deletion operation sent successfully!");
     }
 
+    private void uploadFile() throws RemoteException {
+        System.out.println("\n═══ UPLOAD FILE ═══");
+        System.out.print("Enter file path: ");
+        String filePath = currentUsername + "/" + scanner.nextLine().trim();
+        System.out.print("Enter file name: ");
+        String fileName = scanner.nextLine().trim();
+
+        if (fileName.isEmpty()) {
+            System.out.println("✗ File name cannot be empty.");
+            return;
+        }
+
+        File file = storage.toFile(Storage.path(filePath, fileName));
+        if (!file.isFile()) {
+            System.out.println("✗ File does not exist: " + file.getAbsolutePath());
+            return;
+        }
+
+        try {
+            FileTransferClient transferClient = new FileTransferClient(currentFileSystem);
+            long sent = transferClient.upload(file, filePath, fileName);
+            System.out.println("✓ File uploaded successfully! (" + sent + " bytes sent)");
+            printCompression(transferClient.getStats());
+        } catch (IOException e) {
+            System.out.println("✗ Upload failed, run it again to resume: " + e.getMessage());
+        }
+    }
+
+    private static void printCompression(Compression.Stats stats) {
+        if (stats.getPayloads() > 0) {
+            System.out.println("  Compression: " + stats);
+        }
+    }
+
+    private void downloadFile() throws RemoteException {
+        System.out.println("\n═══ DOWNLOAD FILE ═══");
+        System.out.print("Enter file path: ");
+        String filePath = currentUsername + "/" + scanner.nextLine().trim();
+        System.out.print("Enter file name: ");
+        String fileName = scanner.nextLine().trim();
+
+        if (fileName.isEmpty()) {
+            System.out.println("✗ File name cannot be empty.");
+            return;
+        }
+
+        File file = storage.toFile(Storage.path(filePath, fileName));
+        try {
+            FileTransferClient transferClient = new FileTransferClient(currentFileSystem);
+            long received = transferClient.download(filePath, fileName, file);
+            if (changeAgent != null) {
+                // The file came from the server, it must not be sent back
+                changeAgent.expect(new StateFileSystemOperation(currentUsername,
+                        new ArrayList<>(List.of(filePath, fileName)), StateFileSystemOperation.OperationType.CREATEFILE));
+            }
+            System.out.println("✓ File downloaded successfully! (" + received + " bytes received)");
+            printCompression(transferClient.getStats());
+        } catch (IOException e) {
+            System.out.println("✗ Download failed, run it again to resume: " + e.getMessage());
+        }
+    }
+
     private void createFolder() throws RemoteException {
         System.out.println("\n═══ CREATE FOLDER ═══");
         System.out.print("Enter folder path (e.g., folder folder/folder): ");
-        String folderPath = currentSession.getUsername() + "/" + scanner.nextLine().trim();
+        String folderPath = currentUsername + "/" + scanner.nextLine().trim();
 
         if (folderPath.isEmpty()) {
             System.out.println("✗ Folder path cannot be empty.");
             return;
         }
 
-        String folderPathLocal = "/home/oshico/Projects/SD/data/" + folderPath;
-        File dir = new File(folderPathLocal);
-        if (!dir.exists()) {
-            dir.mkdirs();
-            System.out.println("Folder created: " + dir.getAbsolutePath());
-        } else {
-            System.out.println("Folder already exists: " + dir.getAbsolutePath());
-        }
-
         ArrayList<String> params = new ArrayList<>();
         params.add(folderPath);
 
         StateFileSystemOperation operation = new StateFileSystemOperation(
-                currentSession.getUsername(), params, StateFileSystemOperation.OperationType.CREATEFOLDER
+                currentUsername, params, StateFileSystemOperation.OperationType.CREATEFOLDER
         );
+        StateFileSystemOperation.executeOperation(operation, storage, "");
 
-        SubjectFileSystemRI fileSystem = currentSession.getFileSystem();
-        fileSystem.setStateFileSystemOperation(operation);
-        fileSystem.notifyObservers(operation);
+        sendOperation(operation);
 
         System.out.println("✓ Folder creation operation sent successfully!");
     }
@@ -449,32 +658,22 @@ public class ClientMain {
     private void deleteFolder() throws RemoteException {
         System.out.println("\n═══ DELETE FOLDER ═══");
         System.out.print("Enter folder path: ");
-        String folderPath = currentSession.getUsername() + "/" + scanner.nextLine().trim();
+        String folderPath = currentUsername + "/" + scanner.nextLine().trim();
 
         if (folderPath.isEmpty()) {
             System.out.println("✗ Folder path cannot be empty.");
             return;
         }
 
-        String folderPathLocal = "/home/oshico/Projects/SD/data/" + folderPath;
-        File dir = new File(folderPathLocal);
-        if (dir.delete()) {
-            System.out.println("Folder deleted: " + folderPathLocal);
-        } else {
-            System.out.println("Folder does not exist: " + folderPathLocal);
-        }
-
-
         ArrayList<String> params = new ArrayList<>();
         params.add(folderPath);
 
         StateFileSystemOperation operation = new StateFileSystemOperation(
-                currentSession.getUsername(), params, StateFileSystemOperation.OperationType.DELETEFOLDER
+                currentUsername, params, StateFileSystemOperation.OperationType.DELETEFOLDER
         );
+        StateFileSystemOperation.executeOperation(operation, storage, "");
 
-        SubjectFileSystemRI fileSystem = currentSession.getFileSystem();
-        fileSystem.setStateFileSystemOperation(operation);
-        fileSystem.notifyObservers(operation);
+        sendOperation(operation);
 
         System.out.println("✓ Folder deletion operation sent successfully!");
     }
@@ -484,7 +683,8 @@ public class ClientMain {
         System.out.println("│ 1. Share filesystem with user                            │");
         System.out.println("│ 2. Unshare filesystem with user                          │");
         System.out.println("│ 3. Update shared filesystem with user                        │");
-        System.out.println("│ 4. Back to Main Menu                                     │");
+        System.out.println("│ 4. Background jobs                                       │");
+        System.out.println("│ 5. Back to Main Menu                                     │");
         System.out.println("└───────────────────────────────────────────────────────────┘");
         System.out.print("Choose an option: ");
 
@@ -500,6 +700,9 @@ public class ClientMain {
                 synchronize();
                 break;
             case 4:
+                showSyncJobs();
+                break;
+            case 5:
                 return;
             default:
                 System.out.println("✗ Invalid option. Please try again.");
@@ -516,13 +719,14 @@ public class ClientMain {
             return;
         }
 
-        if (targetUser.equals(currentSession.getUsername())) {
+        if (targetUser.equals(currentUsername)) {
             System.out.println("✗ You cannot share with yourself.");
             return;
         }
 
-        currentSession.shareWithFileSystem(targetUser);
-        System.out.println("✓ Filesystem shared with user: " + targetUser);
+        SyncJobStatus job = currentSession.shareWithFileSystemAsync(targetUser, syncJobListener);
+        System.out.println("✓ Filesystem shared with user: " + targetUser + ", copying files...");
+        watchSyncJob(job);
     }
 
     private void unshareFileSystem() throws RemoteException {
@@ -541,8 +745,85 @@ public class ClientMain {
 
     private void synchronize() throws RemoteException {
         System.out.println("\n═══ SYNC FILESYSTEM ═══");
-        currentSession.synchronizeSharedFolders();
-        System.out.print("Done ✓");
+        System.out.print("Copy mode (1. Changed blocks only, 2. Full copy, 3. Link read-only files) [1]: ");
+        String mode = scanner.nextLine().trim();
+        if (mode.equals("3")) {
+            // The server keeps the files of its users writable, so only files made read-only on its disk are linked
+            System.out.println("ℹ Only files made read-only on the server are linked; the others are copied in full.");
+        }
+        SyncJobStatus job;
+        switch (mode) {
+            case "2":
+                job = currentSession.synchronizeSharedFoldersAsync(SyncMode.TRANSFER, syncJobListener);
+                break;
+            case "3":
+                job = currentSession.synchronizeSharedFoldersAsync(SyncMode.LINK, syncJobListener);
+                break;
+            default:
+                job = currentSession.synchronizeSharedFoldersAsync(SyncMode.DELTA, syncJobListener);
+        }
+        watchSyncJob(job);
+    }
+
+    /**
+     * Shows the progress of a job until it finishes, unless the user leaves it running in the background or cancels it.
+     */
+    private void watchSyncJob(SyncJobStatus status) throws RemoteException {
+        String jobId = status.getJobId();
+        System.out.println("Press Enter to leave the job running in the background, or type 'c' and Enter to cancel it.");
+        watchedJobId = jobId;
+        try {
+            while (status != null && !status.getState().isFinished()) {
+                System.out.print("\r" + status + "    ");
+                if (System.in.available() > 0) {
+                    String line = scanner.nextLine().trim();
+                    if (!line.equalsIgnoreCase("c")) {
+                        System.out.println("\n⟳ Job " + jobId + " continues in the background.");
+                        return;
+                    }
+                    currentSession.cancelSyncJob(jobId);
+                    System.out.println("\n⟳ Cancelling...");
+                }
+                Thread.sleep(500);
+                status = currentSession.getSyncJobStatus(jobId);
+            }
+            System.out.println();
+            if (status == null) {
+                System.out.println("✗ Job " + jobId + " is no longer known to the server.");
+            } else if (status.getState() == SyncJobStatus.State.DONE) {
+                System.out.println("Done ✓ " + status);
+            } else {
+                System.out.println("✗ Job " + status.getState().name().toLowerCase() + ": " + status);
+            }
+        } catch (IOException e) {
+            System.err.println("✗ Could not read the terminal: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            watchedJobId = null;
+        }
+    }
+
+    private void showSyncJobs() throws RemoteException {
+        System.out.println("\n═══ BACKGROUND JOBS ═══");
+        List<SyncJobStatus> jobs = currentSession.getSyncJobs();
+        if (jobs.isEmpty()) {
+            System.out.println("No jobs.");
+            return;
+        }
+        for (int i = 0; i < jobs.size(); i++) {
+            System.out.println((i + 1) + ". " + jobs.get(i).getDescription() + " - " + jobs.get(i));
+        }
+        System.out.print("Job to cancel (0 for none): ");
+        int choice = getIntInput();
+        if (choice > 0 && choice <= jobs.size()) {
+            String jobId = jobs.get(choice - 1).getJobId();
+            System.out.println(currentSession.cancelSyncJob(jobId) ? "✓ Job cancelled." : "✗ Job already finished.");
+        }
+    }
+
+    String getWatchedJobId() {
+        return watchedJobId;
     }
 
     private void viewSharedFiles() throws RemoteException {
@@ -591,8 +872,7 @@ public class ClientMain {
             return;
         }
 
-        SubjectFileSystemRI fileSystem = currentSession.getFileSystem();
-        fileSystem.attachObserver(observer);
+        currentSession.attachObserver(observer);
         System.out.println("✓ Observer attached to your filesystem. You will now receive notifications of changes.");
     }
 
@@ -602,18 +882,18 @@ public class ClientMain {
             return;
         }
 
-        SubjectFileSystemRI fileSystem = currentSession.getFileSystem();
-        fileSystem.detachObserver(observer);
+        currentSession.detachObserver(observer);
         System.out.println("✓ Observer detached from your filesystem.");
     }
 
     private void showUserInfo() throws RemoteException {
         System.out.println("\n═══ USER INFORMATION ═══");
         System.out.println("┌─────────────────────────────────────────────────────────┐");
-        System.out.println("│ Username: " + currentSession.getUsername() + "                                 │");
+        System.out.println("│ Username: " + currentUsername + "                                 │");
         System.out.println("│ Status: Logged In                                      │");
         System.out.println("│ Observer: " + (observer != null ? "Initialized" : "Not Initialized") + "                              │");
         System.out.println("└─────────────────────────────────────────────────────────┘");
+        System.out.println("Compression (" + Compression.preferred() + "): " + Compression.TOTAL);
     }
 
     private void handleLogout() throws RemoteException {
@@ -622,18 +902,95 @@ public class ClientMain {
         String confirmation = scanner.nextLine().trim().toLowerCase();
 
         if (confirmation.equals("y") || confirmation.equals("yes")) {
+            stopChangeAgent();
+            stopLeaseRenewal();
             if (currentSession != null) {
                 currentSession.logout();
                 currentSession = null;
+                currentUsername = null;
+                currentFileSystem = null;
+                resumptionToken = null;
             }
             isLoggedIn = false;
             observer = null;
+            syncJobListener = null;
             System.out.println("✓ Logged out successfully!");
         } else {
             System.out.println("Logout cancelled.");
         }
     }
 
+    /**
+     * Applies an operation on the server and notifies the observers of the user's file system.
+     */
+    private void sendOperation(StateFileSystemOperation operation) throws RemoteException {
+        if (changeAgent != null) {
+            // Sent here, so the change agent must not send it again
+            changeAgent.expect(operation);
+        }
+        localVersions.attachBase(operation);
+        // Applied and notified in one round trip
+        OperationResult result = currentFileSystem.applyOperations(List.of(operation)).get(0);
+        if (localVersions.record(operation, result)) {
+            System.out.println("⚠ The file was changed by someone else since you last saw it, so your update was not applied.");
+            System.out.println("  Update it again to overwrite their changes.");
+        } else if (!result.isApplied()) {
+            System.out.println("⚠ The server could not apply the operation (" + result + ").");
+        }
+    }
+
+    /**
+     * Starts sending the edits made to the local folder of the user in the background, unless disabled with
+     * {@value #AGENT_ENABLED_PROPERTY}=false.
+     */
+    private void startChangeAgent(String username) throws RemoteException {
+        if (!Boolean.parseBoolean(System.getProperty(AGENT_ENABLED_PROPERTY, "true"))) {
+            return;
+        }
+        changeAgent = new ChangeAgent(username, currentFileSystem, localVersions, storage.getRoot());
+        try {
+            changeAgent.start();
+            System.out.println("✓ Local edits are sent automatically.");
+        } catch (IOException e) {
+            System.out.println("⚠ Warning: Could not watch the local folder: " + e.getMessage());
+            changeAgent = null;
+        }
+    }
+
+    private void stopChangeAgent() {
+        if (changeAgent != null) {
+            changeAgent.stop();
+            changeAgent = null;
+        }
+    }
+
+    /**
+     * Keeps the session lease alive in the background, renewing it three times per lease.
+     */
+    private void startLeaseRenewal() throws RemoteException {
+        SessionRI session = currentSession;
+        long leaseMillis = session.renewLease();
+        leaseRenewer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "lease-renewer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        leaseRenewer.scheduleAtFixedRate(() -> {
+            try {
+                session.renewLease();
+            } catch (RemoteException e) {
+                System.err.println("✗ Could not renew the session lease: " + e.getMessage());
+            }
+        }, leaseMillis / 3, leaseMillis / 3, TimeUnit.MILLISECONDS);
+    }
+
+    private void stopLeaseRenewal() {
+        if (leaseRenewer != null) {
+            leaseRenewer.shutdownNow();
+            leaseRenewer = null;
+        }
+    }
+
     private void handleExit() {
         System.out.println("\n═══ EXIT ═══");
         System.out.print("Are you sure you want to exit? (y/N): ");
@@ -0,0 +1,192 @@
+package edu.ufp.inf.sd.project.client;
+
+import edu.ufp.inf.sd.project.server.Compression;
+import edu.ufp.inf.sd.project.server.FileIndex;
+import edu.ufp.inf.sd.project.server.FileTransfer;
+import edu.ufp.inf.sd.project.server.SubjectFileSystemRI;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Client side of the streaming file transfers of {@link SubjectFileSystemRI}.
+ * Keeps up to the negotiated window of chunks in flight, each on its own call, and waits for the oldest chunk
+ * before sending a new one, so at most {@code window * chunkSize} bytes of the file are ever held in memory.
+ * The chunks are compressed when the server agrees to, see {@link Compression}.
+ */
+public class FileTransferClient {
+
+    private final SubjectFileSystemRI fileSystem;
+    private final Compression.Stats stats = new Compression.Stats();
+
+    public FileTransferClient(SubjectFileSystemRI fileSystem) {
+        this.fileSystem = fileSystem;
+    }
+
+    /**
+     * Uploads a file, resuming from whatever the server already received of a previous attempt.
+     *
+     * @param source The local file
+     * @param path   The folder of the file on the server (e.g. "alice/docs")
+     * @param name   The name of the file on the server
+     * @return The number of bytes sent
+     * @throws IOException If the file cannot be read or the upload fails; it can be resumed by uploading again
+     */
+    public long upload(File source, String path, String name) throws IOException {
+        String contentHash = FileIndex.hash(source);
+        FileTransfer transfer = fileSystem.openUpload(path, name, source.length(), Compression.accepted());
+        Compression compression = transfer.getCompression();
+        long sent = transfer.getSize() - transfer.getOffset();
+        ExecutorService executor = Executors.newFixedThreadPool(transfer.getWindow());
+        try (FileChannel channel = FileChannel.open(source.toPath(), StandardOpenOption.READ)) {
+            Deque<Future<?>> inFlight = new ArrayDeque<>();
+            for (long offset = transfer.getOffset(); offset < transfer.getSize(); offset += transfer.getChunkSize()) {
+                if (inFlight.size() == transfer.getWindow()) {
+                    await(inFlight.pollFirst());
+                }
+                long chunkOffset = offset;
+                int length = (int) Math.min(transfer.getChunkSize(), transfer.getSize() - offset);
+                inFlight.addLast(executor.submit(() -> {
+                    byte[] data = read(channel, chunkOffset, length);
+                    fileSystem.writeChunk(transfer.getId(), chunkOffset, compression == Compression.NONE ? data : compression.encode(data, stats));
+                    return null;
+                }));
+            }
+            while (!inFlight.isEmpty()) {
+                await(inFlight.pollFirst());
+            }
+        } catch (IOException e) {
+            fileSystem.closeTransfer(transfer.getId());
+            throw e;
+        } finally {
+            executor.shutdownNow();
+        }
+        fileSystem.completeUpload(transfer.getId(), contentHash);
+        return sent;
+    }
+
+    /**
+     * Downloads a file into a hidden {@code .<name>.download} file next to the destination and moves it into place
+     * once complete and matching the hash the server sent. The hash is kept in a {@code .<name>.download.hash} file,
+     * so an interrupted download resumes from the bytes received in order only if the file is still the same one.
+     *
+     * @param path        The folder of the file on the server
+     * @param name        The name of the file on the server
+     * @param destination The local file
+     * @return The number of bytes received
+     * @throws IOException If the download fails, or the file received does not match its hash
+     */
+    public long download(String path, String name, File destination) throws IOException {
+        FileTransfer transfer = fileSystem.openDownload(path, name, Compression.accepted());
+        boolean compressed = transfer.getCompression() != Compression.NONE;
+        String contentHash = transfer.getContentHash();
+        destination.getParentFile().mkdirs();
+        File partial = new File(destination.getParentFile(), "." + destination.getName() + ".download");
+        File partialHash = new File(destination.getParentFile(), "." + destination.getName() + ".download.hash");
+        boolean sameFile = contentHash != null && partialHash.isFile()
+                && contentHash.equals(Files.readString(partialHash.toPath(), StandardCharsets.UTF_8));
+        if (!sameFile) {
+            // The bytes received before were of another version of the file
+            Files.deleteIfExists(partial.toPath());
+            if (contentHash != null) {
+                Files.writeString(partialHash.toPath(), contentHash, StandardCharsets.UTF_8);
+            } else {
+                Files.deleteIfExists(partialHash.toPath());
+            }
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(transfer.getWindow());
+        long start;
+        try (FileChannel channel = FileChannel.open(partial.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            start = channel.size() <= transfer.getSize() ? channel.size() : 0;
+            channel.truncate(start);
+            // Bytes before this offset are all on disk; on failure the file is cut back to them
+            long received = start;
+            Deque<Future<?>> inFlight = new ArrayDeque<>();
+            try {
+                for (long offset = start; offset < transfer.getSize(); offset += transfer.getChunkSize()) {
+                    if (inFlight.size() == transfer.getWindow()) {
+                        await(inFlight.pollFirst());
+                        received += transfer.getChunkSize();
+                    }
+                    long chunkOffset = offset;
+                    int length = (int) Math.min(transfer.getChunkSize(), transfer.getSize() - offset);
+                    inFlight.addLast(executor.submit(() -> {
+                        byte[] data = fileSystem.readChunk(transfer.getId(), chunkOffset, length);
+                        write(channel, chunkOffset, compressed ? Compression.decode(data, length, stats) : data);
+                        return null;
+                    }));
+                }
+                while (!inFlight.isEmpty()) {
+                    await(inFlight.pollFirst());
+                    received = Math.min(received + transfer.getChunkSize(), transfer.getSize());
+                }
+                channel.force(true);
+            } catch (IOException e) {
+                executor.shutdownNow();
+                channel.truncate(received);
+                throw e;
+            }
+        } finally {
+            executor.shutdownNow();
+            fileSystem.closeTransfer(transfer.getId());
+        }
+        if (contentHash != null && !contentHash.equals(FileIndex.hash(partial))) {
+            Files.deleteIfExists(partial.toPath());
+            Files.deleteIfExists(partialHash.toPath());
+            throw new IOException("Downloaded file does not match its hash, discarded");
+        }
+        Files.move(partial.toPath(), destination.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        Files.deleteIfExists(partialHash.toPath());
+        return transfer.getSize() - start;
+    }
+
+    /**
+     * @return What compression saved and cost in the transfers of this client
+     */
+    public Compression.Stats getStats() {
+        return stats;
+    }
+
+    private static byte[] read(FileChannel channel, long offset, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) < 0) {
+                throw new IOException("File shrank while uploading it");
+            }
+        }
+        return buffer.array();
+    }
+
+    private static void write(FileChannel channel, long offset, byte[] data) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, offset + buffer.position());
+        }
+    }
+
+    private static void await(Future<?> future) throws IOException {
+        try {
+            future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted during transfer", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Transfer failed", e.getCause());
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package edu.ufp.inf.sd.project.client;
+
+import edu.ufp.inf.sd.project.server.FileVersions;
+import edu.ufp.inf.sd.project.server.OperationResult;
+import edu.ufp.inf.sd.project.server.StateFileSystemOperation;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The versions of the files of the user as last seen from the server, sent with every update as the version it was
+ * edited from, so the server rejects it if someone else changed the file in the meantime; see {@link FileVersions}.
+ * An update of a file whose version is not known is sent without one, and applied unconditionally.
+ */
+public class LocalVersions {
+
+    private final Map<String, String> versions = new ConcurrentHashMap<>();
+
+    /**
+     * Sets the version an update is edited from to the last version seen of its file.
+     */
+    public void attachBase(StateFileSystemOperation operation) {
+        if (operation.getType() == StateFileSystemOperation.OperationType.UPDATEFILE) {
+            FileVersions.setBase(operation, versions.get(key(operation)));
+        }
+    }
+
+    /**
+     * Records the version of a file after an operation of the user was applied or rejected.
+     *
+     * @return true if the operation conflicted with a concurrent edit
+     */
+    public boolean record(StateFileSystemOperation operation, OperationResult result) {
+        if (result.getVersion() != null && !result.getVersion().isEmpty() && operation.getParams().size() > 1) {
+            versions.put(key(operation), result.getVersion());
+        }
+        return result.isConflict();
+    }
+
+    /**
+     * Records the version carried by an operation published by the server.
+     */
+    public void record(StateFileSystemOperation operation) {
+        String version = FileVersions.versionOf(operation);
+        if (version != null && !version.isEmpty()) {
+            versions.put(key(operation), version);
+        }
+    }
+
+    private static String key(StateFileSystemOperation operation) {
+        return operation.getParams().get(0) + "/" + operation.getParams().get(1);
+    }
+}
@@ -16,6 +16,10 @@ public class ObserverImpl extends UnicastRemoteObject implements ObserverRI {
 
     @Override
     public void update(StateFileSystemOperation stateFileSystemOperation) throws RemoteException {
-        StateFileSystemOperation.executeOperation(stateFileSystemOperation);
+        if (stateFileSystemOperation.getType() == StateFileSystemOperation.OperationType.TEXTEDIT) {
+            client.textEdited(stateFileSystemOperation);
+            return;
+        }
+        client.operationReceived(stateFileSystemOperation);
     }
 }
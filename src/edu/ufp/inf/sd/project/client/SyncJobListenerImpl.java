@@ -0,0 +1,27 @@
+package edu.ufp.inf.sd.project.client;
+
+import edu.ufp.inf.sd.project.server.SyncJobStatus;
+
+import java.io.Serial;
+import java.rmi.RemoteException;
+import java.rmi.server.UnicastRemoteObject;
+
+public class SyncJobListenerImpl extends UnicastRemoteObject implements SyncJobListenerRI {
+    @Serial
+    private static final long serialVersionUID = 1L;
+
+    private final ClientMain client;
+
+    public SyncJobListenerImpl(ClientMain client) throws RemoteException {
+        super();
+        this.client = client;
+    }
+
+    @Override
+    public void progress(SyncJobStatus status) throws RemoteException {
+        // The job being watched is already printed by the client; only jobs left in the background are announced
+        if (status.getState().isFinished() && !status.getJobId().equals(client.getWatchedJobId())) {
+            System.out.println("\n✓ Background job finished: " + status.getDescription() + " - " + status);
+        }
+    }
+}
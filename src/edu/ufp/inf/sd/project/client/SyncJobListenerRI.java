@@ -0,0 +1,14 @@
+package edu.ufp.inf.sd.project.client;
+
+import edu.ufp.inf.sd.project.server.SyncJobStatus;
+
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+
+public interface SyncJobListenerRI extends Remote {
+
+    /**
+     * Receives the progress of a background synchronization job, periodically while it runs and once when it finishes.
+     */
+    void progress(SyncJobStatus status) throws RemoteException;
+}
@@ -0,0 +1,22 @@
+#!/usr/bin/env bash
+#************************************************************************************
+# Description: Run every benchmark of the project and keep its report
+#************************************************************************************
+# Script usage: runbenchmark [seconds per run]
+
+# Ensure necessary environment variables are sourced
+source ./setenv.sh benchmark
+
+# One report per run, named after the time and commit, to compare releases
+export REPORTS_FOLDER=${JAVAPROJ}/benchmark-results
+mkdir -p ${REPORTS_FOLDER} || exit 1
+export REPORT=${REPORTS_FOLDER}/$(date +%Y%m%d-%H%M%S)-$(git -C ${JAVAPROJ} rev-parse --short HEAD 2>/dev/null || echo local).txt
+
+# Change to the classes directory
+cd ${ABSPATH2CLASSES} || exit 1  # exit if the directory doesn't exist
+
+java -cp ${CLASSPATH} ${JAVAPACKAGEROLE}.BenchmarkSuite ${1:-1} ${REPORT}
+echo "Report written to ${REPORT}"
+
+# Change to the JavaScript directory (from source path)
+cd ${ABSPATH2SRC}/${JAVASCRIPTSPATH} || exit 1  # exit if the directory doesn't exist
@@ -9,19 +9,25 @@ public class AuthServiceImpl extends UnicastRemoteObject implements AuthServiceR
     private static final long serialVersionUID = 1L;
 
     private final Database database;
+    private final Authenticator authenticator;
+    private final SessionPool sessionPool;
 
     public AuthServiceImpl(Database database) throws RemoteException {
         super();
         this.database = database;
+        this.authenticator = new Authenticator(database);
+        this.sessionPool = new SessionPool(database);
     }
 
     @Override
     public SessionRI login(String username, String password) throws RemoteException {
         System.out.println("Login attempt: " + username);
 
-        if (database.authenticateUser(username, password)) {
+        // Verified on the authentication pool; throws at once if it is saturated
+        if (authenticator.authenticate(username, password)) {
             System.out.println("Login successful for user: " + username);
-            SessionImpl session = new SessionImpl(username, database);
+            // Taken already exported from the pool
+            SessionImpl session = sessionPool.open(username);
             database.addSession(username, session);
             return session;
         } else {
@@ -30,6 +36,15 @@ public class AuthServiceImpl extends UnicastRemoteObject implements AuthServiceR
         }
     }
 
+    @Override
+    public SessionRI resume(String token) throws RemoteException {
+        SessionImpl session = sessionPool.resume(token);
+        if (session == null) {
+            System.out.println("Resumption refused: invalid token or closed session");
+        }
+        return session;
+    }
+
     @Override
     public boolean register(String username, String password) throws RemoteException {
         System.out.println("Registration attempt: " + username);
@@ -44,7 +59,12 @@ public class AuthServiceImpl extends UnicastRemoteObject implements AuthServiceR
             return false;
         }
 
-        boolean success = database.addUser(username, password);
+        if (database.getUser(username) != null) {
+            System.out.println("Registration failed for user: " + username + " (username already exists)");
+            return false;
+        }
+
+        boolean success = database.addUser(username, authenticator.hash(password));
         boolean addedFileSystem = database.addSubjectFileSystem(username, new SubjectFileSystemImpl(username, database));
 
         if (success && addedFileSystem) {
@@ -8,5 +8,13 @@ public interface AuthServiceRI extends Remote {
 
     SessionRI login(String username, String password) throws RemoteException;
 
+    /**
+     * Reattaches a client to the session a resumption token was issued for.
+     *
+     * @param token A token from {@link SessionRI#getResumptionToken()}
+     * @return The session, or null if the token is not valid or the session was closed
+     */
+    SessionRI resume(String token) throws RemoteException;
+
     boolean register(String username, String password) throws RemoteException;
 }
@@ -0,0 +1,168 @@
+package edu.ufp.inf.sd.project.server;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.rmi.RemoteException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hashes and verifies passwords on a bounded pool of its own, so a login storm cannot tie up the RMI transport threads
+ * with slow password hashing. When every hashing thread is busy and the queue is full, requests are rejected at once
+ * instead of waiting.
+ * <p>
+ * A successful verification is remembered for a short while as an HMAC of the password under a key that never leaves
+ * this process, so a client that reconnects within that window is verified without hashing again.
+ * <p>
+ * The pool size, queue limit and cache window are read from the system properties {@value #THREADS_PROPERTY},
+ * {@value #QUEUE_LIMIT_PROPERTY} and {@value #CACHE_SECONDS_PROPERTY}.
+ */
+public class Authenticator {
+
+    public static final String THREADS_PROPERTY = "edu.ufp.inf.sd.project.auth.threads";
+    public static final String QUEUE_LIMIT_PROPERTY = "edu.ufp.inf.sd.project.auth.queueLimit";
+    public static final String CACHE_SECONDS_PROPERTY = "edu.ufp.inf.sd.project.auth.cacheSeconds";
+
+    private static final long WAIT_TIMEOUT_SECONDS = 30;
+    private static final int MAX_CACHED = 10_000;
+    private static final AtomicInteger THREAD_COUNT = new AtomicInteger();
+
+    private final Database database;
+    private final ThreadPoolExecutor executor;
+    private final long cacheNanos;
+    private final byte[] cacheKey = new byte[32];
+    private final Map<String, CachedCredential> verified = new ConcurrentHashMap<>();
+
+    public Authenticator(Database database) {
+        this(database, Integer.getInteger(THREADS_PROPERTY, Runtime.getRuntime().availableProcessors()),
+                Integer.getInteger(QUEUE_LIMIT_PROPERTY, 64), Long.getLong(CACHE_SECONDS_PROPERTY, 60));
+    }
+
+    public Authenticator(Database database, int threads, int queueLimit, long cacheSeconds) {
+        this.database = database;
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueLimit), runnable -> {
+            Thread thread = new Thread(runnable, "auth-" + THREAD_COUNT.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }, new ThreadPoolExecutor.AbortPolicy());
+        this.cacheNanos = TimeUnit.SECONDS.toNanos(cacheSeconds);
+        new SecureRandom().nextBytes(cacheKey);
+    }
+
+    /**
+     * Checks the password of a user.
+     *
+     * @param username The username
+     * @param password The password
+     * @return true if the user exists and the password matches
+     * @throws RemoteException If the authentication pool is saturated or the verification timed out
+     */
+    public boolean authenticate(String username, String password) throws RemoteException {
+        User user = database.getUser(username);
+        if (user == null) {
+            return false;
+        }
+        String hash = user.getPasswordHash();
+        byte[] mac = mac(password);
+
+        CachedCredential cached = verified.get(username);
+        if (cached != null && cached.matches(hash, mac)) {
+            return true;
+        }
+
+        boolean valid = run(() -> user.validatePassword(password));
+        if (valid && !PasswordHasher.isHash(hash)) {
+            // Stored before passwords were hashed: store its hash, so the plain password leaves the store
+            try {
+                String newHash = run(() -> PasswordHasher.hash(password));
+                if (database.replacePasswordHash(username, hash, newHash)) {
+                    hash = newHash;
+                }
+            } catch (RemoteException e) {
+                System.err.println("Failed to hash the password of " + username + ", kept as is: " + e.getMessage());
+            }
+        }
+        if (valid && cacheNanos > 0) {
+            if (verified.size() >= MAX_CACHED) {
+                long now = System.nanoTime();
+                verified.values().removeIf(credential -> credential.expiresAt - now < 0);
+                if (verified.size() >= MAX_CACHED) {
+                    verified.clear();
+                }
+            }
+            verified.put(username, new CachedCredential(hash, mac, System.nanoTime() + cacheNanos));
+        }
+        return valid;
+    }
+
+    /**
+     * Hashes a new password.
+     *
+     * @param password The password
+     * @return The encoded hash
+     * @throws RemoteException If the authentication pool is saturated or hashing timed out
+     */
+    public String hash(String password) throws RemoteException {
+        return run(() -> PasswordHasher.hash(password));
+    }
+
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    private <T> T run(Callable<T> task) throws RemoteException {
+        Future<T> future;
+        try {
+            future = executor.submit(task);
+        } catch (RejectedExecutionException e) {
+            throw new RemoteException("Authentication service is busy, try again later");
+        }
+        try {
+            return future.get(WAIT_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (TimeoutException e) {
+            future.cancel(true);
+            throw new RemoteException("Authentication timed out, try again later");
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new RemoteException("Interrupted during authentication");
+        } catch (ExecutionException e) {
+            throw new RemoteException("Authentication failed", e.getCause());
+        }
+    }
+
+    private byte[] mac(String password) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(cacheKey, "HmacSHA256"));
+            return mac.doFinal(password.getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HmacSHA256 is not available", e);
+        }
+    }
+
+    /**
+     * A recently verified password, valid only as long as the stored hash it was verified against is unchanged.
+     */
+    private static final class CachedCredential {
+        private final String hash;
+        private final byte[] mac;
+        private final long expiresAt;
+
+        CachedCredential(String hash, byte[] mac, long expiresAt) {
+            this.hash = hash;
+            this.mac = mac;
+            this.expiresAt = expiresAt;
+        }
+
+        boolean matches(String currentHash, byte[] candidate) {
+            return System.nanoTime() - expiresAt < 0 && hash.equals(currentHash) && MessageDigest.isEqual(mac, candidate);
+        }
+    }
+}
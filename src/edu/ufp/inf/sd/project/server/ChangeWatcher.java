@@ -0,0 +1,375 @@
+package edu.ufp.inf.sd.project.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.rmi.RemoteException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * Captures the changes made to a tree of users' folders and hands them to a {@link Sink} as the operations a client
+ * would have sent. The server watches its root to publish the changes made directly under it to the observers of the
+ * user whose tree changed (see {@link #observersOf}); a client watches its user's folder to send its local edits.
+ * <p>
+ * Every directory of the tree is registered with a {@link WatchService} once, when the watcher starts or when the
+ * directory appears, so changes are delivered by the operating system instead of found by scanning. Events are
+ * debounced per path: a path is published once it has been quiet for {@value #DEBOUNCE_PROPERTY} milliseconds, as one
+ * operation that takes it from its state before the first event to its state now. A file created and deleted within
+ * the window is never published, and a file written many times is published once, with its final content.
+ * <p>
+ * Changes whose operations are already being sent, such as those applied through {@link SubjectFileSystemImpl}, are
+ * announced with {@link #expect} and not published again. Hidden files and directories, which hold the server's own
+ * state and unfinished transfers, are ignored, as are the subtrees passed to {@link #ignore}. Files larger than
+ * {@value #MAX_CONTENT_PROPERTY} bytes are not published, as operations carry the whole content of the file.
+ */
+public class ChangeWatcher {
+
+    public static final String DEBOUNCE_PROPERTY = "edu.ufp.inf.sd.project.watch.debounceMillis";
+    public static final String MAX_CONTENT_PROPERTY = "edu.ufp.inf.sd.project.watch.maxContentBytes";
+
+    private static final long EXPECT_MILLIS = 2000;
+
+    private static ChangeWatcher instance;
+
+    /**
+     * Receives the operations of the paths that became quiet, in the order they must be applied.
+     */
+    public interface Sink {
+        void changed(List<StateFileSystemOperation> operations);
+    }
+
+    private final Path root;
+    private final long debounceMillis;
+    private final long maxContentBytes;
+    private final Map<Path, Long> expected = new ConcurrentHashMap<>(); // path -> expiry of the expectation
+    private final Set<Path> ignored = ConcurrentHashMap.newKeySet();
+    // Only touched by the watcher thread
+    private final Map<WatchKey, Path> directories = new HashMap<>();
+    private final Set<Path> knownDirectories = new HashSet<>(); // to tell a deleted folder from a deleted file
+    private final Map<Path, PendingChange> pending = new LinkedHashMap<>();
+    private Sink sink;
+    private WatchService watchService;
+
+    public ChangeWatcher(File root, long debounceMillis, long maxContentBytes) {
+        this.root = root.toPath().toAbsolutePath().normalize();
+        this.debounceMillis = debounceMillis;
+        this.maxContentBytes = maxContentBytes;
+    }
+
+    protected static synchronized ChangeWatcher getChangeWatcherInstance() {
+        if (instance == null) {
+            instance = new ChangeWatcher(Storage.getStorageInstance().toFile(Storage.SERVER), Long.getLong(DEBOUNCE_PROPERTY, 200),
+                    Long.getLong(MAX_CONTENT_PROPERTY, 1024 * 1024));
+        }
+        return instance;
+    }
+
+    /**
+     * Registers a tree and starts handing its changes to a sink.
+     *
+     * @param tree The tree to watch: the root, or a folder under it
+     * @param sink Receives the operations
+     * @throws IOException If the watch service cannot be created or the tree cannot be registered
+     */
+    public synchronized void start(File tree, Sink sink) throws IOException {
+        if (watchService != null) {
+            return;
+        }
+        Path start = tree.toPath().toAbsolutePath().normalize();
+        if (!start.startsWith(root)) {
+            throw new IllegalArgumentException(tree + " is not under " + root);
+        }
+        this.sink = sink;
+        Files.createDirectories(start);
+        watchService = root.getFileSystem().newWatchService();
+        registerTree(start, false);
+        Thread thread = new Thread(this::watchLoop, "change-watcher");
+        thread.setDaemon(true);
+        thread.start();
+        System.out.println("Watching " + directories.size() + " directories under " + start);
+    }
+
+    public File getRoot() {
+        return root.toFile();
+    }
+
+    /**
+     * Stops watching. The changes not published yet are dropped.
+     */
+    public synchronized void stop() {
+        if (watchService != null) {
+            try {
+                watchService.close();
+            } catch (IOException e) {
+                System.err.println("Failed to close the watch service: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Ignores the changes under a folder, e.g. the copies of shared folders, which are written by synchronizations.
+     * Must be called before {@link #start}.
+     */
+    public void ignore(File subtree) {
+        ignored.add(subtree.toPath().toAbsolutePath().normalize());
+    }
+
+    /**
+     * Gets the sink that publishes every operation to the observers of its user's file system, on the server.
+     */
+    public static Sink observersOf(Database database) {
+        return operations -> {
+            for (StateFileSystemOperation operation : operations) {
+                try {
+                    SubjectFileSystemRI fileSystem = database.getSubjectFileSystem(operation.getUsername());
+                    if (fileSystem != null) {
+                        fileSystem.notifyObservers(operation);
+                        System.out.println("Captured " + operation.getType() + " " + String.join("/",
+                                operation.getParams().subList(0, Math.min(2, operation.getParams().size()))));
+                    }
+                } catch (RemoteException e) {
+                    System.err.println("Failed to publish a captured change: " + e.getMessage());
+                }
+            }
+        };
+    }
+
+    /**
+     * Announces an operation about to be applied through the remote API, so the changes it makes are not published
+     * again.
+     */
+    public void expect(StateFileSystemOperation operation) {
+        if (operation.getParams().isEmpty()) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        long expiry = now + debounceMillis + EXPECT_MILLIS;
+        // File operations create their folder too
+        Path folder = root.resolve(operation.getParams().get(0)).normalize();
+        expected.put(folder, expiry);
+        if (operation.getParams().size() > 1 && isFileOperation(operation.getType())) {
+            expected.put(folder.resolve(operation.getParams().get(1)).normalize(), expiry);
+        }
+        if (expected.size() > 1024) {
+            expected.values().removeIf(until -> until < now);
+        }
+    }
+
+    private void watchLoop() {
+        while (true) {
+            try {
+                WatchKey key = watchService.poll(debounceMillis, java.util.concurrent.TimeUnit.MILLISECONDS);
+                while (key != null) {
+                    processEvents(key);
+                    key = watchService.poll();
+                }
+                publishQuietChanges();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            } catch (RuntimeException e) {
+                System.err.println("Change watcher error: " + e.getMessage());
+            }
+        }
+    }
+
+    private void processEvents(WatchKey key) {
+        Path directory = directories.get(key);
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == OVERFLOW) {
+                // The operating system dropped events; what changed can only be found by synchronizing
+                System.err.println("Change events lost under " + directory + ", clients should synchronize");
+                continue;
+            }
+            if (directory == null) {
+                continue;
+            }
+            Path path = directory.resolve((Path) event.context());
+            if (isHidden(path)) {
+                continue;
+            }
+            if (event.kind() == ENTRY_CREATE && Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                // Watch it at once, so nothing created inside it is missed
+                registerTree(path, true);
+            }
+            record(path, event.kind());
+        }
+        if (!key.reset()) {
+            // The directory is gone
+            directories.remove(key);
+        }
+    }
+
+    private void record(Path path, WatchEvent.Kind<?> kind) {
+        PendingChange change = pending.get(path);
+        if (change == null) {
+            // What the path was before this burst of events: a create means it did not exist
+            boolean existed = kind != ENTRY_CREATE;
+            change = new PendingChange(existed);
+            pending.put(path, change);
+        }
+        change.lastEventMillis = System.currentTimeMillis();
+    }
+
+    private void publishQuietChanges() {
+        long now = System.currentTimeMillis();
+        List<Path> quiet = new ArrayList<>();
+        Iterator<Map.Entry<Path, PendingChange>> it = pending.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Path, PendingChange> entry = it.next();
+            if (entry.getValue().lastEventMillis <= now - debounceMillis) {
+                quiet.add(entry.getKey());
+            }
+        }
+        if (quiet.isEmpty()) {
+            return;
+        }
+        // Folders are created before what they hold, and deleted after it
+        Map<Path, Boolean> exists = new HashMap<>();
+        for (Path path : quiet) {
+            exists.put(path, Files.exists(path, LinkOption.NOFOLLOW_LINKS));
+        }
+        quiet.sort(Comparator.comparing((Path path) -> !exists.get(path))
+                .thenComparingInt(path -> exists.get(path) ? path.getNameCount() : -path.getNameCount()));
+
+        List<StateFileSystemOperation> operations = new ArrayList<>();
+        for (Path path : quiet) {
+            PendingChange change = pending.remove(path);
+            Long expiry = expected.get(path);
+            if (expiry != null && expiry >= now) {
+                continue;
+            }
+            try {
+                operations.addAll(toOperations(path, change));
+            } catch (IOException e) {
+                System.err.println("Failed to capture the change of " + path + ": " + e.getMessage());
+            }
+        }
+        if (!operations.isEmpty()) {
+            sink.changed(operations);
+        }
+    }
+
+    /**
+     * Gets the operations that take a path from its state before its events to its state now.
+     */
+    private List<StateFileSystemOperation> toOperations(Path path, PendingChange change) throws IOException {
+        Path relative = root.relativize(path);
+        if (relative.getNameCount() < 2) {
+            // The folder of a user itself, or a file directly under the root
+            return List.of();
+        }
+        String username = relative.getName(0).toString();
+        String parent = toOperationPath(relative.getParent());
+        String name = relative.getFileName().toString();
+        List<StateFileSystemOperation> operations = new ArrayList<>();
+
+        if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+            if (!change.existed) {
+                operations.add(operation(username, StateFileSystemOperation.OperationType.CREATEFOLDER, toOperationPath(relative)));
+            }
+        } else if (Files.isRegularFile(path, LinkOption.NOFOLLOW_LINKS)) {
+            long size = Files.size(path);
+            if (!change.existed) {
+                operations.add(operation(username, StateFileSystemOperation.OperationType.CREATEFILE, parent, name));
+            }
+            if (size > maxContentBytes) {
+                System.out.println("Not publishing the content of " + path + ": " + size + " bytes");
+            } else if (change.existed || size > 0) {
+                String content = new String(Files.readAllBytes(path), StandardCharsets.UTF_8);
+                operations.add(operation(username, StateFileSystemOperation.OperationType.UPDATEFILE, parent, name, content));
+            }
+        } else if (knownDirectories.remove(path) && change.existed) {
+            operations.add(operation(username, StateFileSystemOperation.OperationType.DELETEFOLDER, toOperationPath(relative)));
+        } else if (change.existed) {
+            operations.add(operation(username, StateFileSystemOperation.OperationType.DELETEFILE, parent, name));
+        }
+        return operations;
+    }
+
+    /**
+     * Registers a directory and all the directories under it. When the directory is new, the files and directories
+     * already inside it were created before it was watched, so they are recorded as created.
+     */
+    private void registerTree(Path start, boolean created) {
+        try {
+            Files.walkFileTree(start, new SimpleFileVisitor<>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                    if (isHidden(dir)) {
+                        return FileVisitResult.SKIP_SUBTREE;
+                    }
+                    // Registering a directory already watched returns its key
+                    directories.put(dir.register(watchService, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE), dir);
+                    knownDirectories.add(dir);
+                    if (created && !dir.equals(start)) {
+                        record(dir, ENTRY_CREATE);
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    if (created && !isHidden(file)) {
+                        record(file, ENTRY_CREATE);
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            System.err.println("Failed to watch " + start + ": " + e.getMessage());
+        }
+    }
+
+    private boolean isHidden(Path path) {
+        for (Path subtree : ignored) {
+            if (path.startsWith(subtree)) {
+                return true;
+            }
+        }
+        Path relative = root.relativize(path);
+        for (Path name : relative) {
+            if (name.toString().startsWith(".")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isFileOperation(StateFileSystemOperation.OperationType type) {
+        return type == StateFileSystemOperation.OperationType.CREATEFILE
+                || type == StateFileSystemOperation.OperationType.UPDATEFILE
+                || type == StateFileSystemOperation.OperationType.UPLOADFILE
+                || type == StateFileSystemOperation.OperationType.DELETEFILE;
+    }
+
+    private static String toOperationPath(Path relative) {
+        return relative.toString().replace(File.separatorChar, '/');
+    }
+
+    private static StateFileSystemOperation operation(String username, StateFileSystemOperation.OperationType type,
+                                                      String... params) {
+        return new StateFileSystemOperation(username, new ArrayList<>(Arrays.asList(params)), type);
+    }
+
+    /**
+     * The events of a path not published yet.
+     */
+    private static final class PendingChange {
+        private final boolean existed;
+        private long lastEventMillis;
+
+        PendingChange(boolean existed) {
+            this.existed = existed;
+        }
+    }
+}
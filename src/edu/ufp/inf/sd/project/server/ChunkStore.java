@@ -0,0 +1,384 @@
+package edu.ufp.inf.sd.project.server;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * Content-addressed store of file chunks kept under the server data root.
+ * Files are split with content-defined chunking (gear rolling hash), so an edit only changes the
+ * chunks around it, and every chunk is stored once under its SHA-256 name. Trees are described by
+ * named {@link Manifest}s, and a chunk is deleted once no manifest, nor file being read, references it anymore.
+ * <p>
+ * The shared views of the server, {@code <sharer>/shared/<owner>}, are kept only as manifests, and the files of a
+ * shared view are read from its chunks, see {@link TransferManager#openDownload}.
+ */
+public class ChunkStore {
+
+    private static final int MIN_CHUNK_SIZE = 2 * 1024;
+    private static final int MAX_CHUNK_SIZE = 64 * 1024;
+    // A boundary is declared when the 13 top bits of the gear hash are zero, giving ~8 KB average chunks
+    private static final int BOUNDARY_SHIFT = 64 - 13;
+    private static final long[] GEAR = new long[256];
+
+    static {
+        Random random = new Random(0x5344L);
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    private static ChunkStore instance;
+
+    private final File chunksDir;
+    private final File manifestsDir;
+    private final Map<String, Integer> referenceCounts = new HashMap<>();
+
+    /**
+     * Opens the store, rebuilding the reference counts from the stored manifests and
+     * deleting the chunks that are no longer referenced.
+     *
+     * @param root The directory of the store
+     */
+    public ChunkStore(File root) {
+        this.chunksDir = new File(root, "objects");
+        this.manifestsDir = new File(root, "manifests");
+        chunksDir.mkdirs();
+        manifestsDir.mkdirs();
+        rebuildReferenceCounts(manifestsDir);
+        int removed = collectGarbage();
+        System.out.println("Chunk store opened at " + root.getAbsolutePath() + " (" + referenceCounts.size()
+                + " chunks referenced, " + removed + " unreferenced removed)");
+    }
+
+    protected static synchronized ChunkStore getChunkStoreInstance() {
+        if (instance == null) {
+            instance = new ChunkStore(Storage.getStorageInstance().toFile(Storage.path(Storage.SERVER, ".chunks")));
+        }
+        return instance;
+    }
+
+    /**
+     * Chunks every file of an indexed directory tree into the store. Chunks already present are not written
+     * again, and files whose content hash is the same as in the previous manifest are not read at all.
+     * The returned manifest holds no references until it is {@link #commit committed}.
+     *
+     * @param directory The root of the tree
+     * @param index     The refreshed index of the tree
+     * @param previous  The manifest previously stored for the tree, or null
+     * @return The manifest of the tree
+     * @throws IOException If a file cannot be read or a chunk cannot be written
+     */
+    public Manifest snapshot(File directory, FileIndex index, Manifest previous) throws IOException {
+        Manifest manifest = new Manifest();
+        for (String path : index.getDirectories()) {
+            manifest.addDirectory(path);
+        }
+        for (Map.Entry<String, FileIndex.Entry> entry : index.getFiles().entrySet()) {
+            String path = entry.getKey();
+            String hash = entry.getValue().getHash();
+            Manifest.FileEntry known = previous != null ? previous.getFiles().get(path) : null;
+            if (known != null && hash.equals(known.getContentHash())) {
+                manifest.addFile(path, known);
+            } else {
+                manifest.addFile(path, storeFile(new File(directory, path), hash));
+            }
+        }
+        return manifest;
+    }
+
+    /**
+     * Splits one file into content-defined chunks and stores the missing ones.
+     *
+     * @param file        The file to store
+     * @param contentHash The content hash of the file, as found in its {@link FileIndex}
+     * @return The manifest entry of the file
+     * @throws IOException If the file cannot be read or a chunk cannot be written
+     */
+    public Manifest.FileEntry storeFile(File file, String contentHash) throws IOException {
+        List<String> chunks = new ArrayList<>();
+        MessageDigest digest = newDigest();
+        byte[] chunk = new byte[MAX_CHUNK_SIZE];
+        int length = 0;
+        long hash = 0;
+        long size = 0;
+
+        byte[] buffer = new byte[MAX_CHUNK_SIZE];
+
+        try (InputStream in = new FileInputStream(file)) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                for (int i = 0; i < read; i++) {
+                    int value = buffer[i] & 0xff;
+                    chunk[length++] = buffer[i];
+                    hash = (hash << 1) + GEAR[value];
+                    if ((length >= MIN_CHUNK_SIZE && (hash >>> BOUNDARY_SHIFT) == 0) || length == MAX_CHUNK_SIZE) {
+                        chunks.add(storeChunk(digest, chunk, length));
+                        size += length;
+                        length = 0;
+                        hash = 0;
+                    }
+                }
+            }
+        }
+        if (length > 0) {
+            chunks.add(storeChunk(digest, chunk, length));
+            size += length;
+        }
+        return new Manifest.FileEntry(size, chunks, contentHash);
+    }
+
+    private String storeChunk(MessageDigest digest, byte[] data, int length) throws IOException {
+        digest.reset();
+        digest.update(data, 0, length);
+        String name = toHex(digest.digest());
+        File target = chunkFile(name);
+        if (!target.exists()) {
+            target.getParentFile().mkdirs();
+            File temporary = File.createTempFile(name, ".tmp", target.getParentFile());
+            try (OutputStream out = new FileOutputStream(temporary)) {
+                out.write(data, 0, length);
+            }
+            Files.move(temporary.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        return name;
+    }
+
+    /**
+     * Snapshots an indexed directory tree and stores its manifest under a name.
+     * The snapshot is retried once if a chunk it relies on was released concurrently.
+     *
+     * @param name      The name of the manifest (e.g. "bob/shared/alice")
+     * @param directory The root of the tree
+     * @param index     The refreshed index of the tree
+     * @return The committed manifest
+     * @throws IOException If the tree cannot be stored
+     */
+    public Manifest commitTree(String name, File directory, FileIndex index) throws IOException {
+        try {
+            Manifest manifest = snapshot(directory, index, load(name));
+            commit(name, manifest);
+            return manifest;
+        } catch (MissingChunkException e) {
+            Manifest manifest = snapshot(directory, index, null);
+            commit(name, manifest);
+            return manifest;
+        }
+    }
+
+    /**
+     * Stores a manifest under a name, taking references on its chunks and releasing the ones
+     * of the manifest it replaces.
+     *
+     * @param name     The name of the manifest (e.g. "bob/shared/alice")
+     * @param manifest The manifest to store
+     * @throws IOException If the manifest cannot be written or one of its chunks is gone
+     */
+    public synchronized void commit(String name, Manifest manifest) throws IOException {
+        for (String chunk : manifest.getChunkReferences()) {
+            if (!referenceCounts.containsKey(chunk) && !chunkFile(chunk).exists()) {
+                throw new MissingChunkException(chunk);
+            }
+        }
+        Manifest previous = load(name);
+        File file = manifestFile(name);
+        file.getParentFile().mkdirs();
+        File temporary = new File(file.getParentFile(), file.getName() + ".tmp");
+        try (ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(temporary)))) {
+            out.writeObject(manifest);
+        }
+        Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+        addReferences(manifest.getChunkReferences());
+        if (previous != null) {
+            releaseReferences(previous.getChunkReferences());
+        }
+    }
+
+    /**
+     * Removes a manifest and deletes the chunks that were referenced by it only.
+     *
+     * @param name The name of the manifest
+     * @return true if the manifest existed
+     */
+    public synchronized boolean release(String name) {
+        Manifest manifest = load(name);
+        if (manifest == null) {
+            return false;
+        }
+        manifestFile(name).delete();
+        releaseReferences(manifest.getChunkReferences());
+        return true;
+    }
+
+    /**
+     * Loads a stored manifest.
+     *
+     * @param name The name of the manifest
+     * @return The manifest, or null if there is none with that name
+     */
+    public Manifest load(String name) {
+        File file = manifestFile(name);
+        if (!file.exists()) {
+            return null;
+        }
+        try (ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            return (Manifest) in.readObject();
+        } catch (IOException | ClassNotFoundException e) {
+            System.err.println("Failed to read manifest " + name + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Opens a file of a stored manifest for reading. Its chunks are kept until it is {@link #close closed}, even if the
+     * manifest is replaced or released meanwhile.
+     *
+     * @param name The name of the manifest (e.g. "bob/shared/alice")
+     * @param path The path of the file in the tree of the manifest
+     * @return The file, or null if there is no such manifest or file
+     */
+    public synchronized Manifest.FileEntry open(String name, String path) {
+        Manifest manifest = load(name);
+        Manifest.FileEntry entry = manifest == null ? null : manifest.getFiles().get(path);
+        if (entry != null) {
+            addReferences(entry.getChunks());
+        }
+        return entry;
+    }
+
+    /**
+     * Releases a file opened with {@link #open}.
+     */
+    public synchronized void close(Manifest.FileEntry entry) {
+        releaseReferences(entry.getChunks());
+    }
+
+    /**
+     * Reads part of a file of a manifest from its chunks.
+     *
+     * @param entry  A file opened with {@link #open}
+     * @param offset The offset in the file
+     * @param length The number of bytes to read
+     * @return The bytes read, fewer than requested only at the end of the file
+     * @throws IOException If a chunk cannot be read
+     */
+    public byte[] read(Manifest.FileEntry entry, long offset, int length) throws IOException {
+        byte[] data = new byte[(int) Math.max(0, Math.min(length, entry.getSize() - offset))];
+        int filled = 0;
+        long chunkStart = 0;
+        for (String chunk : entry.getChunks()) {
+            if (filled == data.length) {
+                break;
+            }
+            File file = chunkFile(chunk);
+            long chunkEnd = chunkStart + file.length();
+            long position = offset + filled;
+            if (chunkEnd > position) {
+                int count = (int) Math.min(data.length - filled, chunkEnd - position);
+                try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+                    in.seek(position - chunkStart);
+                    in.readFully(data, filled, count);
+                }
+                filled += count;
+            }
+            chunkStart = chunkEnd;
+        }
+        if (filled < data.length) {
+            throw new EOFException("Chunks of the file end at " + (offset + filled) + " of " + entry.getSize() + " bytes");
+        }
+        return data;
+    }
+
+    private void addReferences(List<String> chunks) {
+        for (String chunk : chunks) {
+            referenceCounts.merge(chunk, 1, Integer::sum);
+        }
+    }
+
+    private void releaseReferences(List<String> chunks) {
+        for (String chunk : chunks) {
+            Integer remaining = referenceCounts.computeIfPresent(chunk, (k, count) -> count > 1 ? count - 1 : null);
+            if (remaining == null) {
+                chunkFile(chunk).delete();
+            }
+        }
+    }
+
+    private void rebuildReferenceCounts(File directory) {
+        File[] children = directory.listFiles();
+        if (children == null) {
+            return;
+        }
+        for (File child : children) {
+            if (child.isDirectory()) {
+                rebuildReferenceCounts(child);
+            } else if (child.getName().endsWith(".manifest")) {
+                String path = manifestsDir.toPath().relativize(child.toPath()).toString().replace(File.separatorChar, '/');
+                Manifest manifest = load(path.substring(0, path.length() - ".manifest".length()));
+                if (manifest != null) {
+                    addReferences(manifest.getChunkReferences());
+                }
+            }
+        }
+    }
+
+    private int collectGarbage() {
+        int removed = 0;
+        File[] buckets = chunksDir.listFiles();
+        if (buckets == null) {
+            return 0;
+        }
+        for (File bucket : buckets) {
+            File[] chunks = bucket.listFiles();
+            if (chunks == null) {
+                continue;
+            }
+            for (File chunk : chunks) {
+                if (!referenceCounts.containsKey(chunk.getName()) && chunk.delete()) {
+                    removed++;
+                }
+            }
+        }
+        return removed;
+    }
+
+    private File chunkFile(String name) {
+        return new File(new File(chunksDir, name.substring(0, 2)), name);
+    }
+
+    private File manifestFile(String name) {
+        return new File(manifestsDir, name + ".manifest");
+    }
+
+    /**
+     * Signals that a snapshot referenced a chunk that was deleted before the manifest was committed.
+     */
+    private static final class MissingChunkException extends IOException {
+        @Serial
+        private static final long serialVersionUID = 1L;
+
+        MissingChunkException(String chunk) {
+            super("Chunk " + chunk + " was released before the manifest was committed");
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+}
@@ -0,0 +1,217 @@
+package edu.ufp.inf.sd.project.server;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * How file contents are compressed on the wire, as Deflater levels.
+ * <p>
+ * A transfer uses the codec the server prefers, {@value #CODEC_PROPERTY} ({@link #FAST} by default), if the client
+ * accepts it, and none otherwise. Payloads shorter than {@value #MIN_BYTES_PROPERTY} bytes (512 by default), and those
+ * that do not get smaller, are sent as they are, so compressing never costs more than a marker byte. The bytes saved
+ * and the CPU time spent compressing and decompressing are counted in {@link Stats}, by the side that sends and by the
+ * side that receives, and in total in {@link #TOTAL}.
+ */
+public enum Compression {
+    NONE(Deflater.NO_COMPRESSION),
+    FAST(Deflater.BEST_SPEED),
+    DEFAULT(Deflater.DEFAULT_COMPRESSION),
+    BEST(Deflater.BEST_COMPRESSION);
+
+    public static final String CODEC_PROPERTY = "edu.ufp.inf.sd.project.compression.codec";
+    public static final String MIN_BYTES_PROPERTY = "edu.ufp.inf.sd.project.compression.minBytes";
+
+    public static final Stats TOTAL = new Stats();
+
+    private static final byte STORED = 0;
+    private static final byte DEFLATED = 1;
+    private static final int MIN_BYTES = Integer.getInteger(MIN_BYTES_PROPERTY, 512);
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+    private static final ThreadLocal<Inflater> INFLATERS = ThreadLocal.withInitial(Inflater::new);
+
+    // Deflaters are costly to create, so each thread keeps one per level
+    private final ThreadLocal<Deflater> deflaters;
+
+    Compression(int level) {
+        this.deflaters = ThreadLocal.withInitial(() -> new Deflater(level));
+    }
+
+    /**
+     * @return The codec this side prefers, from {@value #CODEC_PROPERTY}
+     */
+    public static Compression preferred() {
+        return valueOf(System.getProperty(CODEC_PROPERTY, FAST.name()));
+    }
+
+    /**
+     * @return The codecs this side accepts: none if it prefers none, any otherwise
+     */
+    public static Set<Compression> accepted() {
+        return preferred() == NONE ? EnumSet.of(NONE) : EnumSet.allOf(Compression.class);
+    }
+
+    /**
+     * @return The length from which payloads are compressed, from {@value #MIN_BYTES_PROPERTY}
+     */
+    public static int getMinBytes() {
+        return MIN_BYTES;
+    }
+
+    /**
+     * Chooses the codec of a transfer.
+     *
+     * @param accepted The codecs the other side accepts, or null if it does not compress
+     * @return The preferred codec if accepted, otherwise none
+     */
+    public static Compression negotiate(Set<Compression> accepted) {
+        Compression preferred = preferred();
+        return accepted != null && accepted.contains(preferred) ? preferred : NONE;
+    }
+
+    /**
+     * Compresses a payload, if it is long enough and gets smaller.
+     *
+     * @return The compressed bytes, or null to send the payload as it is
+     */
+    public byte[] deflate(byte[] data, Stats stats) {
+        if (this == NONE || data.length < MIN_BYTES) {
+            stats.record(data.length, data.length, 0);
+            return null;
+        }
+        long start = cpuTime();
+        Deflater deflater = deflaters.get();
+        deflater.reset();
+        deflater.setInput(data);
+        deflater.finish();
+        // Only worth it if it ends up smaller than the payload
+        byte[] buffer = new byte[data.length - 1];
+        int size = 0;
+        while (!deflater.finished() && size < buffer.length) {
+            size += deflater.deflate(buffer, size, buffer.length - size);
+        }
+        byte[] compressed = deflater.finished() ? Arrays.copyOf(buffer, size) : null;
+        stats.record(data.length, compressed == null ? data.length : compressed.length, cpuTime() - start);
+        return compressed;
+    }
+
+    /**
+     * Decompresses a payload compressed by {@link #deflate}.
+     *
+     * @param length The length of the payload
+     * @throws IOException If the bytes are not a compressed payload of that length
+     */
+    public static byte[] inflate(byte[] compressed, int offset, int compressedLength, int length, Stats stats) throws IOException {
+        long start = cpuTime();
+        Inflater inflater = INFLATERS.get();
+        inflater.reset();
+        inflater.setInput(compressed, offset, compressedLength);
+        byte[] data = new byte[length];
+        try {
+            int size = 0;
+            while (size < length && !inflater.finished()) {
+                int inflated = inflater.inflate(data, size, length - size);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                size += inflated;
+            }
+            if (size != length || !inflater.finished()) {
+                throw new StreamCorruptedException("Compressed payload of " + size + " bytes instead of " + length);
+            }
+        } catch (DataFormatException e) {
+            throw new StreamCorruptedException("Corrupted compressed payload: " + e.getMessage());
+        }
+        stats.record(length, compressedLength, cpuTime() - start);
+        return data;
+    }
+
+    /**
+     * Frames a payload for the wire: a marker byte, then the payload compressed or as it is.
+     */
+    public byte[] encode(byte[] data, Stats stats) {
+        byte[] compressed = deflate(data, stats);
+        byte[] encoded = new byte[1 + (compressed == null ? data.length : compressed.length)];
+        encoded[0] = compressed == null ? STORED : DEFLATED;
+        System.arraycopy(compressed == null ? data : compressed, 0, encoded, 1, encoded.length - 1);
+        stats.record(0, 1, 0);
+        return encoded;
+    }
+
+    /**
+     * Reads a payload framed by {@link #encode}.
+     *
+     * @param length The length of the payload
+     */
+    public static byte[] decode(byte[] encoded, int length, Stats stats) throws IOException {
+        if (encoded.length == 0) {
+            throw new StreamCorruptedException("Empty payload");
+        }
+        stats.record(0, 1, 0);
+        if (encoded[0] == STORED) {
+            stats.record(encoded.length - 1, encoded.length - 1, 0);
+            return Arrays.copyOfRange(encoded, 1, encoded.length);
+        }
+        if (encoded[0] != DEFLATED) {
+            throw new StreamCorruptedException("Unknown payload marker " + encoded[0]);
+        }
+        return inflate(encoded, 1, encoded.length - 1, length, stats);
+    }
+
+    private static long cpuTime() {
+        return THREADS.isCurrentThreadCpuTimeSupported() ? THREADS.getCurrentThreadCpuTime() : System.nanoTime();
+    }
+
+    /**
+     * Counts what compression saved and cost.
+     */
+    public static final class Stats {
+        private final LongAdder payloads = new LongAdder();
+        private final LongAdder bytes = new LongAdder();
+        private final LongAdder wireBytes = new LongAdder();
+        private final LongAdder cpuNanos = new LongAdder();
+
+        void record(long payloadBytes, long sentBytes, long nanos) {
+            if (this != TOTAL) {
+                TOTAL.record(payloadBytes, sentBytes, nanos);
+            }
+            if (payloadBytes > 0) {
+                payloads.increment();
+            }
+            bytes.add(payloadBytes);
+            wireBytes.add(sentBytes);
+            cpuNanos.add(nanos);
+        }
+
+        public long getPayloads() {
+            return payloads.sum();
+        }
+
+        /**
+         * @return The bytes compression kept off the wire; negative if the markers cost more than it saved
+         */
+        public long getBytesSaved() {
+            return bytes.sum() - wireBytes.sum();
+        }
+
+        public long getCpuNanos() {
+            return cpuNanos.sum();
+        }
+
+        @Override
+        public String toString() {
+            long total = bytes.sum();
+            long saved = getBytesSaved();
+            return String.format("%d payloads, %d -> %d bytes, saved %d (%.0f%%), %.1f ms CPU", getPayloads(), total,
+                    wireBytes.sum(), saved, total == 0 ? 0.0 : 100.0 * saved / total, getCpuNanos() / 1e6);
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package edu.ufp.inf.sd.project.server;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Whole-file copy engine. Copies go through {@link FileChannel#transferTo}, so the bytes are moved by the
+ * kernel without passing through the Java heap. Read-only sources can be hard linked instead, since
+ * nobody is allowed to modify them in place.
+ * <p>
+ * A destination is never written in place: the copy is written next to it and moved over it, so a destination that
+ * is a hard link gets a file of its own instead of truncating the file it shares with its source. The writers of the
+ * storage break links the same way, see {@link #breakLink}.
+ */
+public class CopyEngine {
+
+    /**
+     * Copies a file with {@link FileChannel#transferTo} to a temporary file next to the destination, and moves it over
+     * the destination.
+     *
+     * @param source      The file to copy
+     * @param destination The file to write
+     * @return The statistics of this copy
+     * @throws IOException If the copy fails
+     */
+    public SyncStats transfer(File source, File destination) throws IOException {
+        long start = System.nanoTime();
+        SyncStats stats = new SyncStats();
+        stats.files = 1;
+
+        File temporary = new File(destination.getParentFile(), "." + destination.getName() + ".copy");
+        try (FileChannel in = new FileInputStream(source).getChannel();
+             FileChannel out = new FileOutputStream(temporary).getChannel()) {
+            long size = in.size();
+            long position = 0;
+            while (position < size) {
+                long transferred = in.transferTo(position, size - position, out);
+                if (transferred <= 0) {
+                    break;
+                }
+                position += transferred;
+            }
+            stats.literalBytes = position;
+            stats.bytesWritten = position;
+            stats.copiedBytes = position;
+        } catch (IOException e) {
+            Files.deleteIfExists(temporary.toPath());
+            throw e;
+        }
+        replace(temporary, destination);
+        stats.elapsedNanos = System.nanoTime() - start;
+        stats.copyNanos = stats.elapsedNanos;
+        return stats;
+    }
+
+    /**
+     * Hard links the destination to a read-only source. Writable sources, and sources that cannot be linked
+     * (e.g. on another file store), are copied with {@link #transfer} instead.
+     *
+     * @param source      The file to link
+     * @param destination The link to create, replacing any existing file
+     * @return The statistics of this link or copy
+     * @throws IOException If both linking and copying fail
+     */
+    public SyncStats link(File source, File destination) throws IOException {
+        if (!isImmutable(source)) {
+            return transfer(source, destination);
+        }
+
+        long start = System.nanoTime();
+        Path sourcePath = source.toPath();
+        Path destinationPath = destination.toPath();
+        SyncStats stats = new SyncStats();
+        stats.files = 1;
+
+        if (!Files.exists(destinationPath) || !Files.isSameFile(sourcePath, destinationPath)) {
+            try {
+                Files.deleteIfExists(destinationPath);
+                Files.createLink(destinationPath, sourcePath);
+            } catch (IOException | UnsupportedOperationException e) {
+                System.out.println("Could not link " + source.getName() + " (" + e.getMessage() + "), copying instead");
+                return transfer(source, destination);
+            }
+        }
+        stats.linkedBytes = source.length();
+        stats.elapsedNanos = System.nanoTime() - start;
+        return stats;
+    }
+
+    /**
+     * @return true if the file has other names, as the hard links made by {@link #link} do
+     */
+    static boolean isLinked(File file) {
+        try {
+            Object links = Files.getAttribute(file.toPath(), "unix:nlink");
+            return links instanceof Integer && (Integer) links > 1;
+        } catch (IOException | UnsupportedOperationException | IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Gives a hard linked file a copy of the data of its own, so writing it does not write the other names of the file.
+     *
+     * @param file        The file about to be written
+     * @param keepContent  false if it is about to be replaced, so the data need not be copied
+     * @throws IOException If the copy fails
+     */
+    static void breakLink(File file, boolean keepContent) throws IOException {
+        if (!isLinked(file)) {
+            return;
+        }
+        if (!keepContent) {
+            Files.delete(file.toPath());
+            return;
+        }
+        File temporary = new File(file.getParentFile(), "." + file.getName() + ".copy");
+        Files.copy(file.toPath(), temporary.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES);
+        replace(temporary, file);
+    }
+
+    /**
+     * Moves a temporary file over the file it replaces, atomically where the file system can.
+     */
+    static void replace(File temporary, File destination) throws IOException {
+        try {
+            Files.move(temporary.toPath(), destination.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            Files.move(temporary.toPath(), destination.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * A source is considered immutable when it is read-only, which is the only case where a hard link cannot
+     * be written through by its owner. Nothing in the server makes a file read-only: the files of its users are
+     * written through the {@link Storage} and stay writable, so {@link SyncMode#LINK} only links the files an
+     * administrator made read-only on the server's disk, and copies every other file.
+     */
+    static boolean isImmutable(File file) {
+        return file.isFile() && !file.canWrite();
+    }
+}
@@ -4,7 +4,17 @@ import java.io.*;
 import java.rmi.RemoteException;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
+/**
+ * Registry of users, sessions, file systems and shares.
+ * <p>
+ * Nothing here locks the whole registry: lookups and in-memory changes use the atomic operations of concurrent maps,
+ * and changes that must be journaled before they are applied only lock one of {@value #STRIPES} stripes, chosen by
+ * the username they change. Compacting the store is the only exclusive operation; it waits for the journaled changes
+ * in progress so the snapshot it writes contains every one of them.
+ */
 public class Database implements Serializable {
 
     private static Database instance;
@@ -12,26 +22,76 @@ public class Database implements Serializable {
     @Serial
     private static final long serialVersionUID = 1L;
 
+    private static final int STRIPES = 256;
+
     private final Map<String, User> users;
     private final Map<String, SessionRI> sessions;
     private final Map<String, SubjectFileSystemRI> subjectFileSystems;
-    private final Map<String, Map<String, SubjectFileSystemRI>> userSharedFolders; // username -> (owner -> set of folderNames)
+    private final Map<String, Map<String, SubjectFileSystemRI>> userSharedFolders; // username -> (owner -> owner's file system)
+    private final Map<String, Set<String>> storedSharedFolders; // username -> owners loaded from the store, not yet in userSharedFolders
+    private final Map<String, Set<String>> sharers; // owner -> usernames the owner shares with
+    private final transient DatabaseStore store;
+    private final transient Object[] stripes = new Object[STRIPES];
+    // Journaled changes hold the read lock, compaction holds the write lock
+    private final transient ReadWriteLock compactionLock = new ReentrantReadWriteLock();
 
     /**
      * Constructor that initializes the database.
-     * Attempts to load existing data from file if available.
+     * Loads the users and shares kept in the store. The server uses {@link #getDatabaseInstance()}.
+     *
+     * @param store The store of the users and shares
      */
-    private Database() {
+    public Database(DatabaseStore store) {
         // Initialize with concurrent collections for thread safety
         users = new ConcurrentHashMap<>();
         sessions = new ConcurrentHashMap<>();
         subjectFileSystems = new ConcurrentHashMap<>();
         userSharedFolders = new ConcurrentHashMap<>();
+        storedSharedFolders = new ConcurrentHashMap<>();
+        sharers = new ConcurrentHashMap<>();
+        this.store = store;
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Object();
+        }
+
+        long start = System.nanoTime();
+        try {
+            store.load(new DatabaseStore.Loader() {
+                @Override
+                public void userAdded(String username, String password) {
+                    users.putIfAbsent(username, new User(username, password));
+                }
+
+                @Override
+                public void passwordChanged(String username, String password) {
+                    users.computeIfPresent(username, (k, user) -> new User(username, password));
+                }
+
+                @Override
+                public void shareAdded(String target, String owner) {
+                    storedSharedFolders.computeIfAbsent(target, k -> ConcurrentHashMap.newKeySet()).add(owner);
+                    sharers.computeIfAbsent(owner, k -> ConcurrentHashMap.newKeySet()).add(target);
+                }
+
+                @Override
+                public void shareRemoved(String target, String owner) {
+                    Set<String> owners = storedSharedFolders.get(target);
+                    if (owners != null) {
+                        owners.remove(owner);
+                    }
+                    removeSharer(owner, target);
+                }
+            });
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to load the database", e);
+        }
+        System.out.println("Database loaded " + users.size() + " users and the shares of " + storedSharedFolders.size()
+                + " users in " + (System.nanoTime() - start) / 1_000_000 + " ms");
     }
 
-    protected static Database getDatabaseInstance() {
+    protected static synchronized Database getDatabaseInstance() {
         if (instance == null) {
-            instance = new Database();
+            instance = new Database(DatabaseStore.getDefaultStore());
         }
         return instance;
     }
@@ -39,15 +99,33 @@ public class Database implements Serializable {
     /**
      * Adds a new user to the database.
      *
-     * @param username The username
-     * @param password The password (should be hashed in production)
+     * @param username     The username
+     * @param passwordHash The password hash (see {@link PasswordHasher}); a plain password is hashed here, on the
+     *                     calling thread, so the store never holds one
      * @return true if user was added successfully, false if username already exists
      */
-    public synchronized boolean addUser(String username, String password) {
-        if (users.containsKey(username)) {
-            return false;
+    public boolean addUser(String username, String passwordHash) {
+        if (!PasswordHasher.isHash(passwordHash)) {
+            passwordHash = PasswordHasher.hash(passwordHash);
         }
-        users.put(username, new User(username, password));
+        compactionLock.readLock().lock();
+        try {
+            synchronized (stripe(username)) {
+                if (users.containsKey(username)) {
+                    return false;
+                }
+                try {
+                    store.appendUser(username, passwordHash);
+                } catch (IOException e) {
+                    System.err.println("Failed to store user " + username + ": " + e.getMessage());
+                    return false;
+                }
+                users.put(username, new User(username, passwordHash));
+            }
+        } finally {
+            compactionLock.readLock().unlock();
+        }
+        compactIfNeeded();
         return true;
     }
 
@@ -63,6 +141,7 @@ public class Database implements Serializable {
 
     /**
      * Authenticates a user with username and password.
+     * Hashes the password on the calling thread; the server authenticates through an {@link Authenticator} instead.
      *
      * @param username The username
      * @param password The password
@@ -70,77 +149,229 @@ public class Database implements Serializable {
      */
     public boolean authenticateUser(String username, String password) {
         User user = getUser(username);
-        return user != null && user.validatePassword(password);
+        if (user == null || !user.validatePassword(password)) {
+            return false;
+        }
+        if (!PasswordHasher.isHash(user.getPasswordHash())) {
+            replacePasswordHash(username, user.getPasswordHash(), PasswordHasher.hash(password));
+        }
+        return true;
     }
 
-    public synchronized boolean addSession(String username, SessionRI session) throws RemoteException {
-        if (sessions.containsKey(username)) {
-            return false;
+    /**
+     * Replaces the password a user was stored with before passwords were hashed by its hash, once it has been
+     * verified. The change is journaled like a new user, so the plain password is gone from the store once the journal
+     * is next folded into a snapshot.
+     *
+     * @param username     The username
+     * @param passwordHash The password the user is stored with
+     * @param newHash      The hash of that password (see {@link PasswordHasher})
+     * @return true if it was replaced, false if the password of the user changed meanwhile or could not be stored
+     */
+    public boolean replacePasswordHash(String username, String passwordHash, String newHash) {
+        compactionLock.readLock().lock();
+        try {
+            synchronized (stripe(username)) {
+                User user = users.get(username);
+                if (user == null || !user.getPasswordHash().equals(passwordHash)) {
+                    return false;
+                }
+                try {
+                    store.appendPassword(username, newHash);
+                } catch (IOException e) {
+                    System.err.println("Failed to store the password of " + username + ": " + e.getMessage());
+                    return false;
+                }
+                users.put(username, new User(username, newHash));
+            }
+        } finally {
+            compactionLock.readLock().unlock();
         }
-        sessions.put(username, session);
+        compactIfNeeded();
+        System.out.println("Stored the password of " + username + " hashed");
         return true;
     }
 
+    public boolean addSession(String username, SessionRI session) throws RemoteException {
+        return sessions.putIfAbsent(username, session) == null;
+    }
+
     public SessionRI getSession(String username) throws RemoteException {
-        if (!sessions.containsKey(username)) {
-            return null;
-        }
         return sessions.get(username);
     }
 
-    public synchronized boolean removeSession(String username) throws RemoteException {
-        if (!sessions.containsKey(username)) {
-            return false;
-        }
-        sessions.remove(username);
-        return true;
+    public boolean removeSession(String username) throws RemoteException {
+        return sessions.remove(username) != null;
     }
 
-    public synchronized boolean addSubjectFileSystem(String username, SubjectFileSystemRI fileSystem) throws RemoteException {
-        if (subjectFileSystems.containsKey(username)) {
-            return false;
-        }
-        subjectFileSystems.put(username, fileSystem);
-        return true;
+    /**
+     * Removes the session of a user only if it is the given one, so closing a stale session cannot remove a newer one.
+     *
+     * @return true if the session was removed
+     */
+    public boolean removeSession(String username, SessionRI session) {
+        return sessions.remove(username, session);
+    }
+
+    public boolean addSubjectFileSystem(String username, SubjectFileSystemRI fileSystem) throws RemoteException {
+        return subjectFileSystems.putIfAbsent(username, fileSystem) == null;
     }
 
+    /**
+     * Gets the file system of a user. The file systems of users loaded from the store are created on first use.
+     *
+     * @param username The username
+     * @return The file system, or null if the user does not exist
+     */
     public SubjectFileSystemRI getSubjectFileSystem(String username) throws RemoteException {
-        if (!subjectFileSystems.containsKey(username)) {
-            return null;
+        SubjectFileSystemRI fileSystem = subjectFileSystems.get(username);
+        if (fileSystem != null || !users.containsKey(username)) {
+            return fileSystem;
+        }
+        try {
+            return subjectFileSystems.computeIfAbsent(username, k -> {
+                try {
+                    return new SubjectFileSystemImpl(k, this);
+                } catch (RemoteException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw (RemoteException) e.getCause();
         }
-        return subjectFileSystems.get(username);
     }
 
-    public synchronized boolean removeSubjectFileSystem(String username) throws RemoteException {
-        if (!subjectFileSystems.containsKey(username)) {
-            return false;
+    public boolean removeSubjectFileSystem(String username) throws RemoteException {
+        return subjectFileSystems.remove(username) != null;
+    }
+
+    public boolean addUserSharedFolder(String username, String owner, SubjectFileSystemRI subjectFileSystem) throws RemoteException {
+        compactionLock.readLock().lock();
+        try {
+            synchronized (stripe(username)) {
+                try {
+                    store.appendShare(username, owner);
+                } catch (IOException e) {
+                    throw new RemoteException("Failed to store the share of " + owner + " with " + username, e);
+                }
+                userSharedFolders.computeIfAbsent(username, k -> new ConcurrentHashMap<>()).put(owner, subjectFileSystem);
+                sharers.computeIfAbsent(owner, k -> ConcurrentHashMap.newKeySet()).add(username);
+            }
+        } finally {
+            compactionLock.readLock().unlock();
         }
-        subjectFileSystems.remove(username);
+        compactIfNeeded();
         return true;
     }
 
-    public synchronized boolean addUserSharedFolder(String username, String owner, SubjectFileSystemRI subjectFileSystem) throws RemoteException {
-        if (!userSharedFolders.containsKey(username)) {
-            userSharedFolders.put(username, new HashMap<>());
+    public Map<String, SubjectFileSystemRI> getUserSharedFolders(String username) throws RemoteException {
+        // Shares loaded from the store point at the owners' file systems once they are first asked for
+        if (storedSharedFolders.containsKey(username)) {
+            compactionLock.readLock().lock();
+            try {
+                synchronized (stripe(username)) {
+                    Set<String> storedOwners = storedSharedFolders.get(username);
+                    if (storedOwners != null) {
+                        for (String owner : storedOwners) {
+                            SubjectFileSystemRI fileSystem = getSubjectFileSystem(owner);
+                            if (fileSystem != null) {
+                                userSharedFolders.computeIfAbsent(username, k -> new ConcurrentHashMap<>()).putIfAbsent(owner, fileSystem);
+                            }
+                        }
+                        storedSharedFolders.remove(username);
+                    }
+                }
+            } finally {
+                compactionLock.readLock().unlock();
+            }
         }
+        return userSharedFolders.get(username);
+    }
 
-        Map<String, SubjectFileSystemRI> existingSharedFolders = userSharedFolders.get(username);
-        existingSharedFolders.put(owner, subjectFileSystem);
+    public boolean removeUserSharedFolder(String owner, String username, SubjectFileSystemRI subjectFileSystem) throws RemoteException {
+        compactionLock.readLock().lock();
+        try {
+            synchronized (stripe(username)) {
+                Map<String, SubjectFileSystemRI> sharedFolders = userSharedFolders.get(username);
+                Set<String> storedOwners = storedSharedFolders.get(username);
+                boolean shared = (sharedFolders != null && sharedFolders.containsKey(owner)) || (storedOwners != null && storedOwners.contains(owner));
+                if (!shared) {
+                    return false;
+                }
+                try {
+                    store.appendUnshare(username, owner);
+                } catch (IOException e) {
+                    throw new RemoteException("Failed to store the unshare of " + owner + " with " + username, e);
+                }
+                if (sharedFolders != null) {
+                    sharedFolders.remove(owner);
+                }
+                if (storedOwners != null) {
+                    storedOwners.remove(owner);
+                }
+                removeSharer(owner, username);
+            }
+        } finally {
+            compactionLock.readLock().unlock();
+        }
+        compactIfNeeded();
         return true;
     }
 
-    public synchronized Map<String, SubjectFileSystemRI> getUserSharedFolders(String username) throws RemoteException {
-        if (!userSharedFolders.containsKey(username)) {
-            return null;
+    /**
+     * Gets the users an owner shares its folder with.
+     *
+     * @param owner The owner
+     * @return A live, read-only view of the usernames, empty if the owner shares with no one
+     */
+    public Set<String> getSharers(String owner) {
+        Set<String> targets = sharers.get(owner);
+        return targets == null ? Collections.emptySet() : Collections.unmodifiableSet(targets);
+    }
+
+    private void removeSharer(String owner, String target) {
+        Set<String> targets = sharers.get(owner);
+        if (targets != null) {
+            targets.remove(target);
         }
-        return userSharedFolders.get(username);
     }
 
-    public synchronized boolean removeUserSharedFolder(String owner, String username, SubjectFileSystemRI subjectFileSystem) throws RemoteException {
-        if (!userSharedFolders.containsKey(owner)) {
-            return false;
+    private Object stripe(String username) {
+        int hash = username.hashCode();
+        return stripes[(hash ^ (hash >>> 16)) & (STRIPES - 1)];
+    }
+
+    /**
+     * Folds the journal of the store into a new snapshot once it has grown large enough.
+     * Must not be called while holding a stripe or the compaction read lock.
+     */
+    private void compactIfNeeded() {
+        if (!store.needsCompaction()) {
+            return;
+        }
+        compactionLock.writeLock().lock();
+        try {
+            // Another change may have compacted the store while this one waited
+            if (!store.needsCompaction()) {
+                return;
+            }
+            Map<String, String> passwords = new HashMap<>();
+            for (User user : users.values()) {
+                passwords.put(user.getUsername(), user.getPasswordHash());
+            }
+            Map<String, Set<String>> shares = new HashMap<>();
+            for (Map.Entry<String, Set<String>> entry : storedSharedFolders.entrySet()) {
+                shares.computeIfAbsent(entry.getKey(), k -> new HashSet<>()).addAll(entry.getValue());
+            }
+            for (Map.Entry<String, Map<String, SubjectFileSystemRI>> entry : userSharedFolders.entrySet()) {
+                shares.computeIfAbsent(entry.getKey(), k -> new HashSet<>()).addAll(entry.getValue().keySet());
+            }
+            store.compact(passwords, shares);
+        } catch (IOException e) {
+            // The journal still holds every change, so the next change tries again
+            System.err.println("Failed to compact the database: " + e.getMessage());
+        } finally {
+            compactionLock.writeLock().unlock();
         }
-        userSharedFolders.remove(username, subjectFileSystem);
-        return true;
     }
 }
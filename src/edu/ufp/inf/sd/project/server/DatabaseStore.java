@@ -0,0 +1,337 @@
+package edu.ufp.inf.sd.project.server;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32C;
+
+/**
+ * Durable storage of the {@link Database}: a snapshot of every user and share, plus an append-only journal of the
+ * changes made since the snapshot was written. Both files are read through a memory mapping at startup, so loading
+ * costs one pass over the mapped bytes with no per-record system calls.
+ * <p>
+ * Journal records are forced to disk before the change is applied in memory. Replaying a record is idempotent,
+ * so the journal is only truncated after the snapshot that covers it has replaced the previous one, and a crash in
+ * between simply replays it again.
+ * <p>
+ * Snapshot layout: {@code int magic | int version | int users | (string username, string password)... | int shares |
+ * (string target, string owner)... | int crc32c}. Journal record layout: {@code int length | int crc32c | byte kind |
+ * string... }. Strings are an int length followed by UTF-8 bytes.
+ */
+public class DatabaseStore implements Closeable {
+
+    private static final int MAGIC = 0x53444442; // "SDDB"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+    // The journal is folded into a new snapshot once it grows past this size and past the snapshot itself
+    private static final long COMPACTION_THRESHOLD = 4 * 1024 * 1024;
+
+    private static final byte ADD_USER = 1;
+    private static final byte ADD_SHARE = 2;
+    private static final byte REMOVE_SHARE = 3;
+    private static final byte SET_PASSWORD = 4;
+
+    /**
+     * Receives the contents of the store, in the order they were written.
+     */
+    public interface Loader {
+        void userAdded(String username, String password);
+
+        void passwordChanged(String username, String password);
+
+        void shareAdded(String target, String owner);
+
+        void shareRemoved(String target, String owner);
+    }
+
+    private final File snapshotFile;
+    private final File journalFile;
+    private FileChannel journal;
+    private volatile long journalSize;
+
+    // Appenders add their record under lock, then take turns on writeLock; whoever gets it writes every
+    // pending record with one force, so concurrent appenders share an fsync instead of queueing for one each
+    private final Object lock = new Object();
+    private final Object writeLock = new Object();
+    private List<ByteBuffer> pending = new ArrayList<>();
+    private long appended;
+    private long durable;
+    private long failedThrough;
+
+    public DatabaseStore(File directory) {
+        directory.mkdirs();
+        this.snapshotFile = new File(directory, "database.snapshot");
+        this.journalFile = new File(directory, "database.journal");
+    }
+
+    public static DatabaseStore getDefaultStore() {
+        return new DatabaseStore(Storage.getStorageInstance().toFile(Storage.path(Storage.SERVER, ".db")));
+    }
+
+    /**
+     * Loads the snapshot and then the journal, dropping a torn record left at the end of the journal by a crash,
+     * and opens the journal for appending.
+     *
+     * @param loader Receives every user and share change
+     * @throws IOException If the snapshot is corrupt or the files cannot be read
+     */
+    public void load(Loader loader) throws IOException {
+        if (snapshotFile.exists()) {
+            loadSnapshot(loader);
+        }
+        journal = FileChannel.open(journalFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long validLength = loadJournal(loader);
+        if (validLength < journal.size()) {
+            System.out.println("Database journal: truncating torn tail at " + validLength + " (was " + journal.size() + " bytes)");
+            journal.truncate(validLength);
+            journal.force(true);
+        }
+        journal.position(validLength);
+        journalSize = validLength;
+    }
+
+    public void appendUser(String username, String password) throws IOException {
+        append(ADD_USER, username, password);
+    }
+
+    public void appendPassword(String username, String password) throws IOException {
+        append(SET_PASSWORD, username, password);
+    }
+
+    public void appendShare(String target, String owner) throws IOException {
+        append(ADD_SHARE, target, owner);
+    }
+
+    public void appendUnshare(String target, String owner) throws IOException {
+        append(REMOVE_SHARE, target, owner);
+    }
+
+    /**
+     * Tells whether the journal has grown enough to be folded into a new snapshot.
+     */
+    public boolean needsCompaction() {
+        return journalSize > COMPACTION_THRESHOLD && journalSize > snapshotFile.length();
+    }
+
+    /**
+     * Replaces the snapshot with the given state and empties the journal. The state must include every change
+     * appended so far, so no append may be in progress; changes applied since may be included too,
+     * as replaying them again is harmless.
+     *
+     * @param users  The password of every user, by username
+     * @param shares The owners of the folders shared with every user, by target username
+     * @throws IOException If the snapshot cannot be written
+     */
+    public void compact(Map<String, String> users, Map<String, ? extends Iterable<String>> shares) throws IOException {
+        File temporary = new File(snapshotFile.getParentFile(), snapshotFile.getName() + ".tmp");
+        CRC32C checksum = new CRC32C();
+        try (FileOutputStream file = new FileOutputStream(temporary);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new ChecksumStream(file, checksum), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(users.size());
+            for (Map.Entry<String, String> user : users.entrySet()) {
+                writeString(out, user.getKey());
+                writeString(out, user.getValue());
+            }
+            int count = 0;
+            for (Iterable<String> owners : shares.values()) {
+                for (String ignored : owners) {
+                    count++;
+                }
+            }
+            out.writeInt(count);
+            for (Map.Entry<String, ? extends Iterable<String>> share : shares.entrySet()) {
+                for (String owner : share.getValue()) {
+                    writeString(out, share.getKey());
+                    writeString(out, owner);
+                }
+            }
+            out.flush();
+            new DataOutputStream(file).writeInt((int) checksum.getValue());
+            file.getFD().sync();
+        }
+        synchronized (writeLock) {
+            Files.move(temporary.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            journal.truncate(0);
+            journal.force(true);
+            journalSize = 0;
+        }
+        System.out.println("Database compacted: " + users.size() + " users, " + snapshotFile.length() + " bytes");
+    }
+
+    private void append(byte kind, String first, String second) throws IOException {
+        byte[] a = first.getBytes(StandardCharsets.UTF_8);
+        byte[] b = second.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + 1 + 4 + a.length + 4 + b.length);
+        record.position(HEADER_SIZE);
+        record.put(kind).putInt(a.length).put(a).putInt(b.length).put(b);
+        CRC32C checksum = new CRC32C();
+        checksum.update(record.array(), HEADER_SIZE, record.capacity() - HEADER_SIZE);
+        record.putInt(0, record.capacity() - HEADER_SIZE).putInt(4, (int) checksum.getValue());
+        record.position(0);
+
+        long sequence;
+        synchronized (lock) {
+            pending.add(record);
+            sequence = ++appended;
+        }
+        synchronized (writeLock) {
+            if (durable >= sequence) {
+                return;
+            }
+            if (failedThrough >= sequence) {
+                throw new IOException("Database journal write failed");
+            }
+            List<ByteBuffer> batch;
+            long last;
+            synchronized (lock) {
+                batch = pending;
+                pending = new ArrayList<>();
+                last = appended;
+            }
+            try {
+                ByteBuffer[] buffers = batch.toArray(new ByteBuffer[0]);
+                long remaining = 0;
+                for (ByteBuffer buffer : buffers) {
+                    remaining += buffer.remaining();
+                }
+                long written = remaining;
+                while (remaining > 0) {
+                    remaining -= journal.write(buffers);
+                }
+                journal.force(false);
+                journalSize += written;
+                durable = last;
+            } catch (IOException e) {
+                // The records of the batch may be partly written; the next load drops them as a torn tail
+                failedThrough = last;
+                journal.position(journalSize);
+                journal.truncate(journalSize);
+                throw e;
+            }
+        }
+    }
+
+    private void loadSnapshot(Loader loader) throws IOException {
+        try (FileChannel channel = FileChannel.open(snapshotFile.toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.limit() < 16) {
+                throw new StreamCorruptedException("Database snapshot is truncated");
+            }
+            CRC32C checksum = new CRC32C();
+            checksum.update(buffer.duplicate().limit(buffer.limit() - 4));
+            if ((int) checksum.getValue() != buffer.getInt(buffer.limit() - 4)) {
+                throw new StreamCorruptedException("Database snapshot fails its checksum");
+            }
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                throw new StreamCorruptedException("Not a database snapshot: " + snapshotFile);
+            }
+            int users = buffer.getInt();
+            for (int i = 0; i < users; i++) {
+                loader.userAdded(readString(buffer), readString(buffer));
+            }
+            int shares = buffer.getInt();
+            for (int i = 0; i < shares; i++) {
+                loader.shareAdded(readString(buffer), readString(buffer));
+            }
+        }
+    }
+
+    /**
+     * @return The length of the valid prefix of the journal
+     */
+    private long loadJournal(Loader loader) throws IOException {
+        long size = journal.size();
+        if (size == 0) {
+            return 0;
+        }
+        MappedByteBuffer buffer = journal.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        int position = 0;
+        while (position + HEADER_SIZE <= size) {
+            int length = buffer.getInt(position);
+            int crc = buffer.getInt(position + 4);
+            if (length <= 0 || position + HEADER_SIZE + (long) length > size) {
+                break;
+            }
+            ByteBuffer body = buffer.slice(position + HEADER_SIZE, length);
+            CRC32C checksum = new CRC32C();
+            checksum.update(body.duplicate());
+            if ((int) checksum.getValue() != crc) {
+                break;
+            }
+            byte kind = body.get();
+            String first = readString(body);
+            String second = readString(body);
+            switch (kind) {
+                case ADD_USER:
+                    loader.userAdded(first, second);
+                    break;
+                case SET_PASSWORD:
+                    loader.passwordChanged(first, second);
+                    break;
+                case ADD_SHARE:
+                    loader.shareAdded(first, second);
+                    break;
+                case REMOVE_SHARE:
+                    loader.shareRemoved(first, second);
+                    break;
+                default:
+                    throw new StreamCorruptedException("Unknown database journal record " + kind);
+            }
+            position += HEADER_SIZE + length;
+        }
+        return position;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (journal != null) {
+            journal.close();
+        }
+    }
+
+    /**
+     * Passes bytes through while feeding them to a checksum.
+     */
+    private static final class ChecksumStream extends FilterOutputStream {
+        private final CRC32C checksum;
+
+        ChecksumStream(OutputStream out, CRC32C checksum) {
+            super(out);
+            this.checksum = checksum;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            checksum.update(b);
+            out.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            checksum.update(b, off, len);
+            out.write(b, off, len);
+        }
+    }
+}
@@ -0,0 +1,369 @@
+package edu.ufp.inf.sd.project.server;
+
+import java.io.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * rsync-style delta engine used to bring a destination file up to date with a source file.
+ * The destination is split into fixed-size blocks, each described by a rolling weak checksum
+ * and a strong hash. The source is then scanned with the rolling checksum so that only the
+ * byte ranges that do not match any destination block are read from the source and written.
+ */
+public class DeltaSync {
+
+    public static final int DEFAULT_BLOCK_SIZE = 4096;
+
+    private static final int MOD_ADLER = 1 << 16;
+
+    private final int blockSize;
+    private final CopyEngine copyEngine;
+
+    public DeltaSync() {
+        this(DEFAULT_BLOCK_SIZE, new CopyEngine());
+    }
+
+    public DeltaSync(int blockSize, CopyEngine copyEngine) {
+        if (blockSize <= 0) {
+            throw new IllegalArgumentException("Block size must be positive: " + blockSize);
+        }
+        this.blockSize = blockSize;
+        this.copyEngine = copyEngine;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     * Synchronizes a single file, rewriting only the blocks of the destination that changed.
+     *
+     * @param source      The up to date file
+     * @param destination The file to bring up to date (created if missing)
+     * @return The statistics of this synchronization
+     * @throws IOException If reading the source or writing the destination fails
+     */
+    public SyncStats synchronizeFile(File source, File destination) throws IOException {
+        if (!destination.exists() || destination.length() == 0) {
+            return copyEngine.transfer(source, destination);
+        }
+
+        long start = System.nanoTime();
+        SyncStats stats = new SyncStats();
+        stats.files = 1;
+        long sourceLength = source.length();
+
+        Signatures signatures = computeSignatures(destination);
+        List<Instruction> delta = computeDelta(source, signatures);
+
+        boolean inPlace = true;
+        for (Instruction instruction : delta) {
+            if (instruction.block != null) {
+                stats.matchedBytes += instruction.length;
+                if (instruction.block.offset != instruction.targetOffset) {
+                    inPlace = false;
+                }
+            } else {
+                stats.literalBytes += instruction.length;
+            }
+        }
+
+        // A hard linked destination is never patched in place, as that would write the source too
+        if (inPlace && !CopyEngine.isLinked(destination)) {
+            stats.bytesWritten = patchInPlace(source, destination, delta, sourceLength);
+        } else {
+            stats.bytesWritten = rebuild(source, destination, delta);
+        }
+        stats.elapsedNanos = System.nanoTime() - start;
+        return stats;
+    }
+
+    /**
+     * Computes the weak and strong checksum of every full block of the given file,
+     * plus the strong checksum of the trailing partial block, if any.
+     *
+     * @param file The file to sign
+     * @return The block signatures of the file
+     * @throws IOException If the file cannot be read
+     */
+    Signatures computeSignatures(File file) throws IOException {
+        Signatures signatures = new Signatures();
+        MessageDigest digest = newDigest();
+        byte[] block = new byte[blockSize];
+
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file), Math.max(blockSize, 1 << 16))) {
+            long offset = 0;
+            int read;
+            while ((read = in.readNBytes(block, 0, blockSize)) == blockSize) {
+                int weak = weakChecksum(block, 0, blockSize);
+                byte[] strong = strongChecksum(digest, block, 0, blockSize);
+                signatures.blocks.computeIfAbsent(weak, k -> new ArrayList<>(1)).add(new BlockSignature(offset, blockSize, strong));
+                offset += read;
+            }
+            if (read > 0) {
+                signatures.tail = new BlockSignature(offset, read, strongChecksum(digest, block, 0, read));
+            }
+        }
+        return signatures;
+    }
+
+    /**
+     * Scans the source with a rolling checksum and produces the list of instructions that rebuild it
+     * from the destination blocks plus literal ranges of the source.
+     *
+     * @param source     The up to date file
+     * @param signatures The destination block signatures
+     * @return The ordered delta instructions, covering the whole source
+     * @throws IOException If the source cannot be read
+     */
+    List<Instruction> computeDelta(File source, Signatures signatures) throws IOException {
+        List<Instruction> delta = new ArrayList<>();
+        MessageDigest digest = newDigest();
+        long sourceLength = source.length();
+
+        try (SlidingWindow window = new SlidingWindow(source, Math.max(blockSize * 16, 1 << 16))) {
+            long position = 0;
+            long literalStart = 0;
+            boolean haveWindow = window.ensure(position, blockSize) == blockSize;
+            int a = 0;
+            int b = 0;
+            if (haveWindow) {
+                int weak = weakChecksum(window.buffer, window.index(position), blockSize);
+                a = weak & 0xffff;
+                b = weak >>> 16;
+            }
+
+            while (haveWindow) {
+                BlockSignature match = null;
+                List<BlockSignature> candidates = signatures.blocks.get(a | (b << 16));
+                if (candidates != null) {
+                    byte[] strong = strongChecksum(digest, window.buffer, window.index(position), blockSize);
+                    for (BlockSignature candidate : candidates) {
+                        if (Arrays.equals(candidate.strong, strong)) {
+                            match = candidate;
+                            if (candidate.offset == position) {
+                                break;
+                            }
+                        }
+                    }
+                }
+
+                if (match != null) {
+                    addLiteral(delta, literalStart, position - literalStart);
+                    delta.add(new Instruction(position, blockSize, match));
+                    position += blockSize;
+                    literalStart = position;
+                    haveWindow = window.ensure(position, blockSize) == blockSize;
+                    if (haveWindow) {
+                        int weak = weakChecksum(window.buffer, window.index(position), blockSize);
+                        a = weak & 0xffff;
+                        b = weak >>> 16;
+                    }
+                } else {
+                    haveWindow = window.ensure(position, blockSize + 1) == blockSize + 1;
+                    if (haveWindow) {
+                        int out = window.buffer[window.index(position)] & 0xff;
+                        int in = window.buffer[window.index(position + blockSize)] & 0xff;
+                        a = Math.floorMod(a - out + in, MOD_ADLER);
+                        b = Math.floorMod(b - blockSize * out + a, MOD_ADLER);
+                        position++;
+                    }
+                }
+            }
+
+            // The trailing partial block can only match the destination tail, at the very end of the source
+            long remaining = sourceLength - literalStart;
+            BlockSignature tail = signatures.tail;
+            if (tail != null && remaining >= tail.length
+                    && window.ensure(sourceLength - tail.length, tail.length) == tail.length
+                    && Arrays.equals(tail.strong, strongChecksum(digest, window.buffer, window.index(sourceLength - tail.length), tail.length))) {
+                addLiteral(delta, literalStart, remaining - tail.length);
+                delta.add(new Instruction(sourceLength - tail.length, tail.length, tail));
+            } else {
+                addLiteral(delta, literalStart, remaining);
+            }
+        }
+        return delta;
+    }
+
+    private void addLiteral(List<Instruction> delta, long offset, long length) {
+        if (length > 0) {
+            delta.add(new Instruction(offset, length, null));
+        }
+    }
+
+    /**
+     * Applies a delta whose matched blocks all stay at their original offset, writing only the literal ranges.
+     */
+    private long patchInPlace(File source, File destination, List<Instruction> delta, long sourceLength) throws IOException {
+        long written = 0;
+        byte[] buffer = new byte[Math.max(blockSize, 1 << 16)];
+        try (RandomAccessFile in = new RandomAccessFile(source, "r");
+             RandomAccessFile out = new RandomAccessFile(destination, "rw")) {
+            for (Instruction instruction : delta) {
+                if (instruction.block == null) {
+                    written += transfer(in, out, instruction.targetOffset, instruction.targetOffset, instruction.length, buffer);
+                }
+            }
+            if (out.length() != sourceLength) {
+                out.setLength(sourceLength);
+            }
+        }
+        return written;
+    }
+
+    /**
+     * Applies a delta that moves blocks around by rebuilding the destination next to it and swapping it in.
+     */
+    private long rebuild(File source, File destination, List<Instruction> delta) throws IOException {
+        File temporary = new File(destination.getParentFile(), "." + destination.getName() + ".delta");
+        long written = 0;
+        byte[] buffer = new byte[Math.max(blockSize, 1 << 16)];
+        try (RandomAccessFile in = new RandomAccessFile(source, "r");
+             RandomAccessFile basis = new RandomAccessFile(destination, "r");
+             RandomAccessFile out = new RandomAccessFile(temporary, "rw")) {
+            out.setLength(0);
+            for (Instruction instruction : delta) {
+                if (instruction.block != null) {
+                    written += transfer(basis, out, instruction.block.offset, instruction.targetOffset, instruction.length, buffer);
+                } else {
+                    written += transfer(in, out, instruction.targetOffset, instruction.targetOffset, instruction.length, buffer);
+                }
+            }
+        }
+        CopyEngine.replace(temporary, destination);
+        return written;
+    }
+
+    private static long transfer(RandomAccessFile in, RandomAccessFile out, long from, long to, long length, byte[] buffer) throws IOException {
+        in.seek(from);
+        out.seek(to);
+        long remaining = length;
+        while (remaining > 0) {
+            int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+            if (read < 0) {
+                throw new EOFException("Unexpected end of file while applying delta");
+            }
+            out.write(buffer, 0, read);
+            remaining -= read;
+        }
+        return length;
+    }
+
+    /**
+     * Adler-32 style weak checksum: the low 16 bits hold the byte sum, the high 16 bits the weighted sum.
+     */
+    static int weakChecksum(byte[] data, int offset, int length) {
+        long a = 0;
+        long b = 0;
+        for (int i = 0; i < length; i++) {
+            int value = data[offset + i] & 0xff;
+            a += value;
+            b += (long) (length - i) * value;
+        }
+        return (int) (a % MOD_ADLER) | (int) ((b % MOD_ADLER) << 16);
+    }
+
+    private static byte[] strongChecksum(MessageDigest digest, byte[] data, int offset, int length) {
+        digest.reset();
+        digest.update(data, offset, length);
+        return digest.digest();
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 is not available", e);
+        }
+    }
+
+    /**
+     * Signature of one block of the destination file.
+     */
+    static final class BlockSignature {
+        final long offset;
+        final int length;
+        final byte[] strong;
+
+        BlockSignature(long offset, int length, byte[] strong) {
+            this.offset = offset;
+            this.length = length;
+            this.strong = strong;
+        }
+    }
+
+    /**
+     * Signatures of a destination file: full blocks indexed by weak checksum, and the short trailing block.
+     */
+    static final class Signatures {
+        final Map<Integer, List<BlockSignature>> blocks = new HashMap<>();
+        BlockSignature tail;
+    }
+
+    /**
+     * One step of the delta: either reuse a destination block or take a literal range of the source.
+     * Because the rebuilt file has the same layout as the source, the target offset of a literal is also
+     * its offset in the source.
+     */
+    static final class Instruction {
+        final long targetOffset;
+        final long length;
+        final BlockSignature block;
+
+        Instruction(long targetOffset, long length, BlockSignature block) {
+            this.targetOffset = targetOffset;
+            this.length = length;
+            this.block = block;
+        }
+    }
+
+    /**
+     * Buffered view over a file that keeps the bytes around the rolling window in memory.
+     */
+    private static final class SlidingWindow implements Closeable {
+        private final InputStream in;
+        private final byte[] buffer;
+        private long bufferOffset;
+        private int end;
+        private boolean eof;
+
+        SlidingWindow(File file, int capacity) throws IOException {
+            this.in = new FileInputStream(file);
+            this.buffer = new byte[capacity];
+        }
+
+        /**
+         * Makes sure that the range [position, position + length) is buffered, as far as the file allows.
+         *
+         * @return The number of bytes available from position, up to length
+         */
+        int ensure(long position, int length) throws IOException {
+            if (position + length > bufferOffset + end && !eof) {
+                int keep = (int) (bufferOffset + end - position);
+                System.arraycopy(buffer, (int) (position - bufferOffset), buffer, 0, keep);
+                bufferOffset = position;
+                end = keep;
+                while (end < buffer.length) {
+                    int read = in.read(buffer, end, buffer.length - end);
+                    if (read < 0) {
+                        eof = true;
+                        break;
+                    }
+                    end += read;
+                }
+            }
+            return (int) Math.min(length, bufferOffset + end - position);
+        }
+
+        int index(long position) {
+            return (int) (position - bufferOffset);
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
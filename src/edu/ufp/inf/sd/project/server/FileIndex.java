@@ -0,0 +1,228 @@
+package edu.ufp.inf.sd.project.server;
+
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * Persistent index of a directory tree: the size, modification time and content hash of every file,
+ * plus the list of directories. Refreshing an index only hashes the files whose size or modification
+ * time changed, so an unchanged tree costs one stat per file instead of reading every byte.
+ * Paths are relative to the root of the tree and always use '/' as separator.
+ */
+public class FileIndex implements Serializable {
+    @Serial
+    private static final long serialVersionUID = 1L;
+
+    // Files modified this close to a refresh may change again within the same timestamp, so they are rehashed next time
+    static final long RACY_WINDOW_MILLIS = 2000;
+
+    private final SortedSet<String> directories = new TreeSet<>();
+    private final SortedMap<String, Entry> files = new TreeMap<>();
+
+    public SortedSet<String> getDirectories() {
+        return Collections.unmodifiableSortedSet(directories);
+    }
+
+    public SortedMap<String, Entry> getFiles() {
+        return Collections.unmodifiableSortedMap(files);
+    }
+
+    public Entry get(String path) {
+        return files.get(path);
+    }
+
+    public synchronized void put(String path, Entry entry) {
+        files.put(path, entry);
+    }
+
+    public synchronized void remove(String path) {
+        files.remove(path);
+    }
+
+    public synchronized void addDirectory(String path) {
+        directories.add(path);
+    }
+
+    public synchronized void removeDirectory(String path) {
+        directories.remove(path);
+    }
+
+    /**
+     * Builds the current index of a tree, reusing the hash of every file whose size and modification time
+     * did not change since this index was taken. The other files are hashed on the synchronizer pool.
+     *
+     * @param root             The root of the tree
+     * @param treeSynchronizer The pool used to hash the changed files
+     * @return The refreshed index
+     * @throws IOException If the tree cannot be walked or a changed file cannot be hashed
+     */
+    public FileIndex refresh(File root, TreeSynchronizer treeSynchronizer) throws IOException {
+        FileIndex refreshed = new FileIndex();
+        if (!root.isDirectory()) {
+            return refreshed;
+        }
+
+        long racyLimit = System.currentTimeMillis() - RACY_WINDOW_MILLIS;
+        Map<String, long[]> changed = new HashMap<>();
+        Path rootPath = root.toPath();
+
+        Files.walkFileTree(rootPath, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                if (!dir.equals(rootPath)) {
+                    refreshed.directories.add(relativePath(rootPath, dir));
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (!attrs.isRegularFile()) {
+                    return FileVisitResult.CONTINUE;
+                }
+                String path = relativePath(rootPath, file);
+                long size = attrs.size();
+                long modified = attrs.lastModifiedTime().toMillis();
+                Entry previous = files.get(path);
+                if (previous != null && previous.size == size && previous.modified == modified) {
+                    refreshed.files.put(path, previous);
+                } else {
+                    changed.put(path, new long[]{size, modified < racyLimit ? modified : -1});
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                // The file vanished while walking; it is simply not part of the index
+                return FileVisitResult.CONTINUE;
+            }
+        });
+
+        Map<String, String> hashes = treeSynchronizer.forEachPath(changed.keySet(), path -> hash(new File(root, path)));
+        for (Map.Entry<String, long[]> entry : changed.entrySet()) {
+            long[] stat = entry.getValue();
+            refreshed.files.put(entry.getKey(), new Entry(stat[0], stat[1], hashes.get(entry.getKey())));
+        }
+        return refreshed;
+    }
+
+    /**
+     * Loads a stored index.
+     *
+     * @param name The name of the index (e.g. "server/alice")
+     * @return The stored index, or an empty index if there is none
+     */
+    public static FileIndex load(String name) {
+        File file = indexFile(name);
+        if (!file.exists()) {
+            return new FileIndex();
+        }
+        try (ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            return (FileIndex) in.readObject();
+        } catch (IOException | ClassNotFoundException e) {
+            System.err.println("Failed to read index " + name + ", rebuilding it: " + e.getMessage());
+            return new FileIndex();
+        }
+    }
+
+    /**
+     * Stores this index under a name, replacing the previous one atomically.
+     *
+     * @param name The name of the index
+     * @throws IOException If the index cannot be written
+     */
+    public synchronized void save(String name) throws IOException {
+        File file = indexFile(name);
+        file.getParentFile().mkdirs();
+        File temporary = File.createTempFile(file.getName(), ".tmp", file.getParentFile());
+        try (ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(temporary)))) {
+            out.writeObject(this);
+        }
+        Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Deletes a stored index.
+     *
+     * @param name The name of the index
+     */
+    public static void delete(String name) {
+        indexFile(name).delete();
+    }
+
+    /**
+     * Computes the content hash of a file.
+     *
+     * @param file The file to hash
+     * @return The hex encoded SHA-256 of the file contents
+     * @throws IOException If the file cannot be read
+     */
+    public static String hash(File file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+        byte[] buffer = new byte[1 << 16];
+        try (InputStream in = new FileInputStream(file)) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        return toHex(digest.digest());
+    }
+
+    static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    private static String relativePath(Path root, Path path) {
+        return root.relativize(path).toString().replace(File.separatorChar, '/');
+    }
+
+    private static File indexFile(String name) {
+        return Storage.getStorageInstance().toFile(Storage.path(Storage.SERVER, ".index", name + ".index"));
+    }
+
+    /**
+     * Indexed state of one file. A modification time of -1 means the file was too recent to be trusted
+     * and will be hashed again on the next refresh.
+     */
+    public static class Entry implements Serializable {
+        @Serial
+        private static final long serialVersionUID = 1L;
+
+        private final long size;
+        private final long modified;
+        private final String hash;
+
+        public Entry(long size, long modified, String hash) {
+            this.size = size;
+            this.modified = modified;
+            this.hash = hash;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getModified() {
+            return modified;
+        }
+
+        public String getHash() {
+            return hash;
+        }
+    }
+}
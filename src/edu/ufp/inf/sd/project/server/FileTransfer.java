@@ -0,0 +1,80 @@
+package edu.ufp.inf.sd.project.server;
+
+import java.io.Serial;
+import java.io.Serializable;
+
+/**
+ * Handle of a streaming upload or download opened on a {@link SubjectFileSystemRI}.
+ * The client moves the file in chunks of at most {@link #getChunkSize()} bytes and never has more than
+ * {@link #getWindow()} chunks in flight, so both sides hold at most {@code window * chunkSize} bytes of the file.
+ * Unless the transfer is not compressed, every chunk travels framed by {@link Compression#encode}.
+ */
+public class FileTransfer implements Serializable {
+    @Serial
+    private static final long serialVersionUID = 3L;
+
+    private final String id;
+    private final long size;
+    private final long offset;
+    private final int chunkSize;
+    private final int window;
+    private final Compression compression;
+    private final String contentHash;
+
+    public FileTransfer(String id, long size, long offset, int chunkSize, int window, Compression compression, String contentHash) {
+        this.id = id;
+        this.size = size;
+        this.offset = offset;
+        this.chunkSize = chunkSize;
+        this.window = window;
+        this.compression = compression;
+        this.contentHash = contentHash;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * Gets the size of the file being transferred.
+     *
+     * @return The size of the file, in bytes
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * Gets the offset the transfer resumes from. For uploads this is the number of bytes the server already has.
+     *
+     * @return The offset of the first byte still to transfer
+     */
+    public long getOffset() {
+        return offset;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public int getWindow() {
+        return window;
+    }
+
+    /**
+     * @return The codec of the chunks, negotiated when the transfer was opened
+     */
+    public Compression getCompression() {
+        return compression;
+    }
+
+    /**
+     * Gets the SHA-256 of the file being downloaded, as {@link FileIndex#hash} computes it. A partial download is only
+     * resumed if it was of the same content, and the complete file is checked against it.
+     *
+     * @return The content hash, or null for uploads and files whose hash is not known
+     */
+    public String getContentHash() {
+        return contentHash;
+    }
+}
@@ -0,0 +1,301 @@
+package edu.ufp.inf.sd.project.server;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Tracks the version of every file, so an update made from an out of date copy is rejected instead of silently
+ * overwriting the edits it did not see.
+ * <p>
+ * Versions are {@link VersionVector}s carried as the last parameter of file operations: {@code [folder, file, version]}
+ * for CREATEFILE and DELETEFILE, {@code [folder, file, hash, size, version]} for UPLOADFILE and
+ * {@code [folder, file, content, base]} for UPDATEFILE, where the base is the version
+ * the content was edited from. An update whose base does not include every edit the server applied to the file is a
+ * conflict. An update without a base is applied unconditionally, as before versions existed. The server rewrites the
+ * version parameter of every operation it accepts to the new version of the file, so it is what gets logged, replicated
+ * and published.
+ * <p>
+ * Each path has a lock of its own, held while its operations are checked, logged and applied, so the log holds them in
+ * the order they were applied and replaying it rebuilds the same versions. Operations on different paths never wait on
+ * each other. The copies of a shared file, {@code <sharer>/shared/<owner>/...}, have the version of the owner's file.
+ * <p>
+ * The versions are saved with the checkpoints of the {@link OperationLog}, so they survive the compaction of the
+ * operations that set them.
+ */
+public class FileVersions {
+
+    private static final String SHARED_FOLDER = "/shared/";
+
+    private static FileVersions instance;
+
+    private final Map<String, PathVersion> versions = new ConcurrentHashMap<>();
+    // The files written since the last checkpoint, which it must force to disk
+    private final Set<String> unforced = ConcurrentHashMap.newKeySet();
+    private final Object checkpointLock = new Object();
+
+    /**
+     * Logs and applies the accepted operations of a batch.
+     */
+    public interface Writer {
+        /**
+         * @param accepted The operations to log and apply, in order, with their new versions set
+         * @return The result of each operation
+         */
+        List<OperationResult> write(List<StateFileSystemOperation> accepted) throws IOException;
+    }
+
+    private static final class PathVersion {
+        private final ReentrantLock lock = new ReentrantLock();
+        private VersionVector version = VersionVector.EMPTY;
+    }
+
+    protected static synchronized FileVersions getFileVersionsInstance() {
+        if (instance == null) {
+            instance = new FileVersions();
+        }
+        return instance;
+    }
+
+    /**
+     * Checks a batch of operations against the versions of their files and has the writer log and apply the ones that
+     * do not conflict, while holding the locks of their paths.
+     *
+     * @param operations The operations, in order
+     * @param writer     Logs and applies the accepted operations
+     * @return The result of each operation, in order
+     * @throws IOException If the writer fails, in which case no version changes
+     */
+    public List<OperationResult> apply(List<StateFileSystemOperation> operations, Writer writer) throws IOException {
+        // Locked in a fixed order, so two batches sharing paths cannot deadlock
+        TreeMap<String, PathVersion> locked = new TreeMap<>();
+        for (StateFileSystemOperation operation : operations) {
+            String key = pathKey(operation);
+            if (key != null) {
+                locked.put(key, versions.computeIfAbsent(key, k -> new PathVersion()));
+            }
+        }
+        for (PathVersion pathVersion : locked.values()) {
+            pathVersion.lock.lock();
+        }
+        try {
+            Map<String, VersionVector> current = new HashMap<>();
+            locked.forEach((key, pathVersion) -> current.put(key, pathVersion.version));
+            OperationResult[] results = new OperationResult[operations.size()];
+            List<StateFileSystemOperation> accepted = new ArrayList<>(operations.size());
+            List<Integer> acceptedIndexes = new ArrayList<>(operations.size());
+            for (int i = 0; i < operations.size(); i++) {
+                StateFileSystemOperation operation = operations.get(i);
+                String key = pathKey(operation);
+                if (key != null) {
+                    VersionVector version = current.get(key);
+                    VersionVector next = nextVersion(operation, version);
+                    if (next == null) {
+                        System.out.println("Rejected " + operation.getType() + " " + key + " of user " + operation.getUsername()
+                                + ": edited from " + baseOf(operation) + ", but the file is at " + version);
+                        results[i] = new OperationResult(-1, OperationResult.Status.CONFLICT, 0, version.toString());
+                        continue;
+                    }
+                    setVersion(operation, next);
+                    current.put(key, next);
+                }
+                accepted.add(operation);
+                acceptedIndexes.add(i);
+            }
+            if (!accepted.isEmpty()) {
+                List<OperationResult> written = writer.write(accepted);
+                for (int i = 0; i < accepted.size(); i++) {
+                    StateFileSystemOperation operation = accepted.get(i);
+                    OperationResult result = written.get(i);
+                    String key = pathKey(operation);
+                    if (key != null && result.isApplied()) {
+                        locked.get(key).version = VersionVector.parse(versionOf(operation));
+                        unforced.add(filePath(operation));
+                    }
+                    results[acceptedIndexes.get(i)] = result;
+                }
+            }
+            return Arrays.asList(results);
+        } finally {
+            for (PathVersion pathVersion : locked.values()) {
+                pathVersion.lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Applies a logged operation again, as when the server restarts, restoring the version it had.
+     */
+    public void replay(StateFileSystemOperation operation) {
+        boolean applied = StateFileSystemOperation.executeOperation(operation);
+        String key = pathKey(operation);
+        String version = versionOf(operation);
+        if (applied && key != null && version != null) {
+            versions.computeIfAbsent(key, k -> new PathVersion()).version = VersionVector.parse(version);
+            unforced.add(filePath(operation));
+        }
+    }
+
+    /**
+     * Restores the versions saved with the last checkpoint of the log, before the operations after it are replayed.
+     */
+    public void restore(Map<String, String> saved) {
+        saved.forEach((key, version) -> versions.computeIfAbsent(key, k -> new PathVersion()).version = VersionVector.parse(version));
+    }
+
+    /**
+     * Forces the files written since the last checkpoint to disk and checkpoints the log at the operations applied so
+     * far, with the versions of the files. One checkpoint is taken at a time, so none can cover a file that another is
+     * still forcing.
+     */
+    public void checkpoint(OperationLog operationLog) throws IOException {
+        synchronized (checkpointLock) {
+            // Read first: every operation up to it has set its version and marked its file by now
+            long sequence = operationLog.getAppliedSequence();
+            Storage storage = Storage.getStorageInstance();
+            for (Iterator<String> iterator = unforced.iterator(); iterator.hasNext(); ) {
+                String path = iterator.next();
+                if (storage.isFile(path)) {
+                    storage.force(path);
+                }
+                // Only once it is on disk
+                iterator.remove();
+            }
+            Map<String, String> saved = new HashMap<>();
+            versions.forEach((key, pathVersion) -> {
+                pathVersion.lock.lock();
+                try {
+                    if (!pathVersion.version.equals(VersionVector.EMPTY)) {
+                        saved.put(key, pathVersion.version.toString());
+                    }
+                } finally {
+                    pathVersion.lock.unlock();
+                }
+            });
+            operationLog.checkpoint(sequence, saved);
+        }
+    }
+
+    /**
+     * @return The current version of a file, or the empty string if it has none
+     */
+    public String getVersion(String folderPath, String fileName) {
+        PathVersion pathVersion = versions.get(canonicalPath(folderPath) + "/" + fileName);
+        if (pathVersion == null) {
+            return "";
+        }
+        pathVersion.lock.lock();
+        try {
+            return pathVersion.version.toString();
+        } finally {
+            pathVersion.lock.unlock();
+        }
+    }
+
+    /**
+     * @return The version parameter of a file operation, or null if it has none
+     */
+    public static String versionOf(StateFileSystemOperation operation) {
+        int index = versionIndex(operation.getType());
+        return index >= 0 && operation.getParams().size() > index ? operation.getParams().get(index) : null;
+    }
+
+    /**
+     * Sets the version an update was edited from, so it is rejected if the file changed since.
+     *
+     * @param operation An UPDATEFILE operation
+     * @param base      The version of the file when it was read, or null to update it unconditionally
+     */
+    public static void setBase(StateFileSystemOperation operation, String base) {
+        ArrayList<String> params = operation.getParams();
+        while (params.size() > 3) {
+            params.remove(params.size() - 1);
+        }
+        if (base != null) {
+            params.add(base);
+        }
+    }
+
+    /**
+     * Gets the version a file will have after an operation.
+     *
+     * @return The new version, or null if the operation conflicts with the current one
+     */
+    private static VersionVector nextVersion(StateFileSystemOperation operation, VersionVector current) {
+        String user = operation.getUsername();
+        if (operation.getType() != StateFileSystemOperation.OperationType.UPDATEFILE) {
+            return current.increment(user);
+        }
+        String base = baseOf(operation);
+        if (base == null) {
+            return current.increment(user);
+        }
+        VersionVector baseVersion;
+        try {
+            baseVersion = VersionVector.parse(base);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        VersionVector.Order order = current.compareTo(baseVersion);
+        if (order != VersionVector.Order.EQUAL && order != VersionVector.Order.BEFORE) {
+            return null;
+        }
+        return baseVersion.merge(current).increment(user);
+    }
+
+    private static String baseOf(StateFileSystemOperation operation) {
+        return operation.getType() == StateFileSystemOperation.OperationType.UPDATEFILE ? versionOf(operation) : null;
+    }
+
+    private static void setVersion(StateFileSystemOperation operation, VersionVector version) {
+        ArrayList<String> params = operation.getParams();
+        int index = versionIndex(operation.getType());
+        while (params.size() <= index) {
+            params.add("");
+        }
+        params.set(index, version.toString());
+    }
+
+    private static int versionIndex(StateFileSystemOperation.OperationType type) {
+        switch (type) {
+            case CREATEFILE:
+            case DELETEFILE:
+                return 2;
+            case UPDATEFILE:
+                return 3;
+            case UPLOADFILE:
+                return 4;
+            default:
+                return -1;
+        }
+    }
+
+    /**
+     * @return The key of the file an operation applies to, or null if it does not apply to a file
+     */
+    private static String pathKey(StateFileSystemOperation operation) {
+        if (versionIndex(operation.getType()) < 0 || operation.getParams().size() < 2) {
+            return null;
+        }
+        return canonicalPath(operation.getParams().get(0)) + "/" + operation.getParams().get(1);
+    }
+
+    private static String filePath(StateFileSystemOperation operation) {
+        return Storage.path(Storage.SERVER, operation.getParams().get(0), operation.getParams().get(1));
+    }
+
+    /**
+     * Maps the path of a shared copy, {@code <sharer>/shared/<owner>/...}, to the path of the owner's folder.
+     */
+    static String canonicalPath(String folderPath) {
+        int user = folderPath.indexOf('/');
+        if (user > 0 && folderPath.startsWith(SHARED_FOLDER, user)) {
+            String owned = folderPath.substring(user + SHARED_FOLDER.length());
+            if (!owned.isEmpty()) {
+                return owned;
+            }
+        }
+        return folderPath;
+    }
+}
@@ -0,0 +1,172 @@
+package edu.ufp.inf.sd.project.server;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Keeps the files on the local disk, under a root directory.
+ */
+public class LocalStorage extends Storage {
+
+    protected final File root;
+
+    public LocalStorage(File root) {
+        this.root = root.getAbsoluteFile();
+    }
+
+    public File getRoot() {
+        return root;
+    }
+
+    @Override
+    public File toFile(String path) {
+        String normalized = normalize(path);
+        return normalized.isEmpty() ? root : new File(root, normalized);
+    }
+
+    @Override
+    public boolean isLocal() {
+        return true;
+    }
+
+    @Override
+    public boolean exists(String path) {
+        return toFile(path).exists();
+    }
+
+    @Override
+    public boolean isDirectory(String path) {
+        return toFile(path).isDirectory();
+    }
+
+    @Override
+    public boolean isFile(String path) {
+        return toFile(path).isFile();
+    }
+
+    @Override
+    public long size(String path) throws IOException {
+        return file(path).length();
+    }
+
+    @Override
+    public List<String> list(String path) throws IOException {
+        String[] names = toFile(path).list();
+        if (names == null) {
+            throw new FileNotFoundException("Not a directory: " + path);
+        }
+        return Arrays.asList(names);
+    }
+
+    @Override
+    public boolean createDirectories(String path) {
+        File directory = toFile(path);
+        return directory.mkdirs() || directory.isDirectory();
+    }
+
+    @Override
+    public boolean createFile(String path) throws IOException {
+        File file = toFile(path);
+        File parent = file.getParentFile();
+        if (parent != null) {
+            parent.mkdirs();
+        }
+        return file.createNewFile();
+    }
+
+    @Override
+    public byte[] read(String path) throws IOException {
+        return Files.readAllBytes(file(path).toPath());
+    }
+
+    @Override
+    public byte[] read(String path, long offset, int length) throws IOException {
+        try (FileChannel channel = FileChannel.open(file(path).toPath(), StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate((int) Math.max(0, Math.min(length, channel.size() - offset)));
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, offset + buffer.position()) < 0) {
+                    break;
+                }
+            }
+            return buffer.hasRemaining() ? Arrays.copyOf(buffer.array(), buffer.position()) : buffer.array();
+        }
+    }
+
+    @Override
+    public void write(String path, byte[] data) throws IOException {
+        CopyEngine.breakLink(toFile(path), false);
+        Files.write(toFile(path).toPath(), data);
+    }
+
+    @Override
+    public void append(String path, byte[] data) throws IOException {
+        CopyEngine.breakLink(toFile(path), true);
+        try (FileChannel channel = FileChannel.open(toFile(path).toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+    }
+
+    @Override
+    public void truncate(String path, long size) throws IOException {
+        CopyEngine.breakLink(toFile(path), true);
+        try (FileChannel channel = FileChannel.open(toFile(path).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            channel.truncate(size);
+        }
+    }
+
+    @Override
+    public void move(String source, String target) throws IOException {
+        try {
+            Files.move(file(source).toPath(), toFile(target).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(file(source).toPath(), toFile(target).toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    @Override
+    public void copy(String source, String target) throws IOException {
+        // Replacing the target also breaks any link it had
+        Files.copy(file(source).toPath(), toFile(target).toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    @Override
+    public boolean delete(String path) {
+        return toFile(path).delete();
+    }
+
+    @Override
+    public void force(String path) throws IOException {
+        try (FileChannel channel = FileChannel.open(file(path).toPath(), StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+    }
+
+    /**
+     * @throws FileNotFoundException If the path is not a file
+     */
+    protected File file(String path) throws FileNotFoundException {
+        File file = toFile(path);
+        if (!file.isFile()) {
+            throw new FileNotFoundException("Not a file: " + path);
+        }
+        return file;
+    }
+
+    @Override
+    public String toString() {
+        return "local files under " + root;
+    }
+}
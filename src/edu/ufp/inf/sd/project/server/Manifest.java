@@ -0,0 +1,89 @@
+package edu.ufp.inf.sd.project.server;
+
+import java.io.Serial;
+import java.io.Serializable;
+import java.util.*;
+
+/**
+ * Description of a directory tree whose file contents live in the {@link ChunkStore}.
+ * Paths are relative to the root of the tree and always use '/' as separator.
+ */
+public class Manifest implements Serializable {
+    @Serial
+    private static final long serialVersionUID = 1L;
+
+    private final SortedSet<String> directories = new TreeSet<>();
+    private final SortedMap<String, FileEntry> files = new TreeMap<>();
+
+    public void addDirectory(String path) {
+        directories.add(path);
+    }
+
+    public void addFile(String path, FileEntry entry) {
+        files.put(path, entry);
+    }
+
+    public SortedSet<String> getDirectories() {
+        return Collections.unmodifiableSortedSet(directories);
+    }
+
+    public SortedMap<String, FileEntry> getFiles() {
+        return Collections.unmodifiableSortedMap(files);
+    }
+
+    /**
+     * Gets every chunk reference of this manifest, once per occurrence.
+     *
+     * @return The chunk hashes referenced by the files of this manifest
+     */
+    public List<String> getChunkReferences() {
+        List<String> references = new ArrayList<>();
+        for (FileEntry entry : files.values()) {
+            references.addAll(entry.getChunks());
+        }
+        return references;
+    }
+
+    public long getTotalSize() {
+        long total = 0;
+        for (FileEntry entry : files.values()) {
+            total += entry.getSize();
+        }
+        return total;
+    }
+
+    /**
+     * A file of the tree: its size and the ordered list of chunks that make up its contents.
+     */
+    public static class FileEntry implements Serializable {
+        @Serial
+        private static final long serialVersionUID = 1L;
+
+        private final long size;
+        private final List<String> chunks;
+        private final String contentHash;
+
+        public FileEntry(long size, List<String> chunks, String contentHash) {
+            this.size = size;
+            this.chunks = new ArrayList<>(chunks);
+            this.contentHash = contentHash;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public List<String> getChunks() {
+            return Collections.unmodifiableList(chunks);
+        }
+
+        /**
+         * Gets the content hash of the whole file, used to reuse this entry when the file did not change.
+         *
+         * @return The content hash, or null for entries stored without one
+         */
+        public String getContentHash() {
+            return contentHash;
+        }
+    }
+}
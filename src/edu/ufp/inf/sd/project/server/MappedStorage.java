@@ -0,0 +1,80 @@
+package edu.ufp.inf.sd.project.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Keeps the files on the local disk like {@link LocalStorage}, but reads and writes them through memory mappings, so
+ * their bytes are copied once, between the page cache and the heap, instead of through the buffers of a stream.
+ * <p>
+ * Files shorter than {@value #MIN_MAPPED_BYTES} bytes are not worth a mapping and are read and written as local files.
+ */
+public class MappedStorage extends LocalStorage {
+
+    private static final int MIN_MAPPED_BYTES = 16 * 1024;
+
+    public MappedStorage(File root) {
+        super(root);
+    }
+
+    @Override
+    public byte[] read(String path) throws IOException {
+        long size = size(path);
+        if (size > Integer.MAX_VALUE - 8) {
+            throw new IOException("File too large to read at once: " + path);
+        }
+        return read(path, 0, (int) size);
+    }
+
+    @Override
+    public byte[] read(String path, long offset, int length) throws IOException {
+        if (length < MIN_MAPPED_BYTES) {
+            return super.read(path, offset, length);
+        }
+        try (FileChannel channel = FileChannel.open(file(path).toPath(), StandardOpenOption.READ)) {
+            int count = (int) Math.max(0, Math.min(length, channel.size() - offset));
+            byte[] data = new byte[count];
+            if (count > 0) {
+                channel.map(FileChannel.MapMode.READ_ONLY, offset, count).get(data);
+            }
+            return data;
+        }
+    }
+
+    @Override
+    public void write(String path, byte[] data) throws IOException {
+        if (data.length < MIN_MAPPED_BYTES) {
+            super.write(path, data);
+            return;
+        }
+        CopyEngine.breakLink(toFile(path), false);
+        try (FileChannel channel = FileChannel.open(toFile(path).toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            channel.truncate(data.length);
+            channel.map(FileChannel.MapMode.READ_WRITE, 0, data.length).put(data);
+        }
+    }
+
+    @Override
+    public void append(String path, byte[] data) throws IOException {
+        if (data.length < MIN_MAPPED_BYTES) {
+            super.append(path, data);
+            return;
+        }
+        CopyEngine.breakLink(toFile(path), true);
+        try (FileChannel channel = FileChannel.open(toFile(path).toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // Mapping past the end of the file extends it
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, channel.size(), data.length);
+            buffer.put(data);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "memory-mapped files under " + root;
+    }
+}
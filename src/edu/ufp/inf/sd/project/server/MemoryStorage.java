@@ -0,0 +1,276 @@
+package edu.ufp.inf.sd.project.server;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps the files in the heap, so tests and benchmarks run without a disk and leave nothing behind. Everything stored
+ * is lost when the process ends.
+ * <p>
+ * Reads do not lock; creating, moving and deleting entries lock the whole storage, and writing a file locks the file.
+ */
+public class MemoryStorage extends Storage {
+
+    private final File scratch;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    private static final class Entry {
+        // Null for a file
+        final Set<String> children;
+        byte[] data;
+        int length;
+
+        Entry(boolean directory) {
+            this.children = directory ? ConcurrentHashMap.newKeySet() : null;
+            this.data = directory ? null : new byte[0];
+        }
+
+        boolean isDirectory() {
+            return children != null;
+        }
+
+        synchronized byte[] read(long offset, int count) {
+            int from = (int) Math.min(offset, length);
+            return Arrays.copyOfRange(data, from, from + Math.max(0, Math.min(count, length - from)));
+        }
+
+        synchronized void write(byte[] bytes) {
+            data = bytes.clone();
+            length = bytes.length;
+        }
+
+        synchronized void append(byte[] bytes) {
+            if (length + bytes.length > data.length) {
+                data = Arrays.copyOf(data, Math.max(length + bytes.length, 2 * data.length));
+            }
+            System.arraycopy(bytes, 0, data, length, bytes.length);
+            length += bytes.length;
+        }
+
+        synchronized void truncate(long size) {
+            if (size < length) {
+                length = (int) size;
+            } else if (size > length) {
+                data = Arrays.copyOf(data, (int) size);
+                Arrays.fill(data, length, (int) size, (byte) 0);
+                length = (int) size;
+            }
+        }
+    }
+
+    /**
+     * @param scratch The directory of the files of the subsystems that need a directory, or null for a temporary one
+     */
+    public MemoryStorage(File scratch) throws IOException {
+        this.scratch = scratch != null ? scratch.getAbsoluteFile() : Files.createTempDirectory("sd-storage").toFile();
+        entries.put("", new Entry(true));
+    }
+
+    @Override
+    public File toFile(String path) {
+        String normalized = normalize(path);
+        return normalized.isEmpty() ? scratch : new File(scratch, normalized);
+    }
+
+    @Override
+    public boolean isLocal() {
+        return false;
+    }
+
+    @Override
+    public boolean exists(String path) {
+        return entries.containsKey(normalize(path));
+    }
+
+    @Override
+    public boolean isDirectory(String path) {
+        Entry entry = entries.get(normalize(path));
+        return entry != null && entry.isDirectory();
+    }
+
+    @Override
+    public long size(String path) throws IOException {
+        Entry entry = file(path);
+        synchronized (entry) {
+            return entry.length;
+        }
+    }
+
+    @Override
+    public List<String> list(String path) throws IOException {
+        Entry entry = entries.get(normalize(path));
+        if (entry == null || !entry.isDirectory()) {
+            throw new FileNotFoundException("Not a directory: " + path);
+        }
+        return new ArrayList<>(entry.children);
+    }
+
+    @Override
+    public synchronized boolean createDirectories(String path) {
+        String normalized = normalize(path);
+        Entry entry = entries.get(normalized);
+        if (entry != null) {
+            return entry.isDirectory();
+        }
+        String parent = parentOf(normalized);
+        if (!createDirectories(parent)) {
+            return false;
+        }
+        entries.put(normalized, new Entry(true));
+        entries.get(parent).children.add(nameOf(normalized));
+        return true;
+    }
+
+    @Override
+    public synchronized boolean createFile(String path) throws IOException {
+        String normalized = normalize(path);
+        if (entries.containsKey(normalized)) {
+            return false;
+        }
+        if (!createDirectories(parentOf(normalized))) {
+            throw new IOException("Cannot create the directory of " + path);
+        }
+        add(normalized);
+        return true;
+    }
+
+    @Override
+    public byte[] read(String path) throws IOException {
+        return read(path, 0, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public byte[] read(String path, long offset, int length) throws IOException {
+        return file(path).read(offset, length);
+    }
+
+    @Override
+    public void write(String path, byte[] data) throws IOException {
+        fileToWrite(path).write(data);
+    }
+
+    @Override
+    public void append(String path, byte[] data) throws IOException {
+        fileToWrite(path).append(data);
+    }
+
+    @Override
+    public void truncate(String path, long size) throws IOException {
+        if (size > Integer.MAX_VALUE - 8) {
+            throw new IOException("File too large to keep in memory: " + size + " bytes");
+        }
+        fileToWrite(path).truncate(size);
+    }
+
+    @Override
+    public synchronized void move(String source, String target) throws IOException {
+        String from = normalize(source);
+        String to = normalize(target);
+        Entry entry = file(from);
+        Entry replaced = entries.get(to);
+        if (replaced != null && replaced.isDirectory()) {
+            throw new IOException("Cannot replace a directory: " + target);
+        }
+        Entry parent = entries.get(parentOf(to));
+        if (parent == null || !parent.isDirectory()) {
+            throw new FileNotFoundException("No directory for " + target);
+        }
+        entries.remove(from);
+        entries.get(parentOf(from)).children.remove(nameOf(from));
+        entries.put(to, entry);
+        parent.children.add(nameOf(to));
+    }
+
+    @Override
+    public synchronized boolean delete(String path) {
+        String normalized = normalize(path);
+        Entry entry = entries.get(normalized);
+        if (normalized.isEmpty() || entry == null || (entry.isDirectory() && !entry.children.isEmpty())) {
+            return false;
+        }
+        entries.remove(normalized);
+        entries.get(parentOf(normalized)).children.remove(nameOf(normalized));
+        return true;
+    }
+
+    @Override
+    public void force(String path) throws IOException {
+        file(path);
+    }
+
+    /**
+     * @return The number of bytes stored
+     */
+    public long getBytes() {
+        long bytes = 0;
+        for (Entry entry : entries.values()) {
+            if (!entry.isDirectory()) {
+                synchronized (entry) {
+                    bytes += entry.length;
+                }
+            }
+        }
+        return bytes;
+    }
+
+    private Entry file(String path) throws FileNotFoundException {
+        Entry entry = entries.get(normalize(path));
+        if (entry == null || entry.isDirectory()) {
+            throw new FileNotFoundException("Not a file: " + path);
+        }
+        return entry;
+    }
+
+    /**
+     * Gets a file to write, creating it if its directory exists.
+     */
+    private Entry fileToWrite(String path) throws IOException {
+        String normalized = normalize(path);
+        Entry entry = entries.get(normalized);
+        if (entry == null) {
+            synchronized (this) {
+                Entry parent = entries.get(parentOf(normalized));
+                if (parent == null || !parent.isDirectory()) {
+                    throw new FileNotFoundException("No directory for " + path);
+                }
+                entry = entries.get(normalized);
+                if (entry == null) {
+                    entry = add(normalized);
+                }
+            }
+        }
+        if (entry.isDirectory()) {
+            throw new IOException("Is a directory: " + path);
+        }
+        return entry;
+    }
+
+    private Entry add(String normalized) {
+        Entry entry = new Entry(false);
+        entries.put(normalized, entry);
+        entries.get(parentOf(normalized)).children.add(nameOf(normalized));
+        return entry;
+    }
+
+    private static String parentOf(String normalized) {
+        int separator = normalized.lastIndexOf('/');
+        return separator < 0 ? "" : normalized.substring(0, separator);
+    }
+
+    private static String nameOf(String normalized) {
+        return normalized.substring(normalized.lastIndexOf('/') + 1);
+    }
+
+    @Override
+    public String toString() {
+        return "files in memory, scratch directory " + scratch;
+    }
+}
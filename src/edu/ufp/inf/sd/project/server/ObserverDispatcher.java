@@ -0,0 +1,277 @@
+package edu.ufp.inf.sd.project.server;
+
+import edu.ufp.inf.sd.project.client.ObserverRI;
+
+import java.rmi.RemoteException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Asynchronous fan-out of filesystem operations to remote observers.
+ * Each observer gets its own bounded queue and sender thread, so publishing never waits for a client and a slow
+ * or dead client only delays itself. When a queue is full the configured {@link OverflowPolicy} applies, and an
+ * observer whose delivery fails is disconnected without affecting the others.
+ * <p>
+ * Published operations are first held for a short coalescing window, during which redundant operations on the
+ * same path collapse (see {@link OperationCoalescer}); the survivors are then queued for every observer.
+ * <p>
+ * The queue capacity, overflow policy, delivery timeout and coalescing window are read from the system properties
+ * {@value #QUEUE_CAPACITY_PROPERTY}, {@value #OVERFLOW_POLICY_PROPERTY}, {@value #DELIVERY_TIMEOUT_PROPERTY} and
+ * {@value #COALESCE_WINDOW_PROPERTY}; a window of 0 delivers every operation as soon as it is published.
+ * The delivery timeout is enforced by the RMI transport (see {@link #configureDeliveryTimeout()}).
+ */
+public class ObserverDispatcher {
+
+    public static final String QUEUE_CAPACITY_PROPERTY = "edu.ufp.inf.sd.project.observer.queueCapacity";
+    public static final String OVERFLOW_POLICY_PROPERTY = "edu.ufp.inf.sd.project.observer.overflowPolicy";
+    public static final String DELIVERY_TIMEOUT_PROPERTY = "edu.ufp.inf.sd.project.observer.deliveryTimeoutMillis";
+    public static final String COALESCE_WINDOW_PROPERTY = "edu.ufp.inf.sd.project.observer.coalesceWindowMillis";
+
+    private static final String RMI_RESPONSE_TIMEOUT_PROPERTY = "sun.rmi.transport.tcp.responseTimeout";
+    private static final AtomicInteger SENDER_COUNT = new AtomicInteger();
+
+    // Closes the coalescing windows of every dispatcher; a single thread keeps the windows of a dispatcher in order
+    private static final ScheduledExecutorService WINDOW_TIMER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "observer-coalescer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * What happens to an operation published to an observer whose queue is full.
+     */
+    public enum OverflowPolicy {
+        /**
+         * Discard the new operation.
+         */
+        DROP,
+        /**
+         * Coalesce the new operation with the queued ones as a coalescing window does, e.g. replacing the queued update
+         * of its file, never a creation; if that makes no room, disconnect the observer, so nothing is lost silently.
+         */
+        COALESCE,
+        /**
+         * Disconnect the observer, which is too slow to keep up.
+         */
+        DISCONNECT
+    }
+
+    private final String name;
+    private final int queueCapacity;
+    private final OverflowPolicy overflowPolicy;
+    private final long coalesceWindowMillis;
+    private final Map<ObserverRI, ObserverChannel> channels = new ConcurrentHashMap<>();
+    private final OperationCoalescer window = new OperationCoalescer();
+    private boolean windowOpen;
+
+    public ObserverDispatcher(String name) {
+        this(name, Integer.getInteger(QUEUE_CAPACITY_PROPERTY, 256),
+                OverflowPolicy.valueOf(System.getProperty(OVERFLOW_POLICY_PROPERTY, OverflowPolicy.COALESCE.name())),
+                Long.getLong(COALESCE_WINDOW_PROPERTY, 50));
+    }
+
+    public ObserverDispatcher(String name, int queueCapacity, OverflowPolicy overflowPolicy, long coalesceWindowMillis) {
+        if (queueCapacity <= 0) {
+            throw new IllegalArgumentException("Queue capacity must be positive: " + queueCapacity);
+        }
+        if (coalesceWindowMillis < 0) {
+            throw new IllegalArgumentException("Coalescing window must not be negative: " + coalesceWindowMillis);
+        }
+        this.name = name;
+        this.queueCapacity = queueCapacity;
+        this.overflowPolicy = overflowPolicy;
+        this.coalesceWindowMillis = coalesceWindowMillis;
+    }
+
+    /**
+     * Makes the RMI transport give up on a callback after the configured delivery timeout, unless a response
+     * timeout was already set. Must be called before the first remote call is made.
+     */
+    public static void configureDeliveryTimeout() {
+        if (System.getProperty(RMI_RESPONSE_TIMEOUT_PROPERTY) == null) {
+            System.setProperty(RMI_RESPONSE_TIMEOUT_PROPERTY, String.valueOf(Long.getLong(DELIVERY_TIMEOUT_PROPERTY, 5000)));
+        }
+    }
+
+    /**
+     * Registers an observer and starts its sender. Registering the same observer again has no effect.
+     *
+     * @param observer The observer to register
+     */
+    public void register(ObserverRI observer) {
+        channels.computeIfAbsent(observer, ObserverChannel::new);
+    }
+
+    /**
+     * Unregisters an observer, discarding the operations not yet delivered to it.
+     *
+     * @param observer The observer to unregister
+     * @return true if the observer was registered
+     */
+    public boolean unregister(ObserverRI observer) {
+        ObserverChannel channel = channels.remove(observer);
+        if (channel == null) {
+            return false;
+        }
+        channel.close();
+        return true;
+    }
+
+    /**
+     * Adds an operation to the current coalescing window, opening one if needed, and returns without waiting
+     * for any delivery. The operations that survive the window are queued for every registered observer when it closes.
+     *
+     * @param operation The operation to publish
+     */
+    public void publish(StateFileSystemOperation operation) {
+        if (coalesceWindowMillis == 0) {
+            fanOut(operation);
+            return;
+        }
+        synchronized (window) {
+            window.add(operation);
+            if (!windowOpen) {
+                windowOpen = true;
+                WINDOW_TIMER.schedule(this::closeWindow, coalesceWindowMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    private void closeWindow() {
+        List<StateFileSystemOperation> operations;
+        synchronized (window) {
+            windowOpen = false;
+            operations = window.drain();
+        }
+        for (StateFileSystemOperation operation : operations) {
+            fanOut(operation);
+        }
+    }
+
+    private void fanOut(StateFileSystemOperation operation) {
+        for (ObserverChannel channel : channels.values()) {
+            channel.offer(operation);
+        }
+    }
+
+    public int getObserverCount() {
+        return channels.size();
+    }
+
+    /**
+     * Gets how many published operations were dropped by coalescing, for all observers at once.
+     *
+     * @return The number of operations coalesced away since this dispatcher was created
+     */
+    public long getCoalescedCount() {
+        synchronized (window) {
+            return window.getRemoved();
+        }
+    }
+
+    /**
+     * Unregisters every observer, discarding the operations of the open coalescing window.
+     */
+    public void close() {
+        synchronized (window) {
+            window.drain();
+        }
+        for (ObserverRI observer : new ArrayList<>(channels.keySet())) {
+            unregister(observer);
+        }
+    }
+
+    /**
+     * Bounded queue and sender thread of one observer.
+     */
+    private final class ObserverChannel implements Runnable {
+        private final ObserverRI observer;
+        // Only coalesced when it is full
+        private final OperationCoalescer queue = new OperationCoalescer();
+        private final Thread sender;
+        private long dropped;
+        private boolean closed;
+
+        ObserverChannel(ObserverRI observer) {
+            this.observer = observer;
+            this.sender = new Thread(this, "observer-sender-" + name + "-" + SENDER_COUNT.incrementAndGet());
+            this.sender.setDaemon(true);
+            this.sender.start();
+        }
+
+        void offer(StateFileSystemOperation operation) {
+            boolean disconnect = false;
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                if (queue.size() < queueCapacity) {
+                    queue.append(operation);
+                    notifyAll();
+                    return;
+                }
+                switch (overflowPolicy) {
+                    case COALESCE:
+                        // The order of the operations on each path is kept, so the observer ends in the same state
+                        queue.add(operation);
+                        disconnect = queue.size() > queueCapacity;
+                        notifyAll();
+                        break;
+                    case DISCONNECT:
+                        disconnect = true;
+                        break;
+                    default:
+                        dropped++;
+                }
+            }
+            if (disconnect) {
+                System.out.println("Observer of " + name + " is too slow (" + queueCapacity + " operations queued), disconnecting it");
+                unregister(observer);
+            }
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                StateFileSystemOperation operation;
+                synchronized (this) {
+                    while (queue.isEmpty() && !closed) {
+                        try {
+                            wait();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                    if (closed) {
+                        return;
+                    }
+                    operation = queue.poll();
+                }
+                try {
+                    observer.update(operation);
+                } catch (RemoteException e) {
+                    System.err.println("Failed to notify an observer of " + name + ", disconnecting it: " + e.getMessage());
+                    unregister(observer);
+                    return;
+                }
+            }
+        }
+
+        void close() {
+            long lost;
+            synchronized (this) {
+                closed = true;
+                lost = queue.size() + dropped;
+                queue.drain();
+                notifyAll();
+            }
+            if (lost > 0) {
+                System.out.println("Observer of " + name + " closed with " + lost + " operations not delivered");
+            }
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package edu.ufp.inf.sd.project.server;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Collapses redundant filesystem operations collected during a coalescing window:
+ * an UPDATEFILE supersedes the pending UPDATEFILE of the same path, a DELETEFILE supersedes the pending
+ * UPDATEFILEs of its path, and a DELETEFILE of a file created in the same window cancels the whole
+ * create/update/delete sequence. The relative order of the remaining operations is preserved.
+ * Operations can also be taken one at a time, so it can serve as a queue that is only coalesced when it must shrink.
+ * Not thread-safe; callers synchronize.
+ */
+public class OperationCoalescer {
+
+    private final ArrayDeque<StateFileSystemOperation> pending = new ArrayDeque<>();
+    private long received;
+    private long removed;
+
+    /**
+     * Adds an operation to the window, dropping the pending operations it makes redundant.
+     *
+     * @param operation The new operation
+     */
+    public void add(StateFileSystemOperation operation) {
+        received++;
+        switch (operation.getType()) {
+            case UPDATEFILE:
+                removeSamePath(operation, StateFileSystemOperation.OperationType.UPDATEFILE);
+                pending.add(operation);
+                break;
+            case DELETEFILE:
+                removeSamePath(operation, StateFileSystemOperation.OperationType.UPDATEFILE);
+                if (removeSamePath(operation, StateFileSystemOperation.OperationType.CREATEFILE)) {
+                    // The file never existed outside this window
+                    removed++;
+                } else {
+                    pending.add(operation);
+                }
+                break;
+            default:
+                pending.add(operation);
+        }
+    }
+
+    /**
+     * Adds an operation after the pending ones, without coalescing.
+     *
+     * @param operation The new operation
+     */
+    public void append(StateFileSystemOperation operation) {
+        received++;
+        pending.addLast(operation);
+    }
+
+    /**
+     * Takes the first pending operation.
+     *
+     * @return The operation, or null if there is none
+     */
+    public StateFileSystemOperation poll() {
+        return pending.pollFirst();
+    }
+
+    /**
+     * Takes the coalesced operations of the window, in order, and starts a new window.
+     *
+     * @return The operations to deliver
+     */
+    public List<StateFileSystemOperation> drain() {
+        List<StateFileSystemOperation> operations = new ArrayList<>(pending);
+        pending.clear();
+        return operations;
+    }
+
+    public boolean isEmpty() {
+        return pending.isEmpty();
+    }
+
+    public int size() {
+        return pending.size();
+    }
+
+    public long getReceived() {
+        return received;
+    }
+
+    public long getRemoved() {
+        return removed;
+    }
+
+    /**
+     * Removes the last pending operation of the given type on the same path as the operation, scanning back only
+     * until an operation on the same path of another type, which must keep its place in front of the new one.
+     */
+    private boolean removeSamePath(StateFileSystemOperation operation, StateFileSystemOperation.OperationType type) {
+        String key = pathKey(operation);
+        Iterator<StateFileSystemOperation> iterator = pending.descendingIterator();
+        while (iterator.hasNext()) {
+            StateFileSystemOperation candidate = iterator.next();
+            if (pathKey(candidate).equals(key)) {
+                if (candidate.getType() != type) {
+                    return false;
+                }
+                iterator.remove();
+                removed++;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Gets the key that identifies the path an operation applies to.
+     *
+     * @param operation The operation
+     * @return The folder path followed by '/', plus the file name for file operations
+     */
+    static String pathKey(StateFileSystemOperation operation) {
+        List<String> params = operation.getParams();
+        switch (operation.getType()) {
+            case CREATEFOLDER:
+            case DELETEFOLDER:
+                return params.get(0) + "/";
+            default:
+                return params.get(0) + "/" + params.get(1);
+        }
+    }
+}
@@ -0,0 +1,224 @@
+package edu.ufp.inf.sd.project.server;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact binary encoding of {@link StateFileSystemOperation}.
+ * <p>
+ * Layout: {@code byte header | string username | varint count | path | string params...}, where strings are a varint
+ * length followed by UTF-8 bytes. The header holds the operation type in its low 3 bits, plus a flag telling that the
+ * path starts with "username/", in which case that prefix is left out. When a {@link PathDictionary} is shared by
+ * the encoder and the decoder of a stream, the path is a varint reference to a path already sent, or 0 followed by
+ * the new path.
+ * <p>
+ * When the params after the path (e.g. the content of an update) are long enough and compress, they are sent deflated
+ * with the preferred {@link Compression}, as {@code varint length | varint compressed length | bytes}, and the header
+ * has a flag telling so. Every reader understands both forms, so the writer decides alone, payload by payload.
+ */
+public final class OperationCodec {
+
+    private static final int TYPE_MASK = 0x07;
+    private static final int FLAG_USER_RELATIVE = 0x08;
+    private static final int FLAG_DEFLATED = 0x10;
+
+    private OperationCodec() {
+    }
+
+    /**
+     * Writes an operation.
+     *
+     * @param out        The output
+     * @param operation  The operation
+     * @param dictionary The dictionary of the paths already written to this output, or null to write paths in full
+     * @throws IOException If the output fails
+     */
+    public static void write(DataOutput out, StateFileSystemOperation operation, PathDictionary dictionary) throws IOException {
+        List<String> params = operation.getParams();
+        String username = operation.getUsername();
+        String path = params.isEmpty() ? null : params.get(0);
+        int header = operation.getType().ordinal();
+        if (path != null && username != null && path.startsWith(username + "/")) {
+            header |= FLAG_USER_RELATIVE;
+            path = path.substring(username.length() + 1);
+        }
+
+        byte[] rest = null;
+        byte[] compressed = null;
+        if (params.size() > 1 && mayCompress(params)) {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            DataOutputStream restOut = new DataOutputStream(buffer);
+            for (int i = 1; i < params.size(); i++) {
+                writeString(restOut, params.get(i));
+            }
+            rest = buffer.toByteArray();
+            compressed = Compression.preferred().deflate(rest, Compression.TOTAL);
+            if (compressed != null) {
+                header |= FLAG_DEFLATED;
+            }
+        }
+
+        out.writeByte(header);
+        writeString(out, username);
+        writeVarInt(out, params.size());
+        if (path != null) {
+            int reference = dictionary == null ? -1 : dictionary.lookup(path);
+            if (dictionary != null) {
+                writeVarInt(out, reference + 1);
+            }
+            if (reference < 0) {
+                writeString(out, path);
+            }
+        }
+        if (compressed != null) {
+            writeVarInt(out, rest.length);
+            writeVarInt(out, compressed.length);
+            out.write(compressed);
+        } else if (rest != null) {
+            out.write(rest);
+        } else {
+            for (int i = 1; i < params.size(); i++) {
+                writeString(out, params.get(i));
+            }
+        }
+    }
+
+    /**
+     * Tells whether the params after the path may reach the length worth compressing, without encoding them.
+     */
+    private static boolean mayCompress(List<String> params) {
+        long chars = 0;
+        for (int i = 1; i < params.size(); i++) {
+            chars += params.get(i) == null ? 0 : params.get(i).length();
+        }
+        // A char is at most 3 bytes of UTF-8
+        return chars * 3 >= Compression.getMinBytes();
+    }
+
+    /**
+     * Reads an operation written by {@link #write}.
+     *
+     * @param in         The input
+     * @param dictionary The dictionary the operation was written with, or null
+     * @return The operation
+     * @throws IOException If the input fails or is not a valid operation
+     */
+    public static StateFileSystemOperation read(DataInput in, PathDictionary dictionary) throws IOException {
+        int header = in.readUnsignedByte();
+        StateFileSystemOperation.OperationType[] types = StateFileSystemOperation.OperationType.values();
+        if ((header & TYPE_MASK) >= types.length) {
+            throw new StreamCorruptedException("Unknown operation type " + (header & TYPE_MASK));
+        }
+        String username = readString(in);
+        int count = readVarInt(in);
+        ArrayList<String> params = new ArrayList<>(count);
+        if (count > 0) {
+            String path;
+            int reference = dictionary == null ? 0 : readVarInt(in);
+            if (reference == 0) {
+                path = readString(in);
+                if (dictionary != null) {
+                    dictionary.lookup(path);
+                }
+            } else {
+                path = dictionary.get(reference - 1);
+            }
+            params.add((header & FLAG_USER_RELATIVE) != 0 ? username + "/" + path : path);
+        }
+        DataInput rest = in;
+        if ((header & FLAG_DEFLATED) != 0) {
+            int length = readVarInt(in);
+            byte[] compressed = new byte[readVarInt(in)];
+            in.readFully(compressed);
+            rest = new DataInputStream(new ByteArrayInputStream(
+                    Compression.inflate(compressed, 0, compressed.length, length, Compression.TOTAL)));
+        }
+        for (int i = 1; i < count; i++) {
+            params.add(readString(rest));
+        }
+        return new StateFileSystemOperation(username, params, types[header & TYPE_MASK]);
+    }
+
+    /**
+     * Writes an unsigned LEB128 varint: 7 bits per byte, high bit set on every byte but the last.
+     */
+    public static void writeVarInt(DataOutput out, int value) throws IOException {
+        while ((value & ~0x7f) != 0) {
+            out.writeByte((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    public static int readVarInt(DataInput in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new StreamCorruptedException("Varint longer than 5 bytes");
+    }
+
+    // A length of 0 is the empty string; null is written as length 0 too, as operations never carry null params
+    private static void writeString(DataOutput out, String value) throws IOException {
+        byte[] bytes = value == null ? new byte[0] : value.getBytes(StandardCharsets.UTF_8);
+        writeVarInt(out, bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInput in) throws IOException {
+        byte[] bytes = new byte[readVarInt(in)];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Paths already sent on a stream, numbered in the order they were first sent. The encoder and the decoder of
+     * the stream each keep one and update it identically, so the paths never need to be sent twice.
+     * Once full, new paths are sent in full without being added.
+     */
+    public static class PathDictionary {
+        private final int capacity;
+        private final Map<String, Integer> indexes = new HashMap<>();
+        private final List<String> paths = new ArrayList<>();
+
+        public PathDictionary(int capacity) {
+            this.capacity = capacity;
+        }
+
+        /**
+         * Looks a path up, adding it if it is new and there is room.
+         *
+         * @return The index of the path, or -1 if it was not in the dictionary
+         */
+        int lookup(String path) {
+            Integer index = indexes.get(path);
+            if (index != null) {
+                return index;
+            }
+            if (paths.size() < capacity) {
+                indexes.put(path, paths.size());
+                paths.add(path);
+            }
+            return -1;
+        }
+
+        String get(int index) throws IOException {
+            if (index >= paths.size()) {
+                throw new StreamCorruptedException("Unknown path reference " + index);
+            }
+            return paths.get(index);
+        }
+
+        public int size() {
+            return paths.size();
+        }
+    }
+}
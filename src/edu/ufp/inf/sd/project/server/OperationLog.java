@@ -0,0 +1,482 @@
+package edu.ufp.inf.sd.project.server;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.zip.CRC32C;
+
+/**
+ * Append-only, checksummed write-ahead log of the filesystem operations applied on the server.
+ * Every record is made durable before the operation is executed, so the operations can be replayed after a crash.
+ * Appends from concurrent sessions are grouped: a single writer thread writes every pending record and
+ * forces them to disk with one fsync, so the cost of an fsync is shared by all the writers waiting on it.
+ * <p>
+ * Record layout: {@code int length | int crc32c | long sequence | byte type | string username | int count | string params...},
+ * where strings are an int length followed by UTF-8 bytes, and the length and the checksum cover everything after the checksum.
+ * <p>
+ * Once every operation up to a sequence number has been applied and its files forced to disk, a checkpoint records that
+ * sequence, with the state the caller needs to restore without those operations (the versions of the files), in a file
+ * next to the log. Only the operations after the checkpoint are replayed, and the log is compacted down to them, so it
+ * holds at most about {@value #CHECKPOINT_INTERVAL_PROPERTY} operations (1000 by default) plus the ones in flight.
+ */
+public class OperationLog implements Closeable {
+
+    public static final String CHECKPOINT_INTERVAL_PROPERTY = "edu.ufp.inf.sd.project.oplog.checkpointInterval";
+
+    private static final int HEADER_SIZE = 8;
+
+    private static OperationLog instance;
+
+    private final File file;
+    private final File checkpointFile;
+    private final long checkpointInterval;
+    private final Object lock = new Object();
+    private final Object checkpointLock = new Object();
+    private final Thread writer;
+    private FileChannel channel;
+
+    private List<ByteBuffer> pending = new ArrayList<>();
+    private long nextSequence;
+    private long currentBatch = 1;
+    private long durableBatch;
+    private IOException failure;
+    private boolean closed;
+
+    // Applied ranges of sequence numbers not yet contiguous with the applied prefix, by first sequence
+    private final TreeMap<Long, Long> appliedRanges = new TreeMap<>();
+    private long appliedSequence;
+    private long checkpointSequence;
+    private Map<String, String> checkpointState = Map.of();
+    private long compactBefore = -1;
+
+    /**
+     * Opens the log, dropping a torn record left at its end by a crash.
+     *
+     * @param file               The log file
+     * @param checkpointInterval The number of applied operations between checkpoints
+     * @throws IOException If the log cannot be opened
+     */
+    public OperationLog(File file, long checkpointInterval) throws IOException {
+        this.file = file;
+        this.checkpointFile = new File(file.getPath() + ".checkpoint");
+        this.checkpointInterval = checkpointInterval;
+        file.getParentFile().mkdirs();
+        readCheckpoint();
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        long[] lastSequence = {checkpointSequence};
+        long validLength = scan(channel, (sequence, body) -> lastSequence[0] = Math.max(lastSequence[0], sequence));
+        if (validLength < channel.size()) {
+            System.out.println("Operation log: truncating torn tail at " + validLength + " (was " + channel.size() + " bytes)");
+            channel.truncate(validLength);
+            channel.force(true);
+        }
+        channel.position(validLength);
+        this.nextSequence = lastSequence[0];
+        this.appliedSequence = checkpointSequence;
+
+        this.writer = new Thread(this::writeLoop, "operation-log-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    protected static synchronized OperationLog getOperationLogInstance() throws IOException {
+        if (instance == null) {
+            instance = new OperationLog(Storage.getStorageInstance().toFile(Storage.path(Storage.SERVER, ".oplog", "operations.log")),
+                    Long.getLong(CHECKPOINT_INTERVAL_PROPERTY, 1000));
+        }
+        return instance;
+    }
+
+    /**
+     * Appends an operation and waits until it is durable.
+     *
+     * @param operation The operation about to be executed
+     * @return The sequence number given to the operation
+     * @throws IOException If the log cannot be written or forced to disk
+     */
+    public long append(StateFileSystemOperation operation) throws IOException {
+        return appendAll(List.of(operation));
+    }
+
+    /**
+     * Appends operations with consecutive sequence numbers and waits until they are all durable, which takes a single
+     * fsync however many there are.
+     *
+     * @param operations The operations about to be executed, in order
+     * @return The sequence number given to the first operation
+     * @throws IOException If the log cannot be written or forced to disk
+     */
+    public long appendAll(List<StateFileSystemOperation> operations) throws IOException {
+        if (operations.isEmpty()) {
+            synchronized (lock) {
+                return nextSequence + 1;
+            }
+        }
+        List<byte[]> bodies = new ArrayList<>(operations.size());
+        for (StateFileSystemOperation operation : operations) {
+            bodies.add(encodeBody(operation));
+        }
+        long sequence;
+        long batch;
+        synchronized (lock) {
+            if (closed) {
+                throw new IOException("Operation log is closed");
+            }
+            sequence = nextSequence + 1;
+            for (byte[] body : bodies) {
+                pending.add(encodeRecord(++nextSequence, body));
+            }
+            batch = currentBatch;
+            lock.notifyAll();
+
+            while (durableBatch < batch && failure == null) {
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for the operation log");
+                }
+            }
+            if (durableBatch < batch) {
+                throw new IOException("Operation log write failed", failure);
+            }
+        }
+        return sequence;
+    }
+
+    /**
+     * Reads the valid records of the log after the last checkpoint, in order, which then count as applied. It is
+     * called once, before anything is appended, as the operations appended before it are never checkpointed otherwise.
+     *
+     * @param consumer Receives each logged operation
+     * @return The number of operations replayed
+     * @throws IOException If the log cannot be read
+     */
+    public long replay(Consumer<StateFileSystemOperation> consumer) throws IOException {
+        long[] count = new long[1];
+        synchronized (lock) {
+            scan(channel, (sequence, body) -> {
+                if (sequence > checkpointSequence) {
+                    // A record that cannot be applied must not keep the server from starting
+                    try {
+                        consumer.accept(decodeBody(body));
+                        count[0]++;
+                    } catch (IOException | RuntimeException e) {
+                        System.err.println("Operation log: skipping record #" + sequence + " that failed to replay: " + e);
+                    }
+                }
+            });
+            appliedSequence = Math.max(appliedSequence, nextSequence);
+        }
+        return count[0];
+    }
+
+    /**
+     * Records that logged operations have been applied, or failed to, so they need not be replayed once a checkpoint
+     * covers them.
+     *
+     * @param first The sequence number of the first operation
+     * @param count The number of consecutive operations
+     * @return true if enough operations were applied since the last checkpoint for a new one to be taken
+     */
+    public boolean applied(long first, int count) {
+        if (count <= 0) {
+            return false;
+        }
+        synchronized (lock) {
+            appliedRanges.put(first, first + count - 1);
+            Long last;
+            while ((last = appliedRanges.remove(appliedSequence + 1)) != null) {
+                appliedSequence = last;
+            }
+            return appliedSequence - checkpointSequence >= checkpointInterval;
+        }
+    }
+
+    /**
+     * @return The sequence number up to which every logged operation has been applied
+     */
+    public long getAppliedSequence() {
+        synchronized (lock) {
+            return appliedSequence;
+        }
+    }
+
+    /**
+     * @return The state saved with the last checkpoint, empty if there is none
+     */
+    public Map<String, String> getCheckpointState() {
+        synchronized (lock) {
+            return checkpointState;
+        }
+    }
+
+    /**
+     * Durably records that the operations up to a sequence number no longer need to be replayed, and has the log
+     * compacted down to the operations after it.
+     *
+     * @param sequence A sequence number no greater than {@link #getAppliedSequence()}, whose operations have reached
+     *                 the disk
+     * @param state    What is needed to restore the state those operations left, besides the files
+     * @throws IOException If the checkpoint cannot be written
+     */
+    public void checkpoint(long sequence, Map<String, String> state) throws IOException {
+        synchronized (checkpointLock) {
+            synchronized (lock) {
+                if (sequence <= checkpointSequence) {
+                    return;
+                }
+            }
+            File temporary = new File(checkpointFile.getPath() + ".tmp");
+            try (FileOutputStream out = new FileOutputStream(temporary);
+                 DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out))) {
+                data.writeLong(sequence);
+                data.writeInt(state.size());
+                for (Map.Entry<String, String> entry : state.entrySet()) {
+                    writeString(data, entry.getKey());
+                    writeString(data, entry.getValue());
+                }
+                data.flush();
+                out.getFD().sync();
+            }
+            Files.move(temporary.toPath(), checkpointFile.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            synchronized (lock) {
+                checkpointSequence = sequence;
+                checkpointState = Map.copyOf(state);
+                compactBefore = sequence;
+                lock.notifyAll();
+            }
+            System.out.println("Operation log: checkpoint at #" + sequence);
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    private void writeLoop() {
+        while (true) {
+            List<ByteBuffer> batch;
+            long batchNumber;
+            long compaction;
+            synchronized (lock) {
+                while (pending.isEmpty() && compactBefore < 0 && !closed) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (pending.isEmpty() && compactBefore < 0) {
+                    return;
+                }
+                compaction = compactBefore;
+                compactBefore = -1;
+                batch = pending;
+                pending = new ArrayList<>();
+                batchNumber = batch.isEmpty() ? 0 : currentBatch++;
+            }
+
+            if (compaction >= 0) {
+                try {
+                    compact(compaction);
+                } catch (IOException e) {
+                    // The log is still whole, only longer than it needs to be
+                    System.err.println("Operation log compaction failed: " + e.getMessage());
+                }
+            }
+            if (batch.isEmpty()) {
+                continue;
+            }
+
+            try {
+                ByteBuffer[] buffers = batch.toArray(new ByteBuffer[0]);
+                long remaining = 0;
+                for (ByteBuffer buffer : buffers) {
+                    remaining += buffer.remaining();
+                }
+                while (remaining > 0) {
+                    remaining -= channel.write(buffers);
+                }
+                channel.force(false);
+                synchronized (lock) {
+                    durableBatch = batchNumber;
+                    lock.notifyAll();
+                }
+            } catch (IOException e) {
+                System.err.println("Operation log write failed: " + e.getMessage());
+                synchronized (lock) {
+                    failure = e;
+                    closed = true;
+                    lock.notifyAll();
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Rewrites the log with only the records after a sequence number, and moves it over the log. Only the writer
+     * thread writes the log, so nothing is appended meanwhile.
+     */
+    private void compact(long sequence) throws IOException {
+        File compacted = new File(file.getPath() + ".compact");
+        long[] kept = new long[1];
+        try (FileChannel out = FileChannel.open(compacted.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            scan(channel, (recordSequence, body) -> {
+                if (recordSequence > sequence) {
+                    ByteBuffer record = encodeRecord(recordSequence, body);
+                    while (record.hasRemaining()) {
+                        out.write(record);
+                    }
+                    kept[0]++;
+                }
+            });
+            out.force(true);
+        }
+        long before = channel.size();
+        Files.move(compacted.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        FileChannel reopened = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        reopened.position(reopened.size());
+        FileChannel old;
+        synchronized (lock) {
+            old = channel;
+            channel = reopened;
+        }
+        old.close();
+        System.out.println("Operation log: compacted from " + before + " to " + reopened.size() + " bytes, " + kept[0]
+                + " operations after #" + sequence);
+    }
+
+    private interface RecordConsumer {
+        /**
+         * @param body The body of a record, starting with its sequence number
+         */
+        void accept(long sequence, byte[] body) throws IOException;
+    }
+
+    /**
+     * Scans a log from the start, stopping at the first record that is incomplete or fails its checksum.
+     *
+     * @return The length of the valid prefix of the log
+     */
+    private static long scan(FileChannel channel, RecordConsumer consumer) throws IOException {
+        long position = 0;
+        long size = channel.size();
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        while (position + HEADER_SIZE <= size) {
+            header.clear();
+            channel.read(header, position);
+            header.flip();
+            int length = header.getInt();
+            int crc = header.getInt();
+            if (length <= 0 || position + HEADER_SIZE + length > size) {
+                break;
+            }
+            ByteBuffer body = ByteBuffer.allocate(length);
+            while (body.hasRemaining() && channel.read(body, position + HEADER_SIZE + body.position()) > 0) {
+                // keep reading until the whole record is in
+            }
+            CRC32C checksum = new CRC32C();
+            checksum.update(body.array(), 0, length);
+            if ((int) checksum.getValue() != crc) {
+                break;
+            }
+            consumer.accept(ByteBuffer.wrap(body.array()).getLong(0), body.array());
+            position += HEADER_SIZE + length;
+        }
+        return position;
+    }
+
+    private static byte[] encodeBody(StateFileSystemOperation operation) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeLong(0); // sequence, filled in when the record is sequenced
+            out.writeByte(operation.getType().ordinal());
+            writeString(out, operation.getUsername());
+            out.writeInt(operation.getParams().size());
+            for (String param : operation.getParams()) {
+                writeString(out, param);
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    private static ByteBuffer encodeRecord(long sequence, byte[] body) {
+        ByteBuffer.wrap(body).putLong(0, sequence);
+        CRC32C checksum = new CRC32C();
+        checksum.update(body, 0, body.length);
+        ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + body.length);
+        record.putInt(body.length).putInt((int) checksum.getValue()).put(body);
+        record.flip();
+        return record;
+    }
+
+    private static StateFileSystemOperation decodeBody(byte[] body) throws IOException {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(body, Long.BYTES, body.length - Long.BYTES))) {
+            return decodeBody(in);
+        }
+    }
+
+    private static StateFileSystemOperation decodeBody(DataInputStream in) throws IOException {
+        StateFileSystemOperation.OperationType type = StateFileSystemOperation.OperationType.values()[in.readUnsignedByte()];
+        String username = readString(in);
+        int count = in.readInt();
+        ArrayList<String> params = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            params.add(readString(in));
+        }
+        return new StateFileSystemOperation(username, params, type);
+    }
+
+    // writeUTF is limited to 64 KB, and file contents travel as params
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private void readCheckpoint() throws IOException {
+        if (!checkpointFile.exists()) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(checkpointFile)))) {
+            checkpointSequence = in.readLong();
+            int count = in.readInt();
+            Map<String, String> state = new HashMap<>(count);
+            for (int i = 0; i < count; i++) {
+                state.put(readString(in), readString(in));
+            }
+            checkpointState = Map.copyOf(state);
+        }
+        System.out.println("Operation log: checkpoint at #" + checkpointSequence);
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (lock) {
+            closed = true;
+            lock.notifyAll();
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        channel.close();
+    }
+}
@@ -0,0 +1,85 @@
+package edu.ufp.inf.sd.project.server;
+
+import java.io.Serial;
+import java.io.Serializable;
+
+/**
+ * The outcome of one operation of a batch applied with {@link SubjectFileSystemRI#applyOperations}.
+ */
+public class OperationResult implements Serializable {
+    @Serial
+    private static final long serialVersionUID = 2L;
+
+    public enum Status {
+        /**
+         * Applied and its observers notified
+         */
+        APPLIED,
+        /**
+         * The filesystem could not be changed as it asks (e.g. the file to update does not exist)
+         */
+        NOT_APPLIED,
+        /**
+         * Rejected, as it updates a file from a version older than, or concurrent with, the current one
+         */
+        CONFLICT
+    }
+
+    private final long sequence;
+    private final Status status;
+    private final int replicas;
+    private final String version;
+
+    public OperationResult(long sequence, Status status, int replicas, String version) {
+        this.sequence = sequence;
+        this.status = status;
+        this.replicas = replicas;
+        this.version = version;
+    }
+
+    /**
+     * @return The sequence number of the operation in the server's operation log, or -1 if it was rejected
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public boolean isApplied() {
+        return status == Status.APPLIED;
+    }
+
+    public boolean isConflict() {
+        return status == Status.CONFLICT;
+    }
+
+    /**
+     * @return The number of shared copies the operation was replicated to
+     */
+    public int getReplicas() {
+        return replicas;
+    }
+
+    /**
+     * @return The version of the file after the operation, the current one if it conflicted, or the empty string if the
+     * operation does not apply to a file; see {@link FileVersions}
+     */
+    public String getVersion() {
+        return version;
+    }
+
+    @Override
+    public String toString() {
+        switch (status) {
+            case CONFLICT:
+                return "conflict, the file is at version " + version;
+            case NOT_APPLIED:
+                return "#" + sequence + " not applied";
+            default:
+                return "#" + sequence + " applied" + (replicas > 0 ? ", " + replicas + " shared copies" : "");
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package edu.ufp.inf.sd.project.server;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+
+/**
+ * Salted PBKDF2-HMAC-SHA256 password hashes, encoded as {@code pbkdf2-sha256$iterations$salt$hash} with Base64 salt
+ * and hash. The iteration count is read from the system property {@value #ITERATIONS_PROPERTY} when hashing and
+ * stored in the hash, so it can be raised without invalidating existing hashes.
+ * <p>
+ * Hashing is deliberately slow; call it through the {@link Authenticator}, never on an RMI transport thread.
+ */
+public final class PasswordHasher {
+
+    public static final String ITERATIONS_PROPERTY = "edu.ufp.inf.sd.project.auth.iterations";
+
+    private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+    private static final String PREFIX = "pbkdf2-sha256";
+    private static final int SALT_BYTES = 16;
+    private static final int HASH_BITS = 256;
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private PasswordHasher() {
+    }
+
+    /**
+     * Hashes a password with a new random salt.
+     *
+     * @param password The password
+     * @return The encoded hash
+     */
+    public static String hash(String password) {
+        int iterations = Integer.getInteger(ITERATIONS_PROPERTY, 310_000);
+        byte[] salt = new byte[SALT_BYTES];
+        RANDOM.nextBytes(salt);
+        Base64.Encoder base64 = Base64.getEncoder();
+        return PREFIX + "$" + iterations + "$" + base64.encodeToString(salt) + "$" + base64.encodeToString(derive(password, salt, iterations));
+    }
+
+    /**
+     * Checks a password against a hash, in time independent of where they differ.
+     * Hashes stored before passwords were hashed are plain passwords, and are compared as such; a successful login
+     * replaces them with their hash, see {@link Database#replacePasswordHash}.
+     *
+     * @param password The password
+     * @param hash     The encoded hash
+     * @return true if the password matches
+     */
+    public static boolean verify(String password, String hash) {
+        if (!isHash(hash)) {
+            return MessageDigest.isEqual(password.getBytes(StandardCharsets.UTF_8), hash.getBytes(StandardCharsets.UTF_8));
+        }
+        String[] parts = hash.split("\\$");
+        if (parts.length != 4) {
+            return false;
+        }
+        Base64.Decoder base64 = Base64.getDecoder();
+        byte[] expected = base64.decode(parts[3]);
+        return MessageDigest.isEqual(expected, derive(password, base64.decode(parts[2]), Integer.parseInt(parts[1])));
+    }
+
+    public static boolean isHash(String hash) {
+        return hash.startsWith(PREFIX + "$");
+    }
+
+    private static byte[] derive(String password, byte[] salt, int iterations) {
+        PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, HASH_BITS);
+        try {
+            return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(ALGORITHM + " is not available", e);
+        } finally {
+            spec.clearPassword();
+        }
+    }
+}
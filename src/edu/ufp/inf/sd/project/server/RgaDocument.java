@@ -0,0 +1,383 @@
+package edu.ufp.inf.sd.project.server;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A replica of a text document edited by several users at once, as a replicated growable array (RGA).
+ * <p>
+ * Every character ever inserted has an id, a Lamport clock and the site that inserted it, and stays in a linked list
+ * after it is deleted, as a tombstone, so later edits can still refer to it. A character is inserted after the one it
+ * followed where it was typed, skipping the characters inserted after that one with greater ids, so replicas that
+ * receive the same edits in any order end with the same text, without locking each other. An edit that refers to a
+ * character not received yet waits until it is.
+ * <p>
+ * Local edits are made with {@link #insert} and {@link #delete}, which return the {@link TextDelta} to send to the
+ * other replicas; theirs are merged with {@link #integrate}. Merging an edit again has no effect. Thread-safe.
+ * <p>
+ * Runs are at most {@value #MAX_RUN} characters long and at most {@value #MAX_PENDING} edits may wait, so a delta
+ * naming huge runs or characters that never arrive is refused instead of growing the document without end.
+ */
+public class RgaDocument {
+
+    /**
+     * The longest run of characters an edit may insert or delete.
+     */
+    public static final int MAX_RUN = 65536;
+    /**
+     * The most edits that may wait for characters not received yet.
+     */
+    public static final int MAX_PENDING = 65536;
+
+    private static final String ROOT_SITE = "";
+
+    private final String site;
+    private final Node head = new Node(0, ROOT_SITE, '\0');
+    private final Map<Id, Node> nodes = new HashMap<>();
+    private final List<TextDelta.Edit> pending = new ArrayList<>();
+    private long clock;
+    private int length;
+
+    private static class Id {
+        final long clock;
+        final String site;
+
+        Id(long clock, String site) {
+            this.clock = clock;
+            this.site = site;
+        }
+
+        boolean isAfter(Id other) {
+            return clock != other.clock ? clock > other.clock : site.compareTo(other.site) > 0;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Id && clock == ((Id) o).clock && site.equals(((Id) o).site);
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(clock) * 31 + site.hashCode();
+        }
+    }
+
+    private static final class Node extends Id {
+        final char value;
+        boolean deleted;
+        Node next;
+
+        Node(long clock, String site, char value) {
+            super(clock, site);
+            this.value = value;
+        }
+    }
+
+    /**
+     * @param site The name of this replica, unique among the replicas of the document and without ':'
+     */
+    public RgaDocument(String site) {
+        if (site.isEmpty() || site.indexOf(':') >= 0) {
+            throw new IllegalArgumentException("Invalid site: " + site);
+        }
+        this.site = site;
+        nodes.put(head, head);
+    }
+
+    /**
+     * Creates the first replica of a document from the text it starts with, which is the same characters for every
+     * replica that starts from the same text.
+     */
+    public static RgaDocument fromText(String site, String text) {
+        RgaDocument document = new RgaDocument(site);
+        List<TextDelta.Edit> edits = new ArrayList<>();
+        for (int start = 0; start < text.length(); start += MAX_RUN) {
+            String run = text.substring(start, Math.min(text.length(), start + MAX_RUN));
+            edits.add(new TextDelta.Insert(start + 1, ROOT_SITE, start, ROOT_SITE, run));
+        }
+        document.integrate(new TextDelta(edits));
+        return document;
+    }
+
+    /**
+     * Inserts text typed at a position of the visible text.
+     *
+     * @return The delta to send to the other replicas
+     */
+    public synchronized TextDelta insert(int position, String text) {
+        if (position < 0 || position > length) {
+            throw new IndexOutOfBoundsException("Position " + position + " of a text of " + length + " characters");
+        }
+        if (text.isEmpty()) {
+            return new TextDelta(List.of());
+        }
+        Node anchor = visibleNode(position);
+        List<TextDelta.Edit> edits = new ArrayList<>();
+        // The new ids are greater than every id seen, so the characters go right after the anchor
+        for (int i = 0; i < text.length(); i++) {
+            if (i % MAX_RUN == 0) {
+                edits.add(new TextDelta.Insert(clock + 1, site, anchor.clock, anchor.site,
+                        text.substring(i, Math.min(text.length(), i + MAX_RUN))));
+            }
+            Node node = new Node(++clock, site, text.charAt(i));
+            node.next = anchor.next;
+            anchor.next = node;
+            nodes.put(node, node);
+            anchor = node;
+        }
+        length += text.length();
+        return new TextDelta(edits);
+    }
+
+    /**
+     * Deletes characters of the visible text.
+     *
+     * @return The delta to send to the other replicas
+     */
+    public synchronized TextDelta delete(int position, int count) {
+        if (position < 0 || count < 0 || position + count > length) {
+            throw new IndexOutOfBoundsException("Characters " + position + " to " + (position + count) + " of a text of " + length + " characters");
+        }
+        List<TextDelta.Edit> edits = new ArrayList<>();
+        Node node = visibleNode(position).next;
+        TextDelta.Delete run = null;
+        for (int deleted = 0; deleted < count; node = node.next) {
+            if (node.deleted) {
+                continue;
+            }
+            node.deleted = true;
+            deleted++;
+            if (run != null && run.site.equals(node.site) && run.clock + run.count == node.clock && run.count < MAX_RUN) {
+                run = new TextDelta.Delete(run.clock, run.site, run.count + 1);
+                edits.set(edits.size() - 1, run);
+            } else {
+                run = new TextDelta.Delete(node.clock, node.site, 1);
+                edits.add(run);
+            }
+        }
+        length -= count;
+        return new TextDelta(edits);
+    }
+
+    /**
+     * Merges the edits of another replica, in any order relative to the other edits it did not depend on.
+     *
+     * @return true if the text changed
+     * @throws IllegalArgumentException If the delta has an invalid run or would leave too many edits waiting; none of
+     *                                  it is merged then
+     */
+    public synchronized boolean integrate(TextDelta delta) {
+        check(delta);
+        long changes = 0;
+        for (TextDelta.Edit edit : delta.getEdits()) {
+            changes += apply(edit);
+        }
+        // Edits waiting for characters that may just have arrived
+        boolean progress = changes > 0;
+        while (progress && !pending.isEmpty()) {
+            progress = false;
+            List<TextDelta.Edit> waiting = new ArrayList<>(pending);
+            pending.clear();
+            for (TextDelta.Edit edit : waiting) {
+                long applied = apply(edit);
+                changes += applied;
+                progress |= applied > 0;
+            }
+        }
+        return changes > 0;
+    }
+
+    /**
+     * Checks the runs of a delta, and that the edits it leaves waiting fit in {@link #pending}.
+     */
+    private void check(TextDelta delta) {
+        Set<Id> inserted = null;
+        int waiting = 0;
+        for (TextDelta.Edit edit : delta.getEdits()) {
+            int count = edit instanceof TextDelta.Insert ? ((TextDelta.Insert) edit).text.length() : ((TextDelta.Delete) edit).count;
+            if (count < 1 || count > MAX_RUN || edit.clock < 1 || edit.clock > Long.MAX_VALUE - MAX_RUN) {
+                throw new IllegalArgumentException("Invalid run of " + count + " characters at " + edit.clock + ":" + edit.site);
+            }
+        }
+        for (TextDelta.Edit edit : delta.getEdits()) {
+            if (edit instanceof TextDelta.Insert) {
+                TextDelta.Insert insert = (TextDelta.Insert) edit;
+                Id anchor = new Id(insert.afterClock, insert.afterSite);
+                if (!nodes.containsKey(anchor)) {
+                    if (inserted == null) {
+                        inserted = insertedIds(delta);
+                    }
+                    waiting += inserted.contains(anchor) ? 0 : 1;
+                }
+            } else {
+                TextDelta.Delete delete = (TextDelta.Delete) edit;
+                for (int i = 0; i < delete.count; i++) {
+                    Id id = new Id(delete.clock + i, delete.site);
+                    if (!nodes.containsKey(id)) {
+                        if (inserted == null) {
+                            inserted = insertedIds(delta);
+                        }
+                        waiting += inserted.contains(id) ? 0 : 1;
+                    }
+                }
+            }
+            if (pending.size() + waiting > MAX_PENDING) {
+                throw new IllegalArgumentException("Too many edits waiting for characters not received yet");
+            }
+        }
+    }
+
+    private static Set<Id> insertedIds(TextDelta delta) {
+        Set<Id> ids = new HashSet<>();
+        for (TextDelta.Edit edit : delta.getEdits()) {
+            if (edit instanceof TextDelta.Insert) {
+                for (int i = 0; i < ((TextDelta.Insert) edit).text.length(); i++) {
+                    ids.add(new Id(edit.clock + i, edit.site));
+                }
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Applies an edit, or what is left of it, leaving in {@link #pending} the part that refers to missing characters.
+     *
+     * @return The number of characters inserted or deleted, not counting those it already had
+     */
+    private long apply(TextDelta.Edit edit) {
+        if (edit instanceof TextDelta.Insert) {
+            TextDelta.Insert insert = (TextDelta.Insert) edit;
+            Node anchor = nodes.get(new Id(insert.afterClock, insert.afterSite));
+            if (anchor == null) {
+                pending.add(insert);
+                return 0;
+            }
+            long applied = 0;
+            for (int i = 0; i < insert.text.length(); i++) {
+                Id id = new Id(insert.clock + i, insert.site);
+                Node existing = nodes.get(id);
+                if (existing != null) {
+                    anchor = existing;
+                    continue;
+                }
+                Node previous = anchor;
+                while (previous.next != null && previous.next.isAfter(id)) {
+                    previous = previous.next;
+                }
+                Node node = new Node(id.clock, id.site, insert.text.charAt(i));
+                node.next = previous.next;
+                previous.next = node;
+                nodes.put(node, node);
+                clock = Math.max(clock, id.clock);
+                length++;
+                applied++;
+                anchor = node;
+            }
+            return applied;
+        }
+        TextDelta.Delete delete = (TextDelta.Delete) edit;
+        long applied = 0;
+        for (int i = 0; i < delete.count; i++) {
+            Node node = nodes.get(new Id(delete.clock + i, delete.site));
+            if (node == null) {
+                pending.add(new TextDelta.Delete(delete.clock + i, delete.site, 1));
+            } else if (!node.deleted) {
+                node.deleted = true;
+                length--;
+                applied++;
+            }
+        }
+        return applied;
+    }
+
+    /**
+     * Gets every character, deleted ones included, in order, for a new replica to start from.
+     */
+    public synchronized TextDelta snapshot() {
+        List<TextDelta.Edit> edits = new ArrayList<>();
+        List<TextDelta.Edit> deletes = new ArrayList<>();
+        StringBuilder run = new StringBuilder();
+        Node first = null;
+        Node anchor = head;
+        Node previous = head;
+        for (Node node = head.next; node != null; previous = node, node = node.next) {
+            if (first == null || !node.site.equals(previous.site) || node.clock != previous.clock + 1 || run.length() == MAX_RUN) {
+                if (first != null) {
+                    edits.add(new TextDelta.Insert(first.clock, first.site, anchor.clock, anchor.site, run.toString()));
+                    run.setLength(0);
+                    anchor = previous;
+                }
+                first = node;
+            }
+            run.append(node.value);
+            if (node.deleted) {
+                deletes.add(new TextDelta.Delete(node.clock, node.site, 1));
+            }
+        }
+        if (first != null) {
+            edits.add(new TextDelta.Insert(first.clock, first.site, anchor.clock, anchor.site, run.toString()));
+        }
+        edits.addAll(deletes);
+        return new TextDelta(edits);
+    }
+
+    public synchronized String getText() {
+        StringBuilder text = new StringBuilder(length);
+        for (Node node = head.next; node != null; node = node.next) {
+            if (!node.deleted) {
+                text.append(node.value);
+            }
+        }
+        return text.toString();
+    }
+
+    /**
+     * @return The number of visible characters
+     */
+    public synchronized int length() {
+        return length;
+    }
+
+    /**
+     * @return The number of characters kept, deleted ones included
+     */
+    public synchronized int size() {
+        return nodes.size() - 1;
+    }
+
+    /**
+     * @return The number of deleted characters kept
+     */
+    public synchronized int getTombstoneCount() {
+        return nodes.size() - 1 - length;
+    }
+
+    /**
+     * @return The number of edits waiting for characters not received yet
+     */
+    public synchronized int getPendingCount() {
+        return pending.size();
+    }
+
+    public String getSite() {
+        return site;
+    }
+
+    /**
+     * Gets the node after which the visible character at a position is, or the last visible node for the end of the text.
+     */
+    private Node visibleNode(int position) {
+        Node node = head;
+        for (int seen = 0; seen < position; ) {
+            node = node.next;
+            if (!node.deleted) {
+                seen++;
+            }
+        }
+        return node;
+    }
+}
@@ -2,6 +2,8 @@ package edu.ufp.inf.sd.project.server;
 
 import edu.ufp.inf.sd.project.util.SetupContextRMI;
 
+import java.io.File;
+import java.io.IOException;
 import java.rmi.RemoteException;
 import java.rmi.registry.Registry;
 import java.util.HashMap;
@@ -22,11 +24,12 @@ public class ServerMain {
     /**
      * Main method to start the server.
      *
-     * @param args Command line arguments (registry host, registry port, service name)
+     * @param args Command line arguments (registry host, registry port, service name, and optionally the storage,
+     *             local, memory or mapped, and its root directory)
      */
     public static void main(String[] args) {
-        if (args.length != 3) {
-            System.err.println("Usage: java ServerMain <registry_host> <registry_port> <service_name>");
+        if (args.length < 3 || args.length > 5) {
+            System.err.println("Usage: java ServerMain <registry_host> <registry_port> <service_name> [local|memory|mapped [data_root]]");
             System.exit(1);
         }
 
@@ -34,6 +37,19 @@ public class ServerMain {
         String registryPort = args[1];
         String serviceName = args[2];
 
+        // Chosen before anything opens a file
+        if (args.length > 3) {
+            try {
+                Storage.select(Storage.create(Storage.Type.parse(args[3]), args.length > 4 ? new File(args[4]) : null));
+            } catch (IllegalArgumentException | IOException e) {
+                System.err.println("Invalid storage " + args[3] + ": " + e.getMessage());
+                System.exit(1);
+            }
+        }
+
+        // Bound how long a callback to an unresponsive observer may block its sender
+        ObserverDispatcher.configureDeliveryTimeout();
+
         ServerMain server = new ServerMain();
         server.rebindService(registryHost, registryPort, serviceName);
     }
@@ -49,6 +65,29 @@ public class ServerMain {
         try {
             System.out.println("Starting server...");
 
+            // Re-apply the operations logged after the last checkpoint, in case the server stopped before they reached
+            // the filesystem, which also restores the versions of the files, and checkpoint them so they are not again
+            try {
+                OperationLog operationLog = OperationLog.getOperationLogInstance();
+                FileVersions fileVersions = FileVersions.getFileVersionsInstance();
+                fileVersions.restore(operationLog.getCheckpointState());
+                long replayed = operationLog.replay(fileVersions::replay);
+                System.out.println("Replayed " + replayed + " logged operations");
+                fileVersions.checkpoint(operationLog);
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Failed to replay the operation log: " + e.getMessage());
+            }
+
+            // Publish the changes made directly under the server root to the observers; only local files can be edited so
+            if (Storage.getStorageInstance().isLocal()) {
+                try {
+                    ChangeWatcher changeWatcher = ChangeWatcher.getChangeWatcherInstance();
+                    changeWatcher.start(changeWatcher.getRoot(), ChangeWatcher.observersOf(database));
+                } catch (IOException e) {
+                    System.err.println("Failed to watch the server root: " + e.getMessage());
+                }
+            }
+
             // Setup RMI context
             SetupContextRMI contextRMI = new SetupContextRMI(this.getClass(), registryHost, registryPort, new String[]{serviceName});
 
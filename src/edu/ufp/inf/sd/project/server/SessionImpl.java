@@ -1,30 +1,86 @@
 package edu.ufp.inf.sd.project.server;
 
+import edu.ufp.inf.sd.project.client.ObserverRI;
+import edu.ufp.inf.sd.project.client.SyncJobListenerRI;
+
 import java.io.Serial;
+import java.rmi.NoSuchObjectException;
 import java.rmi.RemoteException;
 import java.rmi.server.UnicastRemoteObject;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
-import java.util.UUID;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 public class SessionImpl extends UnicastRemoteObject implements SessionRI {
     @Serial
     private static final long serialVersionUID = 1L;
 
-    private final String username;
-    private final String sessionId;
+    public static final String LEASE_SECONDS_PROPERTY = "edu.ufp.inf.sd.project.session.leaseSeconds";
+
+    private static final long LEASE_MILLIS = TimeUnit.SECONDS.toMillis(Long.getLong(LEASE_SECONDS_PROPERTY, 90));
+    // Every session lease is a timeout on this wheel, so renewing and expiring one costs O(1)
+    private static final TimingWheel LEASES = new TimingWheel("session-leases", 1000);
+
     private final Database database;
-    private final SubjectFileSystemRI fileSystem;
+    private final SessionPool pool;
+    // Set once, when the pool binds this session to a user
+    private volatile String username;
+    private volatile String sessionId;
+    private volatile SubjectFileSystemRI fileSystem;
+    // The observers attached through this session, detached from the file system when it closes
+    private final Set<ObserverRI> observers = ConcurrentHashMap.newKeySet();
+    private TimingWheel.Timeout lease;
+    private boolean closed;
+    private final CopyEngine copyEngine = new CopyEngine();
+    private final DeltaSync deltaSync = new DeltaSync(DeltaSync.DEFAULT_BLOCK_SIZE, copyEngine);
+    private final Storage storage = Storage.getStorageInstance();
+    private final ChunkStore chunkStore = ChunkStore.getChunkStoreInstance();
+    private final TreeSynchronizer treeSynchronizer = TreeSynchronizer.getTreeSynchronizerInstance();
+    private final SyncJobManager syncJobs = SyncJobManager.getSyncJobManagerInstance();
 
-    public SessionImpl(String username, Database database) throws RemoteException {
+    /**
+     * Exports a session that is not bound to any user yet; sessions are created by the {@link SessionPool}.
+     */
+    SessionImpl(Database database, SessionPool pool) throws RemoteException {
         super();
-        this.username = username;
-        this.sessionId = UUID.randomUUID().toString();
         this.database = database;
-        this.fileSystem = new SubjectFileSystemImpl(username, database);
+        this.pool = pool;
+    }
+
+    /**
+     * Binds this session to a user and starts its lease.
+     */
+    synchronized void bind(String username, String sessionId) throws RemoteException {
+        this.fileSystem = database.getSubjectFileSystem(username);
+        this.username = username;
+        this.sessionId = sessionId;
+        this.lease = LEASES.schedule(this::expire, LEASE_MILLIS);
         System.out.println("Created new session for user: " + username + " with ID: " + sessionId);
     }
 
+    String getBoundUsername() {
+        return username;
+    }
+
+    /**
+     * Renews the lease of this session for a client that resumed it.
+     *
+     * @return false if the session is already closed
+     */
+    synchronized boolean resume() {
+        if (closed) {
+            return false;
+        }
+        lease.cancel();
+        lease = LEASES.schedule(this::expire, LEASE_MILLIS);
+        System.out.println("Resumed session " + sessionId + " of user " + username);
+        return true;
+    }
+
     @Override
     public String getUsername() throws RemoteException {
         return username;
@@ -35,6 +91,23 @@ public class SessionImpl extends UnicastRemoteObject implements SessionRI {
         return fileSystem;
     }
 
+    @Override
+    public void attachObserver(ObserverRI observer) throws RemoteException {
+        synchronized (this) {
+            if (closed) {
+                throw new NoSuchObjectException("Session " + sessionId + " has expired");
+            }
+            observers.add(observer);
+        }
+        fileSystem.attachObserver(observer);
+    }
+
+    @Override
+    public void detachObserver(ObserverRI observer) throws RemoteException {
+        observers.remove(observer);
+        fileSystem.detachObserver(observer);
+    }
+
     @Override
     public Map<String, SubjectFileSystemRI> getSharedWithMeFileSystem() throws RemoteException {
         return database.getUserSharedFolders(this.username);
@@ -44,7 +117,16 @@ public class SessionImpl extends UnicastRemoteObject implements SessionRI {
     public void shareWithFileSystem(String targetUsername) throws RemoteException {
         database.addUserSharedFolder(targetUsername, this.username, this.fileSystem);
         createSharedFolderStructure(targetUsername, this.username);
-        synchronizeSpecificUserFiles(targetUsername, this.username);
+        synchronizeSpecificUserFiles(targetUsername, this.username, SyncMode.DELTA, TreeSynchronizer.Progress.NONE);
+    }
+
+    @Override
+    public SyncJobStatus shareWithFileSystemAsync(String targetUsername, SyncJobListenerRI listener) throws RemoteException {
+        String ownerUsername = this.username;
+        database.addUserSharedFolder(targetUsername, ownerUsername, this.fileSystem);
+        createSharedFolderStructure(targetUsername, ownerUsername);
+        return syncJobs.submit(ownerUsername, targetUsername, "Share with " + targetUsername, listener,
+                progress -> synchronizeSpecificUserFiles(targetUsername, ownerUsername, SyncMode.DELTA, progress));
     }
 
     @Override
@@ -55,8 +137,38 @@ public class SessionImpl extends UnicastRemoteObject implements SessionRI {
 
     @Override
     public void synchronizeSharedFolders() throws RemoteException {
+        synchronizeSharedFolders(SyncMode.DELTA);
+    }
+
+    @Override
+    public void synchronizeSharedFolders(SyncMode mode) throws RemoteException {
+        synchronizeSharedFolders(mode, TreeSynchronizer.Progress.NONE);
+    }
+
+    @Override
+    public SyncJobStatus synchronizeSharedFoldersAsync(SyncMode mode, SyncJobListenerRI listener) throws RemoteException {
+        return syncJobs.submit(this.username, this.username, "Synchronize shared folders (" + mode + ")", listener,
+                progress -> synchronizeSharedFolders(mode, progress));
+    }
+
+    @Override
+    public SyncJobStatus getSyncJobStatus(String jobId) throws RemoteException {
+        return syncJobs.getStatus(this.username, jobId);
+    }
+
+    @Override
+    public List<SyncJobStatus> getSyncJobs() throws RemoteException {
+        return syncJobs.getJobs(this.username);
+    }
+
+    @Override
+    public boolean cancelSyncJob(String jobId) throws RemoteException {
+        return syncJobs.cancel(this.username, jobId);
+    }
+
+    private void synchronizeSharedFolders(SyncMode mode, TreeSynchronizer.Progress progress) throws RemoteException {
         System.out.println("=== SYNCHRONIZE DEBUG START ===");
-        System.out.println("Current user: " + this.username);
+        System.out.println("Current user: " + this.username + " (mode: " + mode + ")");
 
         Map<String, SubjectFileSystemRI> sharedFileSystems = database.getUserSharedFolders(this.username);
 
@@ -70,47 +182,105 @@ public class SessionImpl extends UnicastRemoteObject implements SessionRI {
             System.out.println("Synchronizing shared folders for user: " + this.username);
             System.out.println("Found " + sharedFileSystems.size() + " shared file systems");
 
+            // Owners are independent, so their folders are synchronized in parallel
+            List<Runnable> jobs = new ArrayList<>();
             for (String ownerUsername : sharedFileSystems.keySet()) {
-                System.out.println("Processing owner: " + ownerUsername);
-                try {
-                    createSharedFolderStructure(this.username, ownerUsername);
-                    synchronizeFilesFromSharedUser(ownerUsername);
-                    System.out.println("Successfully synchronized files from: " + ownerUsername);
-                } catch (Exception e) {
-                    System.err.println("Failed to sync from " + ownerUsername + ": " + e.getMessage());
-                    e.printStackTrace();
-                }
+                jobs.add(() -> {
+                    System.out.println("Processing owner: " + ownerUsername);
+                    try {
+                        createSharedFolderStructure(this.username, ownerUsername);
+                        synchronizeFilesFromSharedUser(ownerUsername, mode, progress);
+                        System.out.println("Successfully synchronized files from: " + ownerUsername);
+                    } catch (CancellationException e) {
+                        throw e;
+                    } catch (Exception e) {
+                        System.err.println("Failed to sync from " + ownerUsername + ": " + e.getMessage());
+                        e.printStackTrace();
+                    }
+                });
             }
+            treeSynchronizer.runAll(jobs);
         } else {
             System.out.println("No shared file systems found for user: " + this.username);
         }
         System.out.println("=== SYNCHRONIZE DEBUG END ===");
     }
 
+    @Override
+    public synchronized long renewLease() throws RemoteException {
+        if (closed) {
+            throw new NoSuchObjectException("Session " + sessionId + " has expired");
+        }
+        lease.cancel();
+        lease = LEASES.schedule(this::expire, LEASE_MILLIS);
+        return LEASE_MILLIS;
+    }
+
+    @Override
+    public synchronized String getResumptionToken() throws RemoteException {
+        if (closed) {
+            throw new NoSuchObjectException("Session " + sessionId + " has expired");
+        }
+        return pool.issueToken(username, sessionId);
+    }
+
     @Override
     public boolean logout() throws RemoteException {
         System.out.println("Logging out user: " + username);
-        database.removeSession(username);
+        synchronized (this) {
+            lease.cancel();
+        }
+        database.removeSession(username, this);
+        // Unexported on the next tick, once the reply to this call has gone out
+        LEASES.schedule(this::close, 0);
         return true; // Changed to true for successful logout
     }
 
+    private void expire() {
+        System.out.println("Lease of session " + sessionId + " of user " + username + " expired");
+        close();
+    }
+
+    /**
+     * Removes this session, detaches the observers attached through it and unexports it. The file system stays
+     * exported: it belongs to the user, and the sessions of the users it is shared with keep using it.
+     */
+    private void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            lease.cancel();
+        }
+        database.removeSession(username, this);
+        pool.closed(sessionId);
+        for (ObserverRI observer : observers) {
+            try {
+                fileSystem.detachObserver(observer);
+            } catch (RemoteException e) {
+                System.err.println("Failed to detach an observer of session " + sessionId + ": " + e.getMessage());
+            }
+        }
+        observers.clear();
+        try {
+            UnicastRemoteObject.unexportObject(this, true);
+        } catch (NoSuchObjectException e) {
+            // Already unexported
+        }
+        System.out.println("Closed session " + sessionId + " of user " + username);
+    }
+
     private void createSharedFolderStructure(String targetUsername, String ownerUsername) throws RemoteException {
         try {
             // Create client-side shared folder structure
-            String clientSharedPath = "/home/oshico/Projects/SD/data/" + targetUsername + "/shared/" + ownerUsername;
-            java.io.File clientSharedDir = new java.io.File(clientSharedPath);
-            if (!clientSharedDir.exists()) {
-                boolean created = clientSharedDir.mkdirs();
+            String clientSharedPath = sharedViewName(targetUsername, ownerUsername);
+            if (!storage.exists(clientSharedPath)) {
+                boolean created = storage.createDirectories(clientSharedPath);
                 System.out.println("Created client shared folder: " + clientSharedPath + " - Success: " + created);
             }
 
-            // Create server-side shared folder structure
-            String serverSharedPath = "/home/oshico/Projects/SD/data/server/" + targetUsername + "/shared/" + ownerUsername;
-            java.io.File serverSharedDir = new java.io.File(serverSharedPath);
-            if (!serverSharedDir.exists()) {
-                boolean created = serverSharedDir.mkdirs();
-                System.out.println("Created server shared folder: " + serverSharedPath + " - Success: " + created);
-            }
+            // The server-side shared folder is a manifest in the chunk store, created on the first sync
         } catch (Exception e) {
             System.err.println("Failed to create shared folder structure: " + e.getMessage());
             throw new RemoteException("Failed to create shared folder structure", e);
@@ -119,13 +289,18 @@ public class SessionImpl extends UnicastRemoteObject implements SessionRI {
 
     private void removeSharedFolderStructure(String targetUsername, String ownerUsername) throws RemoteException {
         try {
-            String clientSharedPath = "/home/oshico/Projects/SD/data/" + targetUsername + "/shared/" + ownerUsername;
-            java.io.File clientSharedDir = new java.io.File(clientSharedPath);
-            deleteDirectoryRecursively(clientSharedDir);
+            String clientSharedPath = sharedViewName(targetUsername, ownerUsername);
+            System.out.println("Deleted " + storage.deleteTree(clientSharedPath) + " entries of " + clientSharedPath);
+            FileIndex.delete(clientIndexName(targetUsername, ownerUsername));
 
-            String serverSharedPath = "/home/oshico/Projects/SD/data/server/" + targetUsername + "/shared/" + ownerUsername;
-            java.io.File serverSharedDir = new java.io.File(serverSharedPath);
-            deleteDirectoryRecursively(serverSharedDir);
+            // Drop the server-side shared view; chunks only it referenced are deleted
+            chunkStore.release(sharedViewName(targetUsername, ownerUsername));
+
+            // Remove a physical copy left over from before shared views were kept as manifests
+            String serverSharedPath = Storage.path(Storage.SERVER, sharedViewName(targetUsername, ownerUsername));
+            if (storage.exists(serverSharedPath)) {
+                System.out.println("Deleted " + storage.deleteTree(serverSharedPath) + " entries of " + serverSharedPath);
+            }
 
             System.out.println("Removed shared folder structure for " + ownerUsername + " from " + targetUsername);
         } catch (Exception e) {
@@ -134,40 +309,45 @@ public class SessionImpl extends UnicastRemoteObject implements SessionRI {
         }
     }
 
-    private void synchronizeFilesFromSharedUser(String ownerUsername) throws RemoteException {
+    private void synchronizeFilesFromSharedUser(String ownerUsername, SyncMode mode, TreeSynchronizer.Progress progress) throws RemoteException {
         try {
             // Source: Owner's server directory
-            String ownerServerPath = "/home/oshico/Projects/SD/data/server/" + ownerUsername;
-            java.io.File ownerServerDir = new java.io.File(ownerServerPath);
+            String ownerServerPath = Storage.path(Storage.SERVER, ownerUsername);
 
-            // Destination 1: Current user's server shared folder
-            String sharedServerPath = "/home/oshico/Projects/SD/data/server/" + this.username + "/shared/" + ownerUsername;
-            java.io.File sharedServerDir = new java.io.File(sharedServerPath);
+            // Destination 1: Current user's server shared view (manifest in the chunk store)
+            String sharedServerView = sharedViewName(this.username, ownerUsername);
 
             // Destination 2: Current user's client shared folder
-            String sharedClientPath = "/home/oshico/Projects/SD/data/" + this.username + "/shared/" + ownerUsername;
-            java.io.File sharedClientDir = new java.io.File(sharedClientPath);
+            String sharedClientPath = sharedViewName(this.username, ownerUsername);
 
             System.out.println("Synchronizing from: " + ownerServerPath);
-            System.out.println("To server shared: " + sharedServerPath);
+            System.out.println("To server shared: " + sharedServerView);
             System.out.println("To client shared: " + sharedClientPath);
 
-            if (ownerServerDir.exists() && ownerServerDir.isDirectory()) {
-                // Ensure destination directories exist
-                if (!sharedServerDir.exists()) {
-                    sharedServerDir.mkdirs();
-                }
-                if (!sharedClientDir.exists()) {
-                    sharedClientDir.mkdirs();
+            if (storage.isDirectory(ownerServerPath)) {
+                // Ensure destination directory exists
+                storage.createDirectories(sharedClientPath);
+                if (!storage.isLocal()) {
+                    copyTree(ownerServerPath, sharedClientPath);
+                    return;
                 }
-
-                copyDirectoryContents(ownerServerDir, sharedServerDir);
-                copyDirectoryContents(ownerServerDir, sharedClientDir);
-
-                System.out.println("Successfully synchronized files from " + ownerUsername + " to " + this.username + "'s shared folders");
+                java.io.File ownerServerDir = storage.toFile(ownerServerPath);
+                java.io.File sharedClientDir = storage.toFile(sharedClientPath);
+
+                // Only the files added, changed or deleted since the last sync are touched
+                FileIndex ownerIndex = refreshIndex(serverIndexName(ownerUsername), ownerServerDir);
+                Manifest manifest = chunkStore.commitTree(sharedServerView, ownerServerDir, ownerIndex);
+                SyncStats stats = copyDirectoryContents(ownerServerDir, ownerIndex, sharedClientDir,
+                        clientIndexName(this.username, ownerUsername), mode, progress);
+                System.out.println("Server shared view references " + manifest.getFiles().size() + " files ("
+                        + manifest.getTotalSize() + " bytes) in the chunk store");
+
+                System.out.println("Successfully synchronized files from " + ownerUsername + " to " + this.username + "'s shared folders (" + stats + ")");
             } else {
                 System.out.println("Owner directory does not exist or is not a directory: " + ownerServerPath);
             }
+        } catch (CancellationException e) {
+            throw e;
         } catch (Exception e) {
             System.err.println("Failed to synchronize shared files: " + e.getMessage());
             e.printStackTrace();
@@ -176,41 +356,46 @@ public class SessionImpl extends UnicastRemoteObject implements SessionRI {
     }
 
     // New method for immediate synchronization when sharing
-    private void synchronizeSpecificUserFiles(String targetUsername, String ownerUsername) throws RemoteException {
+    private void synchronizeSpecificUserFiles(String targetUsername, String ownerUsername, SyncMode mode,
+                                              TreeSynchronizer.Progress progress) throws RemoteException {
         try {
             // Source: Owner's server directory (this user's files)
-            String ownerServerPath = "/home/oshico/Projects/SD/data/server/" + ownerUsername;
-            java.io.File ownerServerDir = new java.io.File(ownerServerPath);
+            String ownerServerPath = Storage.path(Storage.SERVER, ownerUsername);
 
-            // Destination 1: Target user's server shared folder
-            String sharedServerPath = "/home/oshico/Projects/SD/data/server/" + targetUsername + "/shared/" + ownerUsername;
-            java.io.File sharedServerDir = new java.io.File(sharedServerPath);
+            // Destination 1: Target user's server shared view (manifest in the chunk store)
+            String sharedServerView = sharedViewName(targetUsername, ownerUsername);
 
             // Destination 2: Target user's client shared folder
-            String sharedClientPath = "/home/oshico/Projects/SD/data/" + targetUsername + "/shared/" + ownerUsername;
-            java.io.File sharedClientDir = new java.io.File(sharedClientPath);
+            String sharedClientPath = sharedViewName(targetUsername, ownerUsername);
 
             System.out.println("Immediate sync from: " + ownerServerPath);
-            System.out.println("To target server shared: " + sharedServerPath);
+            System.out.println("To target server shared: " + sharedServerView);
             System.out.println("To target client shared: " + sharedClientPath);
 
-            if (ownerServerDir.exists() && ownerServerDir.isDirectory()) {
-                // Ensure destination directories exist
-                if (!sharedServerDir.exists()) {
-                    sharedServerDir.mkdirs();
+            if (storage.isDirectory(ownerServerPath)) {
+                // Ensure destination directory exists
+                storage.createDirectories(sharedClientPath);
+                if (!storage.isLocal()) {
+                    copyTree(ownerServerPath, sharedClientPath);
+                    return;
                 }
-                if (!sharedClientDir.exists()) {
-                    sharedClientDir.mkdirs();
-                }
-
-                // Copy to both server and client shared directories
-                copyDirectoryContents(ownerServerDir, sharedServerDir);
-                copyDirectoryContents(ownerServerDir, sharedClientDir);
-
-                System.out.println("Successfully shared files from " + ownerUsername + " to " + targetUsername);
+                java.io.File ownerServerDir = storage.toFile(ownerServerPath);
+                java.io.File sharedClientDir = storage.toFile(sharedClientPath);
+
+                // Record the server shared view and copy to the client shared directory
+                FileIndex ownerIndex = refreshIndex(serverIndexName(ownerUsername), ownerServerDir);
+                Manifest manifest = chunkStore.commitTree(sharedServerView, ownerServerDir, ownerIndex);
+                SyncStats stats = copyDirectoryContents(ownerServerDir, ownerIndex, sharedClientDir,
+                        clientIndexName(targetUsername, ownerUsername), mode, progress);
+                System.out.println("Server shared view references " + manifest.getFiles().size() + " files ("
+                        + manifest.getTotalSize() + " bytes) in the chunk store");
+
+                System.out.println("Successfully shared files from " + ownerUsername + " to " + targetUsername + " (" + stats + ")");
             } else {
                 System.out.println("Owner directory does not exist: " + ownerServerPath);
             }
+        } catch (CancellationException e) {
+            throw e;
         } catch (Exception e) {
             System.err.println("Failed to sync files immediately: " + e.getMessage());
             e.printStackTrace();
@@ -218,69 +403,63 @@ public class SessionImpl extends UnicastRemoteObject implements SessionRI {
         }
     }
 
-    private void copyDirectoryContents(java.io.File source, java.io.File destination) throws java.io.IOException {
+    private static String sharedViewName(String targetUsername, String ownerUsername) {
+        return targetUsername + "/shared/" + ownerUsername;
+    }
+
+    private static String serverIndexName(String ownerUsername) {
+        return "server/" + ownerUsername;
+    }
+
+    private static String clientIndexName(String targetUsername, String ownerUsername) {
+        return "client/" + targetUsername + "/shared/" + ownerUsername;
+    }
+
+    private FileIndex refreshIndex(String indexName, java.io.File directory) throws java.io.IOException {
+        FileIndex index = FileIndex.load(indexName).refresh(directory, treeSynchronizer);
+        index.save(indexName);
+        return index;
+    }
+
+    private SyncStats copyDirectoryContents(java.io.File source, FileIndex sourceIndex, java.io.File destination,
+                                            String destinationIndexName, SyncMode mode,
+                                            TreeSynchronizer.Progress progress) throws java.io.IOException {
         System.out.println("Copying from: " + source.getAbsolutePath() + " to: " + destination.getAbsolutePath());
 
-        if (!destination.exists()) {
-            boolean created = destination.mkdirs();
-            System.out.println("Created destination directory: " + created);
+        // Diff the source against what was last written to the destination; changed files are synchronized concurrently
+        FileIndex destinationIndex = FileIndex.load(destinationIndexName).refresh(destination, treeSynchronizer);
+        SyncStats stats;
+        try {
+            stats = treeSynchronizer.synchronize(source, sourceIndex, destination, destinationIndex, (file, destFile) -> {
+                SyncStats fileStats = copyFile(file, destFile, mode);
+                System.out.println("Synchronized file: " + file.getName() + " (" + fileStats + ")");
+                return fileStats;
+            }, progress);
+        } finally {
+            destinationIndex.save(destinationIndexName);
         }
 
-        java.io.File[] files = source.listFiles();
-        if (files != null && files.length > 0) {
-            System.out.println("Found " + files.length + " items to copy");
-
-            for (java.io.File file : files) {
-                java.io.File destFile = new java.io.File(destination, file.getName());
-                System.out.println("Processing: " + file.getName() + " (isDirectory: " + file.isDirectory() + ")");
-
-                if (file.isDirectory()) {
-                    // Recursively copy directory
-                    copyDirectoryContents(file, destFile);
-                } else {
-                    // Copy file
-                    try (java.io.FileInputStream fis = new java.io.FileInputStream(file);
-                         java.io.FileOutputStream fos = new java.io.FileOutputStream(destFile)) {
-
-                        byte[] buffer = new byte[1024];
-                        int bytesRead;
-                        long totalBytes = 0;
-
-                        while ((bytesRead = fis.read(buffer)) != -1) {
-                            fos.write(buffer, 0, bytesRead);
-                            totalBytes += bytesRead;
-                        }
-
-                        System.out.println("Copied file: " + file.getName() + " (" + totalBytes + " bytes)");
-                    } catch (java.io.IOException e) {
-                        System.err.println("Failed to copy file: " + file.getName() + " - " + e.getMessage());
-                        throw e;
-                    }
-                }
-            }
-        } else {
-            System.out.println("Source directory is empty or null: " + source.getAbsolutePath());
+        System.out.println("Copied " + source.getAbsolutePath() + " to " + destination.getAbsolutePath() + " (" + stats + ")");
+        return stats;
+    }
+
+    private SyncStats copyFile(java.io.File source, java.io.File destination, SyncMode mode) throws java.io.IOException {
+        switch (mode) {
+            case TRANSFER:
+                return copyEngine.transfer(source, destination);
+            case LINK:
+                return copyEngine.link(source, destination);
+            default:
+                // Transfer only the blocks that changed since the last sync
+                return deltaSync.synchronizeFile(source, destination);
         }
     }
 
     /**
-     * Recursively deletes a directory and its contents
+     * Copies a tree kept off the local disk, where the indexes, chunk store and delta sync cannot reach it.
      */
-    private void deleteDirectoryRecursively(java.io.File directory) {
-        if (directory.exists()) {
-            java.io.File[] files = directory.listFiles();
-            if (files != null) {
-                for (java.io.File file : files) {
-                    if (file.isDirectory()) {
-                        deleteDirectoryRecursively(file);
-                    } else {
-                        boolean deleted = file.delete();
-                        System.out.println("Deleted file: " + file.getName() + " - Success: " + deleted);
-                    }
-                }
-            }
-            boolean deleted = directory.delete();
-            System.out.println("Deleted directory: " + directory.getName() + " - Success: " + deleted);
-        }
+    private void copyTree(String source, String destination) throws java.io.IOException {
+        int copied = storage.copyTree(source, destination);
+        System.out.println("Copied " + copied + " files from " + source + " to " + destination + " in " + storage);
     }
-}
\ No newline at end of file
+}
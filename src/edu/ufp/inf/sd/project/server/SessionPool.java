@@ -0,0 +1,161 @@
+package edu.ufp.inf.sd.project.server;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.rmi.RemoteException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hands out sessions and lets clients resume them.
+ * <p>
+ * Exporting a remote object is the costly part of a login, so sessions are exported ahead of time by a background
+ * thread, which keeps up to {@value #POOL_SIZE_PROPERTY} of them waiting, and a login only binds one to its user.
+ * A closed session is not bound again: its previous client may still hold a stub of it.
+ * <p>
+ * Every open session can issue a resumption token: its username, id and expiry, signed with a key that never leaves
+ * this process. A client that lost its connection presents the token to get the same session back, still exported and
+ * still attached to the same file system, without authenticating or exporting anything again. Tokens are valid for
+ * {@value #RESUME_SECONDS_PROPERTY} seconds and only while their session is open, so a lease that ran out cannot be
+ * resumed.
+ */
+public class SessionPool {
+
+    public static final String POOL_SIZE_PROPERTY = "edu.ufp.inf.sd.project.session.poolSize";
+    public static final String RESUME_SECONDS_PROPERTY = "edu.ufp.inf.sd.project.session.resumeSeconds";
+
+    private static final long RETRY_MILLIS = 1000;
+
+    private final Database database;
+    private final BlockingQueue<SessionImpl> idle;
+    private final Map<String, SessionImpl> open = new ConcurrentHashMap<>(); // session id -> session
+    private final long resumeMillis;
+    private final byte[] tokenKey = new byte[32];
+
+    public SessionPool(Database database) {
+        this(database, Integer.getInteger(POOL_SIZE_PROPERTY, 16), Long.getLong(RESUME_SECONDS_PROPERTY, 3600));
+    }
+
+    public SessionPool(Database database, int poolSize, long resumeSeconds) {
+        this.database = database;
+        this.idle = new ArrayBlockingQueue<>(Math.max(1, poolSize));
+        this.resumeMillis = TimeUnit.SECONDS.toMillis(resumeSeconds);
+        new SecureRandom().nextBytes(tokenKey);
+        if (poolSize > 0) {
+            Thread exporter = new Thread(this::fill, "session-pool");
+            exporter.setDaemon(true);
+            exporter.start();
+        }
+    }
+
+    /**
+     * Opens a session for an authenticated user, on an exported session from the pool when there is one.
+     *
+     * @param username The username
+     * @return The session
+     */
+    public SessionImpl open(String username) throws RemoteException {
+        SessionImpl session = idle.poll();
+        if (session == null) {
+            session = new SessionImpl(database, this);
+        }
+        String sessionId = UUID.randomUUID().toString();
+        session.bind(username, sessionId);
+        open.put(sessionId, session);
+        return session;
+    }
+
+    /**
+     * Gets an open session back from one of its resumption tokens.
+     *
+     * @param token The token
+     * @return The session, or null if the token is not valid or its session is closed
+     */
+    public SessionImpl resume(String token) {
+        String[] parts = token.split("\\.");
+        if (parts.length != 4) {
+            return null;
+        }
+        String payload = parts[0] + "." + parts[1] + "." + parts[2];
+        byte[] signature;
+        long expiresAt;
+        try {
+            signature = Base64.getUrlDecoder().decode(parts[3]);
+            expiresAt = Long.parseLong(parts[2]);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        if (!MessageDigest.isEqual(signature, sign(payload)) || System.currentTimeMillis() > expiresAt) {
+            return null;
+        }
+        String username = new String(Base64.getUrlDecoder().decode(parts[0]), StandardCharsets.UTF_8);
+        SessionImpl session = open.get(parts[1]);
+        if (session == null || !username.equals(session.getBoundUsername()) || !session.resume()) {
+            return null;
+        }
+        return session;
+    }
+
+    /**
+     * Issues a resumption token for an open session.
+     */
+    String issueToken(String username, String sessionId) {
+        String payload = Base64.getUrlEncoder().withoutPadding().encodeToString(username.getBytes(StandardCharsets.UTF_8))
+                + "." + sessionId + "." + (System.currentTimeMillis() + resumeMillis);
+        return payload + "." + Base64.getUrlEncoder().withoutPadding().encodeToString(sign(payload));
+    }
+
+    /**
+     * Forgets a closed session, so its tokens no longer resume it.
+     */
+    void closed(String sessionId) {
+        open.remove(sessionId);
+    }
+
+    public int getIdleCount() {
+        return idle.size();
+    }
+
+    public int getOpenCount() {
+        return open.size();
+    }
+
+    /**
+     * Keeps the pool full, exporting a new session whenever one is taken.
+     */
+    private void fill() {
+        while (true) {
+            try {
+                idle.put(new SessionImpl(database, this));
+            } catch (InterruptedException e) {
+                return;
+            } catch (RemoteException e) {
+                System.err.println("Failed to export a pooled session: " + e.getMessage());
+                try {
+                    Thread.sleep(RETRY_MILLIS);
+                } catch (InterruptedException interrupted) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private byte[] sign(String payload) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(tokenKey, "HmacSHA256"));
+            return mac.doFinal(payload.getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HmacSHA256 is not available", e);
+        }
+    }
+}
@@ -3,9 +3,11 @@ package edu.ufp.inf.sd.project.server;
 import java.rmi.Remote;
 import java.rmi.RemoteException;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 
 import edu.ufp.inf.sd.project.client.ObserverRI;
+import edu.ufp.inf.sd.project.client.SyncJobListenerRI;
 
 public interface SessionRI extends Remote {
 
@@ -13,6 +15,14 @@ public interface SessionRI extends Remote {
 
     SubjectFileSystemRI getFileSystem() throws RemoteException;
 
+    /**
+     * Attaches an observer to this user's file system for as long as this session is open: it is detached when the
+     * session is closed, by logging out or when its lease runs out.
+     */
+    void attachObserver(ObserverRI observer) throws RemoteException;
+
+    void detachObserver(ObserverRI observer) throws RemoteException;
+
     Map<String,SubjectFileSystemRI> getSharedWithMeFileSystem() throws RemoteException;
 
     void shareWithFileSystem(String username) throws RemoteException;
@@ -21,5 +31,55 @@ public interface SessionRI extends Remote {
 
     void synchronizeSharedFolders() throws RemoteException;
 
+    void synchronizeSharedFolders(SyncMode mode) throws RemoteException;
+
+    /**
+     * Shares this user's file system like {@link #shareWithFileSystem(String)}, copying the files in the background.
+     *
+     * @param username The user to share with
+     * @param listener Receives the progress of the copy, or null to poll it with {@link #getSyncJobStatus(String)}
+     * @return The status of the job that copies the files
+     */
+    SyncJobStatus shareWithFileSystemAsync(String username, SyncJobListenerRI listener) throws RemoteException;
+
+    /**
+     * Synchronizes the shared folders like {@link #synchronizeSharedFolders(SyncMode)}, in the background.
+     *
+     * @param mode     How changed files are copied
+     * @param listener Receives the progress of the job, or null to poll it with {@link #getSyncJobStatus(String)}
+     * @return The status of the job
+     */
+    SyncJobStatus synchronizeSharedFoldersAsync(SyncMode mode, SyncJobListenerRI listener) throws RemoteException;
+
+    /**
+     * @return The status of a job of this user, or null if there is no such job
+     */
+    SyncJobStatus getSyncJobStatus(String jobId) throws RemoteException;
+
+    List<SyncJobStatus> getSyncJobs() throws RemoteException;
+
+    /**
+     * Cancels a job of this user before its next file. The files already synchronized are kept.
+     *
+     * @return true if the job was cancelled, false if there is no such job or it already finished
+     */
+    boolean cancelSyncJob(String jobId) throws RemoteException;
+
+    /**
+     * Renews the lease of this session. A session whose lease runs out is closed as if the client logged out,
+     * so clients must renew well within the lease duration.
+     *
+     * @return The lease duration, in milliseconds
+     */
+    long renewLease() throws RemoteException;
+
+    /**
+     * Issues a token that gets this session back through {@link AuthServiceRI#resume(String)} after the connection
+     * is lost, as long as the session has not been closed.
+     *
+     * @return The signed token
+     */
+    String getResumptionToken() throws RemoteException;
+
     boolean logout() throws RemoteException;
 }
@@ -0,0 +1,91 @@
+package edu.ufp.inf.sd.project.server;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Pushes every operation an owner applies to the shared copies of the users the owner shares with,
+ * as soon as it is applied. Each copy receives the same operation with its path moved under
+ * {@code <sharer>/shared/<owner>}, so the cost of keeping the copies current is the cost of the edit,
+ * not of a walk over the owner's tree. The copies of the different sharers are written in parallel.
+ */
+public class ShareReplicator {
+
+    private final Database database;
+    private final Storage storage = Storage.getStorageInstance();
+    private final TreeSynchronizer treeSynchronizer = TreeSynchronizer.getTreeSynchronizerInstance();
+
+    public ShareReplicator(Database database) {
+        this.database = database;
+    }
+
+    /**
+     * Applies an operation of its owner to the shared copy of every sharer.
+     *
+     * @param owner     The user of the session that applied the operation, never the user name the operation claims
+     * @param operation The operation, already applied to the owner's tree
+     * @return The number of shared copies updated
+     */
+    public int replicate(String owner, StateFileSystemOperation operation) {
+        Set<String> sharers = database.getSharers(owner);
+        if (sharers.isEmpty() || operation.getParams().isEmpty()) {
+            return 0;
+        }
+        String relativePath = relativePath(owner, operation.getParams().get(0));
+        if (relativePath == null) {
+            // Only the owner's own tree is shared
+            return 0;
+        }
+
+        List<Runnable> jobs = new ArrayList<>();
+        for (String sharer : sharers) {
+            ArrayList<String> params = new ArrayList<>(operation.getParams());
+            params.set(0, sharer + "/shared/" + owner + relativePath);
+            StateFileSystemOperation copy = new StateFileSystemOperation(owner, params, operation.getType());
+            if (operation.getType() == StateFileSystemOperation.OperationType.UPLOADFILE) {
+                jobs.add(() -> copyUpload(operation, copy));
+            } else {
+                jobs.add(() -> StateFileSystemOperation.executeOperation(copy, storage, ""));
+            }
+        }
+        treeSynchronizer.runAll(jobs);
+        return jobs.size();
+    }
+
+    /**
+     * Copies an uploaded file to a shared copy, as an upload only carries the hash of its content.
+     *
+     * @param upload The UPLOADFILE of the owner, already applied
+     * @param copy   The same operation on the shared copy
+     */
+    private void copyUpload(StateFileSystemOperation upload, StateFileSystemOperation copy) {
+        String folder = copy.getParams().get(0);
+        String name = copy.getParams().get(1);
+        if (!storage.isDirectory(folder)) {
+            System.out.println("File " + name + " is not at " + folder);
+            return;
+        }
+        try {
+            storage.copy(Storage.path(Storage.SERVER, upload.getParams().get(0), name), Storage.path(folder, name));
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.println("Failed to copy the upload of " + name + " to " + folder + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Gets the path of an operation relative to its owner's folder.
+     *
+     * @return The path after the owner's folder, starting with '/' unless empty, or null if it is not under that folder
+     */
+    private static String relativePath(String owner, String path) {
+        if (path.equals(owner)) {
+            return "";
+        }
+        if (path.startsWith(owner + "/")) {
+            return path.substring(owner.length());
+        }
+        return null;
+    }
+}
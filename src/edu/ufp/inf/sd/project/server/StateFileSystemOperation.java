@@ -1,15 +1,20 @@
 package edu.ufp.inf.sd.project.server;
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 
-public class StateFileSystemOperation implements Serializable {
+/**
+ * A filesystem operation of a user. Marshalled with the compact encoding of {@link OperationCodec}
+ * instead of default serialization, as one is sent to every observer of every change.
+ */
+public class StateFileSystemOperation implements Externalizable {
     @Serial
     private static final long serialVersionUID = 1L;
 
-    private final String username;
-    private final OperationType type;
-    private final ArrayList<String> params;
+    private String username;
+    private OperationType type;
+    private ArrayList<String> params;
 
 
     public enum OperationType {
@@ -18,6 +23,17 @@ public class StateFileSystemOperation implements Serializable {
         DELETEFILE,
         CREATEFOLDER,
         DELETEFOLDER,
+        /**
+         * A {@link TextDelta} of a file edited collaboratively, {@code [folder, file, delta]}; see {@link TextDocuments}.
+         * Only sent to the editors of the file, never applied by {@link #executeOperation}.
+         */
+        TEXTEDIT,
+        /**
+         * A file uploaded with {@link TransferManager}, {@code [folder, file, hash, size]}, where the hash is the
+         * SHA-256 of the content. Applying it moves the complete upload file over the file, creating it if needed;
+         * the content itself never travels in the operation, replicas copy or download it.
+         */
+        UPLOADFILE,
     }
 
     public StateFileSystemOperation(String username, ArrayList<String> params, OperationType type) {
@@ -26,97 +42,164 @@ public class StateFileSystemOperation implements Serializable {
         this.type = type;
     }
 
-    public static void executeOperation(StateFileSystemOperation sfso) {
+    /**
+     * Only for deserialization, see {@link #readExternal}.
+     */
+    public StateFileSystemOperation() {
+    }
+
+    /**
+     * Checks that an operation can be applied: a type that is applied to the filesystem and the parameters it needs,
+     * {@code [folder]} for folders, {@code [folder, file]} for files, {@code [folder, file, content]} for updates and
+     * {@code [folder, file, hash, size]} for uploads.
+     *
+     * @return null if it can, or why not
+     */
+    public static String validate(StateFileSystemOperation sfso) {
+        if (sfso.type == null || sfso.type == OperationType.TEXTEDIT) {
+            return "not a filesystem operation: " + sfso.type;
+        }
+        if (sfso.username == null || sfso.params == null || sfso.params.contains(null)) {
+            return "missing user name or parameters";
+        }
+        int required;
+        switch (sfso.type) {
+            case CREATEFOLDER:
+            case DELETEFOLDER:
+                required = 1;
+                break;
+            case UPDATEFILE:
+                required = 3;
+                break;
+            case UPLOADFILE:
+                required = 4;
+                break;
+            default:
+                required = 2;
+        }
+        if (sfso.params.size() < required) {
+            return sfso.type + " needs " + required + " parameters, got " + sfso.params.size();
+        }
+        return null;
+    }
+
+    public static boolean executeOperation(StateFileSystemOperation sfso) {
+        return executeOperation(sfso, Storage.getStorageInstance(), Storage.SERVER);
+    }
+
+    /**
+     * Applies an operation with its path resolved under the given folder of a storage instead of the server's tree.
+     *
+     * @param sfso    The operation
+     * @param storage The storage of the files
+     * @param root    The folder of the tree, "" for the root of the storage
+     * @return true if the filesystem is now as the operation asks, false if it could not be applied
+     */
+    public static boolean executeOperation(StateFileSystemOperation sfso, Storage storage, String root) {
+        String invalid = validate(sfso);
+        if (invalid != null) {
+            System.out.println("Operation " + sfso.type + " of user " + sfso.username + " rejected: " + invalid);
+            return false;
+        }
+        try {
+            return apply(sfso, storage, root);
+        } catch (IllegalArgumentException e) {
+            System.out.println("Operation " + sfso.type + " of user " + sfso.username + " rejected: " + e.getMessage());
+            return false;
+        }
+    }
+
+    private static boolean apply(StateFileSystemOperation sfso, Storage storage, String root) {
         switch (sfso.type) {
             case CREATEFILE:
-                String filePath = "/home/oshico/Projects/SD/data/server/" + sfso.params.get(0);
                 String fileName = sfso.params.get(1);
-                File dir = new File(filePath);
-                if (!dir.exists()) {
-                    dir.mkdirs();
-                    File file = new File(dir, fileName);
-                    try {
-                        if (file.createNewFile()) {
-                            System.out.println("File " + fileName + " created");
-                        } else {
-                            System.out.println("File " + fileName + " already exists");
-                        }
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-                } else {
-                    File file = new File(dir, fileName);
-                    try {
-                        if (file.createNewFile()) {
-                            System.out.println("File " + fileName + " created");
-                        } else {
-                            System.out.println("File " + fileName + " already exists");
-                        }
-                    } catch (IOException e) {
-                        e.printStackTrace();
+                try {
+                    if (storage.createFile(Storage.path(root, sfso.params.get(0), fileName))) {
+                        System.out.println("File " + fileName + " created");
+                    } else {
+                        System.out.println("File " + fileName + " already exists");
                     }
+                    return true;
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    return false;
                 }
-                break;
             case UPDATEFILE:
-                String filePath2 = "/home/oshico/Projects/SD/data/server/" + sfso.params.get(0);
+                String filePath2 = Storage.path(root, sfso.params.get(0));
                 String fileName2 = sfso.params.get(1);
                 String fileContent2 = sfso.params.get(2);
-                File dir2 = new File(filePath2);
-                if (!dir2.exists()) {
-                    System.out.println("File " + filePath2 + " is not at " + dir2.getAbsolutePath());
-                } else {
-                    File file2 = new File(dir2, fileName2);
-                    if (!file2.exists()) {
-                        System.out.println("File " + filePath2 + " does not exist at " + file2.getAbsolutePath());
-                    } else {
-                        try {
-                            FileWriter fw = new FileWriter(file2);
-                            fw.write(fileContent2);
-                            fw.flush();
-                            System.out.println("File " + fileName2 + " updated");
-                        } catch (IOException e) {
-                            e.printStackTrace();
-                        }
-
-                    }
+                if (!storage.isDirectory(filePath2)) {
+                    System.out.println("File " + fileName2 + " is not at " + filePath2);
+                    return false;
+                }
+                String file2 = Storage.path(filePath2, fileName2);
+                if (!storage.isFile(file2)) {
+                    System.out.println("File " + fileName2 + " does not exist at " + file2);
+                    return false;
+                }
+                try {
+                    storage.write(file2, fileContent2.getBytes(StandardCharsets.UTF_8));
+                    System.out.println("File " + fileName2 + " updated");
+                    return true;
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    return false;
                 }
-
-                break;
             case DELETEFILE:
-                String filePath3 = "/home/oshico/Projects/SD/data/server/" + sfso.params.get(0);
+                String filePath3 = Storage.path(root, sfso.params.get(0));
                 String fileName3 = sfso.params.get(1);
-                File dir3 = new File(filePath3);
-                if (!dir3.exists()) {
+                if (!storage.isDirectory(filePath3)) {
                     System.out.println("File is not at:" + filePath3);
-                } else {
-                    File file3 = new File(dir3, fileName3);
-                    if (file3.delete()) {
-                        System.out.println("File " + fileName3 + " deleted");
-                    } else {
-                        System.out.println("File " + fileName3 + " does not exist");
-                    }
+                    return false;
                 }
-                break;
+                String file3 = Storage.path(filePath3, fileName3);
+                if (storage.isFile(file3) && storage.delete(file3)) {
+                    System.out.println("File " + fileName3 + " deleted");
+                    return true;
+                }
+                System.out.println("File " + fileName3 + " does not exist");
+                return false;
             case CREATEFOLDER:
-                String dirPath4 = "/home/oshico/Projects/SD/data/server/" + sfso.params.get(0);
-                File dir4 = new File(dirPath4);
-                if (!dir4.exists()) {
-                    dir4.mkdirs();
-                    System.out.println("Folder created: " + dir4.getAbsolutePath());
+                String dirPath4 = Storage.path(root, sfso.params.get(0));
+                if (!storage.exists(dirPath4)) {
+                    storage.createDirectories(dirPath4);
+                    System.out.println("Folder created: " + dirPath4);
                 } else {
-                    System.out.println("Folder already exists: " + dir4.getAbsolutePath());
+                    System.out.println("Folder already exists: " + dirPath4);
                 }
-                break;
+                return storage.isDirectory(dirPath4);
             case DELETEFOLDER:
-                String dirPath5 = "/home/oshico/Projects/SD/data/server/" + sfso.params.get(0);
-                File dir5 = new File(dirPath5);
-                if (dir5.delete()) {
+                String dirPath5 = Storage.path(root, sfso.params.get(0));
+                if (storage.isDirectory(dirPath5) && storage.delete(dirPath5)) {
                     System.out.println("Folder deleted: " + dirPath5);
-                } else {
-                    System.out.println("Folder does not exist: " + dirPath5);
+                    return true;
                 }
-                break;
-
+                System.out.println("Folder does not exist: " + dirPath5);
+                return false;
+            case UPLOADFILE:
+                String filePath6 = Storage.path(root, sfso.params.get(0));
+                String fileName6 = sfso.params.get(1);
+                long size6 = Long.parseLong(sfso.params.get(3));
+                if (!storage.isDirectory(filePath6)) {
+                    System.out.println("File " + fileName6 + " is not at " + filePath6);
+                    return false;
+                }
+                String file6 = Storage.path(filePath6, fileName6);
+                String partial6 = Storage.path(filePath6, TransferManager.partialName(fileName6));
+                try {
+                    if (storage.isFile(partial6) && storage.size(partial6) == size6) {
+                        storage.move(partial6, file6);
+                        System.out.println("File " + fileName6 + " uploaded");
+                        return true;
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    return false;
+                }
+                // Moved into place already, when the log is replayed
+                return storage.isFile(file6);
+            default:
+                return false;
         }
     }
 
@@ -131,4 +214,17 @@ public class StateFileSystemOperation implements Serializable {
     public ArrayList<String> getParams() {
         return params;
     }
+
+    @Override
+    public void writeExternal(ObjectOutput out) throws IOException {
+        OperationCodec.write(out, this, null);
+    }
+
+    @Override
+    public void readExternal(ObjectInput in) throws IOException {
+        StateFileSystemOperation operation = OperationCodec.read(in, null);
+        this.username = operation.username;
+        this.type = operation.type;
+        this.params = operation.params;
+    }
 }
@@ -0,0 +1,276 @@
+package edu.ufp.inf.sd.project.server;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Where the files of the users are kept, so the data can be moved, or kept off the disk, without touching the code
+ * that reads and writes it.
+ * <p>
+ * Paths are relative to the root of the storage and separated by '/', e.g. {@code server/alice/docs/notes.txt}; the
+ * server's tree is under {@value #SERVER}, and the tree of each client under its user name. Every file operation of the
+ * users goes through a storage: {@link LocalStorage} keeps the files on the local disk, {@link MappedStorage} too but
+ * reads and writes them through memory mappings, and {@link MemoryStorage} keeps them in the heap, for tests and
+ * benchmarks.
+ * <p>
+ * The storage of the process is chosen with {@value #TYPE_PROPERTY} ({@code local}, {@code memory} or {@code mapped},
+ * local by default) and {@value #ROOT_PROPERTY}, or by {@link #select} before anything uses it. The indexes, chunks,
+ * database and operation log of the server are kept as files of their own, in the directories given by
+ * {@link #toFile}.
+ */
+public abstract class Storage {
+
+    public static final String TYPE_PROPERTY = "edu.ufp.inf.sd.project.storage.type";
+    public static final String ROOT_PROPERTY = "edu.ufp.inf.sd.project.storage.root";
+
+    public static final String DEFAULT_ROOT = "/home/oshico/Projects/SD/data";
+    /**
+     * The folder of the server's tree.
+     */
+    public static final String SERVER = "server";
+
+    private static Storage instance;
+
+    public enum Type {
+        LOCAL,
+        MEMORY,
+        MAPPED;
+
+        public static Type parse(String name) {
+            return valueOf(name.trim().toUpperCase(Locale.ROOT));
+        }
+    }
+
+    /**
+     * Creates a storage.
+     *
+     * @param type The kind of storage
+     * @param root The directory of the files, or, for a memory storage, of the files of the subsystems that need a
+     *             directory; null for a temporary one
+     */
+    public static Storage create(Type type, File root) throws IOException {
+        switch (type) {
+            case MEMORY:
+                return new MemoryStorage(root);
+            case MAPPED:
+                return new MappedStorage(root == null ? new File(DEFAULT_ROOT) : root);
+            default:
+                return new LocalStorage(root == null ? new File(DEFAULT_ROOT) : root);
+        }
+    }
+
+    /**
+     * Opens the files of a client, under {@value #ROOT_PROPERTY}. They are edited by their users, so they are always
+     * local.
+     */
+    public static LocalStorage openClientStorage() {
+        return new LocalStorage(new File(System.getProperty(ROOT_PROPERTY, DEFAULT_ROOT)));
+    }
+
+    protected static synchronized Storage getStorageInstance() {
+        if (instance == null) {
+            String root = System.getProperty(ROOT_PROPERTY);
+            try {
+                instance = create(Type.parse(System.getProperty(TYPE_PROPERTY, Type.LOCAL.name())),
+                        root == null ? null : new File(root));
+            } catch (IOException e) {
+                throw new IllegalStateException("Failed to open the storage: " + e.getMessage(), e);
+            }
+            System.out.println("Storage: " + instance);
+        }
+        return instance;
+    }
+
+    /**
+     * Makes a storage the one of this process.
+     *
+     * @throws IllegalStateException If another storage is already in use
+     */
+    public static synchronized void select(Storage storage) {
+        if (instance != null && instance != storage) {
+            throw new IllegalStateException("Storage already in use: " + instance);
+        }
+        instance = storage;
+        System.out.println("Storage: " + instance);
+    }
+
+    /**
+     * Joins the parts of a path, skipping empty ones.
+     */
+    public static String path(String... parts) {
+        StringBuilder path = new StringBuilder();
+        for (String part : parts) {
+            if (part != null && !part.isEmpty()) {
+                if (path.length() > 0) {
+                    path.append('/');
+                }
+                path.append(part);
+            }
+        }
+        return path.toString();
+    }
+
+    /**
+     * Checks a path and removes its redundant separators.
+     *
+     * @return The path, "" for the root
+     * @throws IllegalArgumentException If the path leaves the root
+     */
+    protected static String normalize(String path) {
+        StringBuilder normalized = new StringBuilder(path.length());
+        for (String part : path.replace(File.separatorChar, '/').split("/")) {
+            if (part.isEmpty() || part.equals(".")) {
+                continue;
+            }
+            if (part.equals("..")) {
+                throw new IllegalArgumentException("Path outside the storage: " + path);
+            }
+            if (normalized.length() > 0) {
+                normalized.append('/');
+            }
+            normalized.append(part);
+        }
+        return normalized.toString();
+    }
+
+    public abstract boolean exists(String path);
+
+    public abstract boolean isDirectory(String path);
+
+    public boolean isFile(String path) {
+        return exists(path) && !isDirectory(path);
+    }
+
+    /**
+     * @return The size of a file in bytes
+     * @throws FileNotFoundException If it is not a file
+     */
+    public abstract long size(String path) throws IOException;
+
+    /**
+     * @return The names of the entries of a directory, in no particular order
+     * @throws FileNotFoundException If it is not a directory
+     */
+    public abstract List<String> list(String path) throws IOException;
+
+    /**
+     * Creates a directory and the missing directories above it.
+     *
+     * @return true if the directory exists afterwards
+     */
+    public abstract boolean createDirectories(String path);
+
+    /**
+     * Creates an empty file, and the missing directories above it.
+     *
+     * @return false if the file already existed
+     * @throws IOException If it cannot be created
+     */
+    public abstract boolean createFile(String path) throws IOException;
+
+    /**
+     * @return The whole content of a file
+     */
+    public abstract byte[] read(String path) throws IOException;
+
+    /**
+     * Reads part of a file.
+     *
+     * @return The bytes read, fewer than asked for only at the end of the file
+     */
+    public abstract byte[] read(String path, long offset, int length) throws IOException;
+
+    /**
+     * Replaces the content of a file, creating it if needed; its directory must exist.
+     */
+    public abstract void write(String path, byte[] data) throws IOException;
+
+    /**
+     * Appends to a file, creating it if needed; its directory must exist.
+     */
+    public abstract void append(String path, byte[] data) throws IOException;
+
+    /**
+     * Cuts a file to a size, or creates it empty.
+     */
+    public abstract void truncate(String path, long size) throws IOException;
+
+    /**
+     * Moves a file over another, atomically where the storage can.
+     */
+    public abstract void move(String source, String target) throws IOException;
+
+    /**
+     * Copies a file over another. Reads the whole file at once unless the storage streams it.
+     */
+    public void copy(String source, String target) throws IOException {
+        write(target, read(source));
+    }
+
+    /**
+     * Deletes a file or an empty directory.
+     *
+     * @return false if there was nothing to delete or the directory is not empty
+     */
+    public abstract boolean delete(String path);
+
+    /**
+     * Makes the content of a file durable, if the storage is.
+     */
+    public abstract void force(String path) throws IOException;
+
+    /**
+     * Gets the local directory or file of a path, for the subsystems that keep files of their own, such as indexes and
+     * the operation log, or work on files directly, such as delta synchronization. For a storage that is not local the
+     * directory is a scratch one, which does not hold the stored files.
+     */
+    public abstract File toFile(String path);
+
+    /**
+     * @return true if the stored files are the files of {@link #toFile}
+     */
+    public abstract boolean isLocal();
+
+    /**
+     * Deletes a file or a directory and everything under it.
+     *
+     * @return The number of files and directories deleted
+     */
+    public int deleteTree(String path) {
+        int deleted = 0;
+        if (isDirectory(path)) {
+            try {
+                for (String name : list(path)) {
+                    deleted += deleteTree(path(path, name));
+                }
+            } catch (IOException e) {
+                System.err.println("Failed to list " + path + ": " + e.getMessage());
+            }
+        }
+        return delete(path) ? deleted + 1 : deleted;
+    }
+
+    /**
+     * Copies the files under a directory to another, replacing the ones it already has.
+     *
+     * @return The number of files copied
+     */
+    public int copyTree(String source, String target) throws IOException {
+        createDirectories(target);
+        int copied = 0;
+        for (String name : list(source)) {
+            String from = path(source, name);
+            String to = path(target, name);
+            if (isDirectory(from)) {
+                copied += copyTree(from, to);
+            } else {
+                write(to, read(from));
+                copied++;
+            }
+        }
+        return copied;
+    }
+}
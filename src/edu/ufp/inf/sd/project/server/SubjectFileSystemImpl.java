@@ -2,6 +2,7 @@ package edu.ufp.inf.sd.project.server;
 
 import edu.ufp.inf.sd.project.client.ObserverRI;
 
+import java.io.IOException;
 import java.io.Serial;
 import java.rmi.RemoteException;
 import java.rmi.server.UnicastRemoteObject;
@@ -14,37 +15,234 @@ public class SubjectFileSystemImpl extends UnicastRemoteObject implements Subjec
 
     private final String username;
     private final Database database;
-    private final ArrayList<ObserverRI> observers = new ArrayList<>();
+    private final ObserverDispatcher observers;
+    private final OperationLog operationLog;
+    private final TransferManager transferManager = TransferManager.getTransferManagerInstance();
+    private final ShareReplicator shareReplicator;
+    private final ChangeWatcher changeWatcher = ChangeWatcher.getChangeWatcherInstance();
+    private final FileVersions fileVersions = FileVersions.getFileVersionsInstance();
+    private final TextDocuments textDocuments = TextDocuments.getTextDocumentsInstance();
 
     public SubjectFileSystemImpl(String username, Database database) throws RemoteException {
         super();
         this.username = username;
         this.database = database;
+        this.observers = new ObserverDispatcher(username);
+        this.shareReplicator = new ShareReplicator(database);
+        try {
+            this.operationLog = OperationLog.getOperationLogInstance();
+        } catch (IOException e) {
+            throw new RemoteException("Failed to open the operation log", e);
+        }
     }
 
     @Override
     public ArrayList setStateFileSystemOperation(StateFileSystemOperation stateFileSystemOperation) throws RemoteException {
+        // The client notifies the observers of this change itself
+        OperationResult result = apply(List.of(stateFileSystemOperation), false).get(0);
+        if (result.isConflict()) {
+            System.out.println("Operation " + stateFileSystemOperation.getType() + " " + stateFileSystemOperation.getParams().get(0) + " rejected: " + result);
+        }
         return null;
     }
 
+    @Override
+    public List<OperationResult> applyOperations(List<StateFileSystemOperation> operations) throws RemoteException {
+        return apply(operations, true);
+    }
+
+    /**
+     * Logs and applies the operations that do not conflict with the current versions of their files.
+     */
+    private List<OperationResult> apply(List<StateFileSystemOperation> operations, boolean publish) throws RemoteException {
+        // Checked before anything is logged, as a logged operation is replayed at every start until checkpointed
+        for (StateFileSystemOperation operation : operations) {
+            String invalid = StateFileSystemOperation.validate(operation);
+            if (invalid != null) {
+                throw new RemoteException("Operation " + operation.getType() + " refused: " + invalid);
+            }
+            checkOwned(operation);
+        }
+        long[] logged = new long[2];
+        try {
+            return fileVersions.apply(operations, accepted -> {
+                // Log the operations durably before touching the filesystem, so they can be replayed after a crash
+                long first = operationLog.appendAll(accepted);
+                logged[0] = first;
+                logged[1] = accepted.size();
+                System.out.println("Logged " + accepted.size() + " operations from #" + first);
+                List<OperationResult> results = new ArrayList<>(accepted.size());
+                for (int i = 0; i < accepted.size(); i++) {
+                    StateFileSystemOperation operation = accepted.get(i);
+                    changeWatcher.expect(operation);
+                    boolean applied = StateFileSystemOperation.executeOperation(operation);
+                    int replicas = 0;
+                    if (applied) {
+                        // Keep the shared copies of this user's folder current without a full synchronization
+                        replicas = shareReplicator.replicate(username, operation);
+                        if (publish) {
+                            observers.publish(operation);
+                        }
+                    }
+                    String version = FileVersions.versionOf(operation);
+                    results.add(new OperationResult(first + i,
+                            applied ? OperationResult.Status.APPLIED : OperationResult.Status.NOT_APPLIED,
+                            replicas, version == null ? "" : version));
+                }
+                return results;
+            });
+        } catch (IOException e) {
+            throw new RemoteException("Failed to log operations", e);
+        } finally {
+            // Once their versions are set, so a checkpoint covering them saves the versions too
+            if (operationLog.applied(logged[0], (int) logged[1])) {
+                try {
+                    fileVersions.checkpoint(operationLog);
+                } catch (IOException e) {
+                    System.err.println("Failed to checkpoint the operation log: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Refuses an operation that claims another user, whose name the versions and replicas would be given, or that
+     * applies outside the folder of the user of this session.
+     */
+    private void checkOwned(StateFileSystemOperation operation) throws RemoteException {
+        String folder = operation.getParams() == null || operation.getParams().isEmpty() || operation.getParams().get(0) == null
+                ? "" : operation.getParams().get(0);
+        try {
+            folder = Storage.normalize(folder);
+        } catch (IllegalArgumentException e) {
+            throw new RemoteException("Path outside the server root: " + folder);
+        }
+        if (!username.equals(operation.getUsername()) || !(folder.equals(username) || folder.startsWith(username + "/"))) {
+            throw new RemoteException("Operation " + operation.getType() + " of " + operation.getUsername() + " on " + folder
+                    + " refused for user " + username);
+        }
+    }
+
+    /**
+     * Refuses to edit a text file the user neither owns nor has been shared: the owner of the file is the first folder
+     * of its canonical path, that of the owner's file for a shared copy.
+     */
+    private void checkEditable(String path, String name) throws RemoteException {
+        String canonical;
+        try {
+            canonical = FileVersions.canonicalPath(Storage.normalize(path));
+        } catch (IllegalArgumentException e) {
+            throw new RemoteException("Path outside the server root: " + path);
+        }
+        int separator = canonical.indexOf('/');
+        String owner = separator < 0 ? canonical : canonical.substring(0, separator);
+        if (!owner.equals(username) && !database.getSharers(owner).contains(username)) {
+            throw new RemoteException("User " + username + " cannot edit " + path + "/" + name);
+        }
+    }
+
+    @Override
+    public TextDelta openText(String path, String name, ObserverRI editor) throws RemoteException {
+        // Before the editor is registered, so it never receives a delta of a document it cannot open
+        checkEditable(path, name);
+        try {
+            return textDocuments.open(path, name, editor);
+        } catch (IOException e) {
+            throw new RemoteException("Failed to open " + path + "/" + name + " for editing", e);
+        }
+    }
+
+    @Override
+    public void editText(String path, String name, TextDelta delta) throws RemoteException {
+        checkEditable(path, name);
+        boolean open;
+        try {
+            open = textDocuments.edit(username, path, name, delta);
+        } catch (IllegalArgumentException e) {
+            throw new RemoteException("Edit of " + path + "/" + name + " refused: " + e.getMessage());
+        }
+        if (!open) {
+            throw new RemoteException(path + "/" + name + " is not open for editing");
+        }
+    }
+
+    @Override
+    public void closeText(String path, String name, ObserverRI editor) throws RemoteException {
+        textDocuments.close(path, name, editor);
+    }
+
     @Override
     public void attachObserver(ObserverRI observer) throws RemoteException {
-        this.observers.add(observer);
+        this.observers.register(observer);
     }
 
     @Override
     public void detachObserver(ObserverRI observer) throws RemoteException {
-        this.observers.remove(observer);
+        this.observers.unregister(observer);
     }
 
     @Override
     public void notifyObservers(StateFileSystemOperation stateFileSystemOperation) throws RemoteException {
-        for (ObserverRI observer : observers) {
-            try {
-                observer.update(stateFileSystemOperation);
-            } catch (RemoteException e) {
-                throw new RuntimeException(e);
-            }
+        checkOwned(stateFileSystemOperation);
+        // Delivery happens on each observer's sender thread, so slow or dead clients never block the caller
+        this.observers.publish(stateFileSystemOperation);
+    }
+
+    @Override
+    public FileTransfer openUpload(String path, String name, long size, Set<Compression> accepted) throws RemoteException {
+        try {
+            return transferManager.openUpload(username, path, name, size, accepted);
+        } catch (IOException e) {
+            throw new RemoteException("Failed to open upload of " + path + "/" + name, e);
         }
     }
+
+    @Override
+    public long writeChunk(String transferId, long offset, byte[] data) throws RemoteException {
+        try {
+            return transferManager.writeChunk(username, transferId, offset, data);
+        } catch (IOException e) {
+            throw new RemoteException("Failed to write chunk at " + offset, e);
+        }
+    }
+
+    @Override
+    public void completeUpload(String transferId, String contentHash) throws RemoteException {
+        try {
+            // Applied as an operation, so the upload is logged, versioned, replicated and published like any other
+            transferManager.completeUpload(username, transferId, contentHash, (path, name, hash, size) -> {
+                StateFileSystemOperation upload = new StateFileSystemOperation(username,
+                        new ArrayList<>(List.of(path, name, hash, String.valueOf(size))), StateFileSystemOperation.OperationType.UPLOADFILE);
+                OperationResult result = apply(List.of(upload), true).get(0);
+                if (!result.isApplied()) {
+                    throw new IOException("Upload of " + path + "/" + name + " not applied: " + result);
+                }
+            });
+        } catch (IOException e) {
+            throw new RemoteException("Failed to complete upload", e);
+        }
+    }
+
+    @Override
+    public FileTransfer openDownload(String path, String name, Set<Compression> accepted) throws RemoteException {
+        try {
+            return transferManager.openDownload(username, path, name, accepted);
+        } catch (IOException e) {
+            throw new RemoteException("Failed to open download of " + path + "/" + name, e);
+        }
+    }
+
+    @Override
+    public byte[] readChunk(String transferId, long offset, int length) throws RemoteException {
+        try {
+            return transferManager.readChunk(username, transferId, offset, length);
+        } catch (IOException e) {
+            throw new RemoteException("Failed to read chunk at " + offset, e);
+        }
+    }
+
+    @Override
+    public void closeTransfer(String transferId) throws RemoteException {
+        transferManager.close(username, transferId);
+    }
 }
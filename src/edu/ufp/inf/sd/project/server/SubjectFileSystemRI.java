@@ -5,6 +5,7 @@ import java.rmi.RemoteException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import edu.ufp.inf.sd.project.client.ObserverRI;
 
@@ -17,4 +18,58 @@ public interface SubjectFileSystemRI extends Remote {
     ArrayList setStateFileSystemOperation(StateFileSystemOperation stateFileSystemOperation) throws RemoteException;
 
     void notifyObservers(StateFileSystemOperation stateFileSystemOperation) throws RemoteException;
+
+    /**
+     * Applies a batch of operations in order and notifies the observers of each one applied, in a single call.
+     * The whole batch is logged with one fsync before any operation is applied.
+     *
+     * @param operations The operations, in the order they must be applied
+     * @return The result of each operation, in the same order
+     */
+    List<OperationResult> applyOperations(List<StateFileSystemOperation> operations) throws RemoteException;
+
+    /**
+     * Joins the collaborative editing of a text file.
+     *
+     * @param editor Receives a TEXTEDIT operation for every delta of every editor of the file, its own included
+     * @return Every character of the file, to build the replica of the editor with {@link RgaDocument#integrate}
+     */
+    TextDelta openText(String path, String name, ObserverRI editor) throws RemoteException;
+
+    /**
+     * Sends the delta of an edit made to the replica of an editor of the file.
+     */
+    void editText(String path, String name, TextDelta delta) throws RemoteException;
+
+    void closeText(String path, String name, ObserverRI editor) throws RemoteException;
+
+    /**
+     * Opens a streaming upload of a file, or resumes the unfinished upload of the same file and size.
+     * The file is sent with {@link #writeChunk} and replaces the existing file, or creates it, on {@link #completeUpload},
+     * as an UPLOADFILE operation of this user. Transfers only reach files under the folder of the user.
+     *
+     * @param accepted The codecs the client can compress the chunks with; the server picks one, see {@link Compression}
+     * @return The transfer handle, whose offset is where the upload resumes
+     */
+    FileTransfer openUpload(String path, String name, long size, Set<Compression> accepted) throws RemoteException;
+
+    /**
+     * Sends one chunk of an upload, at most {@code window} chunks ahead of the bytes received so far.
+     *
+     * @return The number of contiguous bytes received so far
+     */
+    long writeChunk(String transferId, long offset, byte[] data) throws RemoteException;
+
+    void completeUpload(String transferId, String contentHash) throws RemoteException;
+
+    /**
+     * Opens a streaming download of a file, read with {@link #readChunk}.
+     *
+     * @param accepted The codecs the client can decompress the chunks with; the server picks one, see {@link Compression}
+     */
+    FileTransfer openDownload(String path, String name, Set<Compression> accepted) throws RemoteException;
+
+    byte[] readChunk(String transferId, long offset, int length) throws RemoteException;
+
+    void closeTransfer(String transferId) throws RemoteException;
 }
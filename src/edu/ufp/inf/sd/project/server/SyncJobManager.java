@@ -0,0 +1,329 @@
+package edu.ufp.inf.sd.project.server;
+
+import edu.ufp.inf.sd.project.client.SyncJobListenerRI;
+
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs synchronizations in the background, so the remote call that starts one returns at once with a handle instead
+ * of holding an RMI thread, and the client, until every file is copied.
+ * <p>
+ * Jobs run on {@value #THREADS_PROPERTY} threads of their own and queue behind each other beyond that. Their progress
+ * (files, bytes and an estimate of the time left) can be polled, and is pushed to the job's listener, if it has one,
+ * every {@value #PROGRESS_INTERVAL_PROPERTY} milliseconds and when the job finishes. Listeners are called on
+ * {@value #LISTENER_THREADS_PROPERTY} threads of their own, with at most one call in flight per job, so a slow listener
+ * only delays the progress of its own job. Cancelling a job stops it before its next file; the files already
+ * synchronized are kept. Finished jobs are forgotten after ten minutes.
+ * <p>
+ * Jobs that write the shared folders of the same user run one after the other, in the order they were submitted, as
+ * they would otherwise write the same files, indexes and temporary copies.
+ */
+public class SyncJobManager {
+
+    public static final String THREADS_PROPERTY = "edu.ufp.inf.sd.project.jobs.threads";
+    public static final String PROGRESS_INTERVAL_PROPERTY = "edu.ufp.inf.sd.project.jobs.progressIntervalMillis";
+    public static final String LISTENER_THREADS_PROPERTY = "edu.ufp.inf.sd.project.jobs.listenerThreads";
+
+    private static final long RETENTION_MILLIS = 10 * 60 * 1000;
+    private static final AtomicInteger THREAD_COUNT = new AtomicInteger();
+
+    private static SyncJobManager instance;
+
+    private final ExecutorService executor;
+    private final ScheduledExecutorService notifier;
+    private final ExecutorService listeners;
+    private final Map<String, SyncJob> jobs = new ConcurrentHashMap<>();
+    // The last job submitted for each destination, guarded by itself
+    private final Map<String, SyncJob> lanes = new HashMap<>();
+
+    /**
+     * The work of a job, which reports its files to the job and stops when the job is cancelled.
+     */
+    public interface Work {
+        void run(TreeSynchronizer.Progress progress) throws Exception;
+    }
+
+    public SyncJobManager(int threads, int listenerThreads, long progressIntervalMillis) {
+        this.executor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "sync-job-" + THREAD_COUNT.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.notifier = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "sync-job-progress");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.listeners = Executors.newFixedThreadPool(listenerThreads, runnable -> {
+            Thread thread = new Thread(runnable, "sync-job-listener-" + THREAD_COUNT.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        notifier.scheduleAtFixedRate(this::notifyRunning, progressIntervalMillis, progressIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    protected static synchronized SyncJobManager getSyncJobManagerInstance() {
+        if (instance == null) {
+            instance = new SyncJobManager(Integer.getInteger(THREADS_PROPERTY, 2), Integer.getInteger(LISTENER_THREADS_PROPERTY, 4),
+                    Long.getLong(PROGRESS_INTERVAL_PROPERTY, 1000));
+        }
+        return instance;
+    }
+
+    /**
+     * Queues a job.
+     *
+     * @param username    The user the job belongs to, the only one who can see or cancel it
+     * @param destination The user whose shared folders the job writes; it waits for the jobs writing them already
+     * @param description What the job does
+     * @param listener    Receives the progress of the job, or null to only poll it
+     * @param work        The work of the job
+     * @return The status of the new job, whose id identifies it
+     */
+    public SyncJobStatus submit(String username, String destination, String description, SyncJobListenerRI listener, Work work) {
+        forgetFinishedJobs();
+        SyncJob job = new SyncJob(UUID.randomUUID().toString(), username, destination, description, listener, work);
+        jobs.put(job.id, job);
+        boolean waiting;
+        synchronized (lanes) {
+            SyncJob last = lanes.put(destination, job);
+            waiting = last != null && last.chain(job);
+        }
+        if (!waiting) {
+            executor.execute(job);
+        }
+        System.out.println("Queued job " + job.id + " of user " + username + ": " + description);
+        return job.getStatus();
+    }
+
+    /**
+     * @return The status of a job of the user, or null if there is no such job
+     */
+    public SyncJobStatus getStatus(String username, String jobId) {
+        SyncJob job = jobs.get(jobId);
+        return job != null && job.username.equals(username) ? job.getStatus() : null;
+    }
+
+    public List<SyncJobStatus> getJobs(String username) {
+        forgetFinishedJobs();
+        List<SyncJobStatus> statuses = new ArrayList<>();
+        for (SyncJob job : jobs.values()) {
+            if (job.username.equals(username)) {
+                statuses.add(job.getStatus());
+            }
+        }
+        return statuses;
+    }
+
+    /**
+     * Cancels a job of the user. A queued job never starts; a running one stops before its next file.
+     *
+     * @return true if the job was cancelled, false if there is no such job or it already finished
+     */
+    public boolean cancel(String username, String jobId) {
+        SyncJob job = jobs.get(jobId);
+        return job != null && job.username.equals(username) && job.cancel();
+    }
+
+    private void notifyRunning() {
+        for (SyncJob job : jobs.values()) {
+            if (job.state == SyncJobStatus.State.RUNNING) {
+                job.scheduleNotification();
+            }
+        }
+    }
+
+    private void forgetFinishedJobs() {
+        long limit = System.currentTimeMillis() - RETENTION_MILLIS;
+        jobs.values().removeIf(job -> job.state.isFinished() && job.finishedAt < limit);
+    }
+
+    private final class SyncJob implements Runnable, TreeSynchronizer.Progress {
+        private final String id;
+        private final String username;
+        private final String destination;
+        private final String description;
+        private final Work work;
+        private final AtomicLong filesTotal = new AtomicLong();
+        private final AtomicLong filesDone = new AtomicLong();
+        private final AtomicLong bytesTotal = new AtomicLong();
+        private final AtomicLong bytesDone = new AtomicLong();
+        private volatile SyncJobListenerRI listener;
+        private volatile SyncJobStatus.State state = SyncJobStatus.State.QUEUED;
+        private volatile boolean cancelled;
+        private volatile long startedAt;
+        private volatile long finishedAt;
+        private volatile String message;
+        // Guarded by the lanes: the job of the same destination started once this one has run, and whether it has
+        private SyncJob next;
+        private boolean released;
+        // Whether a call to the listener is queued or running, and whether another one is due once it returns
+        private final AtomicBoolean notifying = new AtomicBoolean();
+        private volatile boolean notificationDue;
+
+        SyncJob(String id, String username, String destination, String description, SyncJobListenerRI listener, Work work) {
+            this.id = id;
+            this.username = username;
+            this.destination = destination;
+            this.description = description;
+            this.listener = listener;
+            this.work = work;
+        }
+
+        @Override
+        public void run() {
+            try {
+                runWork();
+            } finally {
+                release();
+            }
+        }
+
+        private void runWork() {
+            synchronized (this) {
+                if (state != SyncJobStatus.State.QUEUED) {
+                    return;
+                }
+                startedAt = System.currentTimeMillis();
+                state = SyncJobStatus.State.RUNNING;
+            }
+            SyncJobStatus.State outcome;
+            try {
+                work.run(this);
+                outcome = cancelled ? SyncJobStatus.State.CANCELLED : SyncJobStatus.State.DONE;
+            } catch (CancellationException e) {
+                outcome = SyncJobStatus.State.CANCELLED;
+            } catch (Exception e) {
+                System.err.println("Job " + id + " failed: " + e.getMessage());
+                message = e.getMessage();
+                outcome = cancelled ? SyncJobStatus.State.CANCELLED : SyncJobStatus.State.FAILED;
+            }
+            finish(outcome);
+        }
+
+        /**
+         * Has a job of the same destination start once this one has run. Called holding the lanes.
+         *
+         * @return false if this one has run already, so the job can start at once
+         */
+        boolean chain(SyncJob job) {
+            if (released) {
+                return false;
+            }
+            next = job;
+            return true;
+        }
+
+        /**
+         * Starts the job waiting for this one, if any. A job cancelled while queued still waits for the one before it,
+         * so it only releases its own successor once it is run.
+         */
+        private void release() {
+            SyncJob following;
+            synchronized (lanes) {
+                released = true;
+                lanes.remove(destination, this);
+                following = next;
+            }
+            if (following != null) {
+                executor.execute(following);
+            }
+        }
+
+        synchronized boolean cancel() {
+            if (state.isFinished()) {
+                return false;
+            }
+            cancelled = true;
+            if (state == SyncJobStatus.State.QUEUED) {
+                finish(SyncJobStatus.State.CANCELLED);
+            }
+            return true;
+        }
+
+        private void finish(SyncJobStatus.State outcome) {
+            synchronized (this) {
+                finishedAt = System.currentTimeMillis();
+                state = outcome;
+            }
+            System.out.println("Job " + id + " of user " + username + " finished: " + getStatus());
+            // Pushed from a listener thread, so a slow listener never holds a job thread
+            scheduleNotification();
+        }
+
+        @Override
+        public void planned(int files, long bytes) {
+            filesTotal.addAndGet(files);
+            bytesTotal.addAndGet(bytes);
+        }
+
+        @Override
+        public void completed(String path, long bytes) {
+            filesDone.incrementAndGet();
+            bytesDone.addAndGet(bytes);
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        SyncJobStatus getStatus() {
+            SyncJobStatus.State current = state;
+            long end = current.isFinished() ? finishedAt : System.currentTimeMillis();
+            long elapsed = startedAt == 0 ? 0 : end - startedAt;
+            long done = bytesDone.get();
+            long total = bytesTotal.get();
+            long eta = done > 0 ? (long) ((double) elapsed / done * Math.max(0, total - done)) : -1;
+            return new SyncJobStatus(id, description, current, filesDone.get(), filesTotal.get(), done, total,
+                    elapsed, eta, message);
+        }
+
+        /**
+         * Sends the status to the listener on a listener thread, unless a call to it is in flight; the status is then
+         * sent again once that call returns, so the last one always arrives.
+         */
+        void scheduleNotification() {
+            if (listener == null) {
+                return;
+            }
+            notificationDue = true;
+            if (notifying.compareAndSet(false, true)) {
+                listeners.execute(this::deliverNotifications);
+            }
+        }
+
+        private void deliverNotifications() {
+            do {
+                while (notificationDue) {
+                    notificationDue = false;
+                    notifyListener();
+                }
+                notifying.set(false);
+                // Due again between the last call and the reset, and no one else took it
+            } while (notificationDue && notifying.compareAndSet(false, true));
+        }
+
+        private void notifyListener() {
+            SyncJobListenerRI current = listener;
+            if (current == null) {
+                return;
+            }
+            try {
+                current.progress(getStatus());
+            } catch (RemoteException e) {
+                System.err.println("Dropping listener of job " + id + ": " + e.getMessage());
+                listener = null;
+            }
+        }
+    }
+}
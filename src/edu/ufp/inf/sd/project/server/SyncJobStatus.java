@@ -0,0 +1,104 @@
+package edu.ufp.inf.sd.project.server;
+
+import java.io.Serial;
+import java.io.Serializable;
+
+/**
+ * Snapshot of the progress of a background synchronization job. The one returned when a job is started is the handle
+ * used to poll or cancel it.
+ */
+public class SyncJobStatus implements Serializable {
+    @Serial
+    private static final long serialVersionUID = 1L;
+
+    public enum State {
+        QUEUED, RUNNING, DONE, FAILED, CANCELLED;
+
+        public boolean isFinished() {
+            return this == DONE || this == FAILED || this == CANCELLED;
+        }
+    }
+
+    private final String jobId;
+    private final String description;
+    private final State state;
+    private final long filesDone;
+    private final long filesTotal;
+    private final long bytesDone;
+    private final long bytesTotal;
+    private final long elapsedMillis;
+    private final long etaMillis;
+    private final String message;
+
+    SyncJobStatus(String jobId, String description, State state, long filesDone, long filesTotal, long bytesDone,
+                  long bytesTotal, long elapsedMillis, long etaMillis, String message) {
+        this.jobId = jobId;
+        this.description = description;
+        this.state = state;
+        this.filesDone = filesDone;
+        this.filesTotal = filesTotal;
+        this.bytesDone = bytesDone;
+        this.bytesTotal = bytesTotal;
+        this.elapsedMillis = elapsedMillis;
+        this.etaMillis = etaMillis;
+        this.message = message;
+    }
+
+    public String getJobId() {
+        return jobId;
+    }
+
+    public String getDescription() {
+        return description;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    public long getFilesDone() {
+        return filesDone;
+    }
+
+    public long getFilesTotal() {
+        return filesTotal;
+    }
+
+    public long getBytesDone() {
+        return bytesDone;
+    }
+
+    public long getBytesTotal() {
+        return bytesTotal;
+    }
+
+    public long getElapsedMillis() {
+        return elapsedMillis;
+    }
+
+    /**
+     * Estimates the time left from the throughput so far.
+     *
+     * @return The estimated milliseconds left, or -1 if nothing was transferred yet to estimate from
+     */
+    public long getEtaMillis() {
+        return etaMillis;
+    }
+
+    /**
+     * @return The statistics of a finished job, the error of a failed one, or null
+     */
+    public String getMessage() {
+        return message;
+    }
+
+    @Override
+    public String toString() {
+        String progress = state + " " + filesDone + "/" + filesTotal + " files, " + bytesDone + "/" + bytesTotal
+                + " bytes, " + elapsedMillis / 1000 + " s";
+        if (state == State.RUNNING && etaMillis >= 0) {
+            progress += ", ~" + (etaMillis + 999) / 1000 + " s left";
+        }
+        return message != null ? progress + " (" + message + ")" : progress;
+    }
+}
@@ -0,0 +1,20 @@
+package edu.ufp.inf.sd.project.server;
+
+/**
+ * How the files of a shared folder are brought up to date during a synchronization.
+ */
+public enum SyncMode {
+    /**
+     * Rewrite only the blocks that changed (see {@link DeltaSync}).
+     */
+    DELTA,
+    /**
+     * Copy whole files with {@link java.nio.channels.FileChannel#transferTo}, letting the kernel move the bytes.
+     */
+    TRANSFER,
+    /**
+     * Hard link read-only source files, copying the others as in {@link #TRANSFER}. The server keeps the files of its
+     * users writable, so only the files made read-only on its disk by hand are linked; see {@link CopyEngine#isImmutable}.
+     */
+    LINK
+}
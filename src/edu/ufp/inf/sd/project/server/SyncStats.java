@@ -0,0 +1,93 @@
+package edu.ufp.inf.sd.project.server;
+
+import java.io.Serial;
+import java.io.Serializable;
+
+/**
+ * Statistics of a synchronization, accumulated over all the files it touched.
+ * Bytes saved are the bytes that were reused (matched blocks or hard links) instead of copied,
+ * and the time saved is estimated from the throughput of the whole-file copies of the same synchronization.
+ */
+public class SyncStats implements Serializable {
+    @Serial
+    private static final long serialVersionUID = 1L;
+
+    long files;
+    long unchangedFiles;
+    long deletedFiles;
+    long matchedBytes;
+    long literalBytes;
+    long linkedBytes;
+    long bytesWritten;
+    long elapsedNanos;
+    long copiedBytes;
+    long copyNanos;
+
+    public void add(SyncStats other) {
+        files += other.files;
+        unchangedFiles += other.unchangedFiles;
+        deletedFiles += other.deletedFiles;
+        matchedBytes += other.matchedBytes;
+        literalBytes += other.literalBytes;
+        linkedBytes += other.linkedBytes;
+        bytesWritten += other.bytesWritten;
+        elapsedNanos += other.elapsedNanos;
+        copiedBytes += other.copiedBytes;
+        copyNanos += other.copyNanos;
+    }
+
+    public long getFiles() {
+        return files;
+    }
+
+    public long getUnchangedFiles() {
+        return unchangedFiles;
+    }
+
+    public long getDeletedFiles() {
+        return deletedFiles;
+    }
+
+    public long getMatchedBytes() {
+        return matchedBytes;
+    }
+
+    public long getLiteralBytes() {
+        return literalBytes;
+    }
+
+    public long getLinkedBytes() {
+        return linkedBytes;
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    public long getBytesSaved() {
+        return matchedBytes + linkedBytes;
+    }
+
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    /**
+     * Estimates the time that copying the saved bytes would have taken at the observed copy throughput.
+     *
+     * @return The estimated time saved in nanoseconds, or 0 if no whole file was copied to measure against
+     */
+    public long getEstimatedNanosSaved() {
+        if (copiedBytes == 0) {
+            return 0;
+        }
+        return (long) ((double) copyNanos / copiedBytes * getBytesSaved());
+    }
+
+    @Override
+    public String toString() {
+        return files + " files, " + unchangedFiles + " unchanged, " + deletedFiles + " deleted, " + bytesWritten + " bytes written in " + elapsedNanos / 1_000_000 + " ms, "
+                + getBytesSaved() + " bytes saved (" + matchedBytes + " matched, " + linkedBytes + " linked, ~"
+                + getEstimatedNanosSaved() / 1_000_000 + " ms)";
+    }
+}
@@ -0,0 +1,152 @@
+package edu.ufp.inf.sd.project.server;
+
+import java.io.Serial;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A change to an {@link RgaDocument}: runs of inserted characters and of deleted ones, named by their ids.
+ * <p>
+ * An insert run gives the id of its first character and of the character it follows; the other characters of the run
+ * have the next clocks of the same site and each follows the one before it. A delete run names the characters of one
+ * site with consecutive clocks. Typing a word is then a single insert run, whatever its length.
+ * <p>
+ * Travels between replicas as the content parameter of a TEXTEDIT operation, encoded by {@link #encode()}:
+ * {@code I<clock>:<site>:<after clock>:<after site>:<length>:<text>} for inserts and {@code D<clock>:<site>:<count>:}
+ * for deletes, one after the other.
+ */
+public final class TextDelta implements Serializable {
+    @Serial
+    private static final long serialVersionUID = 1L;
+
+    private final List<Edit> edits;
+
+    abstract static class Edit implements Serializable {
+        @Serial
+        private static final long serialVersionUID = 1L;
+
+        final long clock;
+        final String site;
+
+        Edit(long clock, String site) {
+            this.clock = clock;
+            this.site = site;
+        }
+    }
+
+    static final class Insert extends Edit {
+        @Serial
+        private static final long serialVersionUID = 1L;
+
+        final long afterClock;
+        final String afterSite;
+        final String text;
+
+        Insert(long clock, String site, long afterClock, String afterSite, String text) {
+            super(clock, site);
+            this.afterClock = afterClock;
+            this.afterSite = afterSite;
+            this.text = text;
+        }
+    }
+
+    static final class Delete extends Edit {
+        @Serial
+        private static final long serialVersionUID = 1L;
+
+        final int count;
+
+        Delete(long clock, String site, int count) {
+            super(clock, site);
+            this.count = count;
+        }
+    }
+
+    TextDelta(List<Edit> edits) {
+        this.edits = edits;
+    }
+
+    List<Edit> getEdits() {
+        return Collections.unmodifiableList(edits);
+    }
+
+    public boolean isEmpty() {
+        return edits.isEmpty();
+    }
+
+    /**
+     * @return The number of characters inserted or deleted
+     */
+    public int size() {
+        int size = 0;
+        for (Edit edit : edits) {
+            size += edit instanceof Insert ? ((Insert) edit).text.length() : ((Delete) edit).count;
+        }
+        return size;
+    }
+
+    public String encode() {
+        StringBuilder encoded = new StringBuilder();
+        for (Edit edit : edits) {
+            if (edit instanceof Insert) {
+                Insert insert = (Insert) edit;
+                encoded.append('I').append(insert.clock).append(':').append(insert.site).append(':')
+                        .append(insert.afterClock).append(':').append(insert.afterSite).append(':')
+                        .append(insert.text.length()).append(':').append(insert.text);
+            } else {
+                Delete delete = (Delete) edit;
+                encoded.append('D').append(delete.clock).append(':').append(delete.site).append(':')
+                        .append(delete.count).append(':');
+            }
+        }
+        return encoded.toString();
+    }
+
+    /**
+     * Decodes a delta encoded by {@link #encode()}.
+     *
+     * @throws IllegalArgumentException If it is not a valid delta
+     */
+    public static TextDelta parse(String encoded) {
+        List<Edit> edits = new ArrayList<>();
+        int[] position = {0};
+        try {
+            while (position[0] < encoded.length()) {
+                char kind = encoded.charAt(position[0]++);
+                long clock = Long.parseLong(field(encoded, position));
+                String site = field(encoded, position);
+                if (kind == 'I') {
+                    long afterClock = Long.parseLong(field(encoded, position));
+                    String afterSite = field(encoded, position);
+                    int length = Integer.parseInt(field(encoded, position));
+                    edits.add(new Insert(clock, site, afterClock, afterSite, encoded.substring(position[0], position[0] + length)));
+                    position[0] += length;
+                } else if (kind == 'D') {
+                    edits.add(new Delete(clock, site, Integer.parseInt(field(encoded, position))));
+                } else {
+                    throw new IllegalArgumentException("Unknown edit '" + kind + "' in text delta");
+                }
+            }
+        } catch (NumberFormatException | IndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Invalid text delta", e);
+        }
+        return new TextDelta(edits);
+    }
+
+    private static String field(String encoded, int[] position) {
+        int end = encoded.indexOf(':', position[0]);
+        if (end < 0) {
+            throw new IllegalArgumentException("Truncated text delta");
+        }
+        String field = encoded.substring(position[0], end);
+        position[0] = end + 1;
+        return field;
+    }
+
+    @Override
+    public String toString() {
+        return edits.size() + " edits, " + size() + " characters";
+    }
+}
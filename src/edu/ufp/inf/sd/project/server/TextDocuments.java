@@ -0,0 +1,242 @@
+package edu.ufp.inf.sd.project.server;
+
+import edu.ufp.inf.sd.project.client.ObserverRI;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The text files being edited collaboratively, each kept as an {@link RgaDocument} while anyone edits it.
+ * <p>
+ * Editors exchange small deltas, one per keystroke or word, instead of the whole file: a delta sent with
+ * {@link #edit} is merged into the server's replica and pushed to every editor of the document as a TEXTEDIT operation,
+ * on an observer channel that never drops one, and each editor merges it into its own replica. The replicas converge
+ * whatever the order the deltas reach them in, so editors never wait for each other, and the deltas of one document
+ * never wait for those of another. An editor inserts as a site of its own, its user name or the user name followed by
+ * '#' and anything, so it cannot forge the characters of another editor or of the server.
+ * <p>
+ * The text is written to the file, as an update of its owner, every {@value #FLUSH_INTERVAL_PROPERTY} milliseconds
+ * while it changes, and when its last editor leaves. The copies of a shared file are the same document as the owner's.
+ * Each write is based on the version of the file the document was loaded or last written at, so an update made to the
+ * file outside the document is never overwritten: the write conflicts instead, and the document is closed, refusing
+ * further edits until it is opened again from the file.
+ */
+public class TextDocuments {
+
+    public static final String FLUSH_INTERVAL_PROPERTY = "edu.ufp.inf.sd.project.text.flushMillis";
+
+    private static final String SITE = "server";
+
+    private static TextDocuments instance;
+
+    private final Database database;
+    private final Storage storage;
+    private final FileVersions fileVersions;
+    private final Map<String, SharedDocument> documents = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService flusher;
+
+    private static final class SharedDocument {
+        private final String folderPath;
+        private final String fileName;
+        private final RgaDocument document;
+        private final ObserverDispatcher editors;
+        private volatile boolean dirty;
+        // The version of the file the text was loaded or last written at, only used by the flusher after loading
+        private String version;
+        // Set once a write conflicts, guarded by the document
+        private boolean closed;
+
+        SharedDocument(String folderPath, String fileName, RgaDocument document, String version) {
+            this.folderPath = folderPath;
+            this.fileName = fileName;
+            this.document = document;
+            this.version = version;
+            // Every delta must reach every editor, so a slow editor is disconnected rather than skipped
+            this.editors = new ObserverDispatcher("text " + folderPath + "/" + fileName,
+                    Integer.getInteger(ObserverDispatcher.QUEUE_CAPACITY_PROPERTY, 256), ObserverDispatcher.OverflowPolicy.DISCONNECT, 0);
+        }
+
+        String getOwner() {
+            int separator = folderPath.indexOf('/');
+            return separator < 0 ? folderPath : folderPath.substring(0, separator);
+        }
+    }
+
+    public TextDocuments(Database database, Storage storage, FileVersions fileVersions, long flushIntervalMillis) {
+        this.database = database;
+        this.storage = storage;
+        this.fileVersions = fileVersions;
+        this.flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "text-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        flusher.scheduleWithFixedDelay(this::flushAll, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    protected static synchronized TextDocuments getTextDocumentsInstance() {
+        if (instance == null) {
+            instance = new TextDocuments(Database.getDatabaseInstance(), Storage.getStorageInstance(),
+                    FileVersions.getFileVersionsInstance(), Long.getLong(FLUSH_INTERVAL_PROPERTY, 500));
+        }
+        return instance;
+    }
+
+    /**
+     * Adds an editor to a document, loading it from its file if no one is editing it.
+     *
+     * @param editor Receives the deltas of every editor, its own included
+     * @return Every character of the document, for the editor to build its replica from
+     * @throws FileNotFoundException If the file does not exist
+     */
+    public TextDelta open(String folderPath, String fileName, ObserverRI editor) throws IOException {
+        String canonicalFolder = FileVersions.canonicalPath(folderPath);
+        SharedDocument shared;
+        synchronized (documents) {
+            shared = documents.get(key(canonicalFolder, fileName));
+            if (shared == null) {
+                String file = Storage.path(Storage.SERVER, canonicalFolder, fileName);
+                if (!storage.isFile(file)) {
+                    throw new FileNotFoundException(canonicalFolder + "/" + fileName);
+                }
+                // Before the text, so an update in between makes the first write conflict rather than be lost
+                String version = fileVersions.getVersion(canonicalFolder, fileName);
+                String text = new String(storage.read(file), StandardCharsets.UTF_8);
+                shared = new SharedDocument(canonicalFolder, fileName, RgaDocument.fromText(SITE, text), version);
+                documents.put(key(canonicalFolder, fileName), shared);
+                System.out.println("Opened " + canonicalFolder + "/" + fileName + " for collaborative editing (" + text.length() + " characters)");
+            }
+            // Registered before the snapshot is taken, so no delta falls between the two
+            shared.editors.register(editor);
+        }
+        return shared.document.snapshot();
+    }
+
+    /**
+     * Merges the delta of an editor and pushes it to every editor of the document.
+     *
+     * @param username The user who made the edit
+     * @return false if no one has the document open
+     * @throws IllegalArgumentException If the delta inserts as a site that is not the user's, or the document refuses it
+     */
+    public boolean edit(String username, String folderPath, String fileName, TextDelta delta) {
+        SharedDocument shared = documents.get(key(FileVersions.canonicalPath(folderPath), fileName));
+        if (shared == null) {
+            return false;
+        }
+        for (TextDelta.Edit edit : delta.getEdits()) {
+            if (edit instanceof TextDelta.Insert && !edit.site.equals(username) && !edit.site.startsWith(username + "#")) {
+                throw new IllegalArgumentException("User " + username + " cannot insert as site " + edit.site);
+            }
+        }
+        ArrayList<String> params = new ArrayList<>();
+        params.add(shared.folderPath);
+        params.add(shared.fileName);
+        params.add(delta.encode());
+        // Published in the order the deltas were merged in
+        synchronized (shared) {
+            if (shared.closed) {
+                return false;
+            }
+            if (shared.document.integrate(delta)) {
+                shared.dirty = true;
+            }
+            shared.editors.publish(new StateFileSystemOperation(username, params, StateFileSystemOperation.OperationType.TEXTEDIT));
+        }
+        return true;
+    }
+
+    /**
+     * Removes an editor from a document, writing and dropping the document if it was the last one.
+     */
+    public void close(String folderPath, String fileName, ObserverRI editor) {
+        String key = key(FileVersions.canonicalPath(folderPath), fileName);
+        SharedDocument shared;
+        synchronized (documents) {
+            shared = documents.get(key);
+            if (shared == null) {
+                return;
+            }
+            shared.editors.unregister(editor);
+            if (shared.editors.getObserverCount() > 0) {
+                return;
+            }
+            documents.remove(key);
+        }
+        flusher.execute(() -> flush(shared));
+        System.out.println("Closed " + key + ", no one is editing it");
+    }
+
+    /**
+     * @return The number of documents being edited
+     */
+    public int getOpenCount() {
+        return documents.size();
+    }
+
+    private void flushAll() {
+        for (SharedDocument shared : documents.values()) {
+            flush(shared);
+        }
+    }
+
+    /**
+     * Writes the text of a document to its file through the file system of its owner, so it is logged, versioned,
+     * replicated to the shared copies and published like any update. Closes the document if the file was updated
+     * since the document last read or wrote it.
+     */
+    private void flush(SharedDocument shared) {
+        if (!shared.dirty) {
+            return;
+        }
+        shared.dirty = false;
+        ArrayList<String> params = new ArrayList<>();
+        params.add(shared.folderPath);
+        params.add(shared.fileName);
+        params.add(shared.document.getText());
+        StateFileSystemOperation operation = new StateFileSystemOperation(shared.getOwner(), params, StateFileSystemOperation.OperationType.UPDATEFILE);
+        FileVersions.setBase(operation, shared.version);
+        try {
+            OperationResult result = database.getSubjectFileSystem(shared.getOwner()).applyOperations(List.of(operation)).get(0);
+            if (result.isApplied()) {
+                shared.version = result.getVersion();
+            } else if (result.isConflict()) {
+                closeConflicted(shared);
+            } else {
+                System.err.println("Failed to write " + shared.folderPath + "/" + shared.fileName + ": " + result);
+            }
+        } catch (RemoteException e) {
+            shared.dirty = true;
+            System.err.println("Failed to write " + shared.folderPath + "/" + shared.fileName + ", retrying: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Drops a document whose file was updated by someone else, so it is loaded again from the file when next opened.
+     * Its edits since the last write are not written.
+     */
+    private void closeConflicted(SharedDocument shared) {
+        synchronized (shared) {
+            shared.closed = true;
+        }
+        synchronized (documents) {
+            documents.remove(key(shared.folderPath, shared.fileName), shared);
+            shared.editors.close();
+        }
+        System.err.println("Closed " + shared.folderPath + "/" + shared.fileName + ": the file was updated outside the document, "
+                + "its editors must open it again");
+    }
+
+    private static String key(String folderPath, String fileName) {
+        return folderPath + "/" + fileName;
+    }
+}
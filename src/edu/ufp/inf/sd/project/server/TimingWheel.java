@@ -0,0 +1,177 @@
+package edu.ufp.inf.sd.project.server;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Hierarchical timing wheel: schedules and cancels timeouts in O(1), whatever the number of pending timeouts.
+ * <p>
+ * There are {@value #LEVELS} wheels of {@value #SLOTS} slots. A slot of the first wheel spans one tick, and a slot of
+ * every next wheel spans a whole turn of the previous one. A timeout goes into the wheel whose range holds its
+ * deadline; when a wheel turns, the next slot of the wheel above is emptied into the wheels below, so every
+ * timeout moves down at most {@value #LEVELS} times before it fires. Timeouts due further than the last wheel
+ * reaches wait in its furthest slot and are placed again when that slot is emptied.
+ * <p>
+ * One daemon thread advances the wheels every tick and runs the expired tasks, which must therefore be short.
+ */
+public class TimingWheel {
+
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int LEVELS = 4;
+
+    private final long tickMillis;
+    private final Timeout[][] wheels = new Timeout[LEVELS][SLOTS]; // sentinel of the circular list of each slot
+    private final long startMillis;
+    private final Thread ticker;
+    private long currentTick;
+    private int pending;
+
+    public TimingWheel(String name, long tickMillis) {
+        if (tickMillis <= 0) {
+            throw new IllegalArgumentException("Tick must be positive: " + tickMillis);
+        }
+        this.tickMillis = tickMillis;
+        for (Timeout[] wheel : wheels) {
+            for (int slot = 0; slot < SLOTS; slot++) {
+                wheel[slot] = new Timeout(null, 0);
+            }
+        }
+        this.startMillis = System.currentTimeMillis();
+        this.ticker = new Thread(this::tickLoop, name);
+        this.ticker.setDaemon(true);
+        this.ticker.start();
+    }
+
+    /**
+     * Schedules a task.
+     *
+     * @param task        The task, run on the wheel thread
+     * @param delayMillis How long from now the task runs, at least; it runs on the first tick after that
+     * @return The timeout, which can be cancelled until it fires
+     */
+    public synchronized Timeout schedule(Runnable task, long delayMillis) {
+        // The deadline is taken from the clock, as the wheel may be running late on its ticks
+        long dueMillis = System.currentTimeMillis() + Math.max(0, delayMillis) - startMillis;
+        long deadline = Math.max(currentTick + 1, (dueMillis + tickMillis - 1) / tickMillis);
+        Timeout timeout = new Timeout(task, deadline);
+        place(timeout);
+        pending++;
+        return timeout;
+    }
+
+    public synchronized int getPendingCount() {
+        return pending;
+    }
+
+    private void place(Timeout timeout) {
+        long delta = timeout.deadline - currentTick;
+        for (int level = 0; level < LEVELS; level++) {
+            if (delta < 1L << (SLOT_BITS * (level + 1)) || level == LEVELS - 1) {
+                long tick = Math.min(timeout.deadline, currentTick + (1L << (SLOT_BITS * LEVELS)) - 1);
+                timeout.link(wheels[level][(int) (tick >>> (SLOT_BITS * level)) & (SLOTS - 1)]);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Advances one tick: empties the slots of the upper wheels that the wheel below has just completed a turn into,
+     * then takes the timeouts of the current slot of the first wheel.
+     */
+    private synchronized List<Timeout> advance() {
+        currentTick++;
+        for (int level = LEVELS - 1; level > 0; level--) {
+            if ((currentTick & ((1L << (SLOT_BITS * level)) - 1)) == 0) {
+                Timeout sentinel = wheels[level][(int) (currentTick >>> (SLOT_BITS * level)) & (SLOTS - 1)];
+                while (sentinel.next != sentinel) {
+                    Timeout timeout = sentinel.next;
+                    timeout.unlink();
+                    place(timeout);
+                }
+            }
+        }
+        List<Timeout> expired = new ArrayList<>();
+        Timeout sentinel = wheels[0][(int) currentTick & (SLOTS - 1)];
+        while (sentinel.next != sentinel) {
+            Timeout timeout = sentinel.next;
+            timeout.unlink();
+            if (timeout.deadline <= currentTick) {
+                expired.add(timeout);
+                pending--;
+            } else {
+                place(timeout);
+            }
+        }
+        return expired;
+    }
+
+    private void tickLoop() {
+        while (true) {
+            long nextTickMillis;
+            synchronized (this) {
+                nextTickMillis = startMillis + (currentTick + 1) * tickMillis;
+            }
+            long sleep = nextTickMillis - System.currentTimeMillis();
+            if (sleep > 0) {
+                try {
+                    Thread.sleep(sleep);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            for (Timeout timeout : advance()) {
+                try {
+                    timeout.task.run();
+                } catch (RuntimeException e) {
+                    System.err.println("Timeout task failed on " + ticker.getName() + ": " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * A scheduled task, kept in the doubly linked list of its slot so it can be removed in O(1).
+     */
+    public final class Timeout {
+        private final Runnable task;
+        private final long deadline;
+        private Timeout previous = this;
+        private Timeout next = this;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Cancels the timeout.
+         *
+         * @return true if it was cancelled, false if it already fired or was cancelled
+         */
+        public boolean cancel() {
+            synchronized (TimingWheel.this) {
+                if (next == this) {
+                    return false;
+                }
+                unlink();
+                pending--;
+                return true;
+            }
+        }
+
+        private void link(Timeout sentinel) {
+            previous = sentinel.previous;
+            next = sentinel;
+            sentinel.previous.next = this;
+            sentinel.previous = this;
+        }
+
+        private void unlink() {
+            previous.next = next;
+            next.previous = previous;
+            previous = this;
+            next = this;
+        }
+    }
+}
@@ -0,0 +1,430 @@
+package edu.ufp.inf.sd.project.server;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Server side of the streaming file transfers.
+ * <p>
+ * An upload is written to a hidden {@code .<name>.upload} file next to its target and moved over the target once
+ * complete. Chunks may arrive out of order within the window; they are held in memory until the bytes before them
+ * arrive, so the upload file only ever contains the contiguous prefix received so far. Its length is therefore the
+ * offset an interrupted upload resumes from, even after a server restart.
+ * <p>
+ * Every transfer belongs to the user who opened it, and only reaches files under that user's folder, which holds the
+ * copies of the folders shared with them. A complete upload is handed to a {@link Committer}, which applies it as an
+ * UPLOADFILE operation carrying only the hash and size of the file: applying it moves the upload file into place, and
+ * it is logged, versioned, replicated and published like any other file operation.
+ * <p>
+ * A file of a shared view of the server, {@code <user>/shared/<owner>/...}, is kept as a {@link Manifest} of the
+ * {@link ChunkStore}, so it is downloaded from its chunks as of the last synchronization of the view. A download is
+ * opened with the hash of its file, which the client checks the complete file against and only resumes a download of.
+ * <p>
+ * Chunks are compressed with the codec negotiated when the transfer is opened, see {@link Compression}. Files are
+ * read and written through the {@link Storage} of the server.
+ * <p>
+ * The chunk size and window are read from the system properties {@value #CHUNK_SIZE_PROPERTY} and {@value #WINDOW_PROPERTY}.
+ */
+public class TransferManager {
+
+    public static final String CHUNK_SIZE_PROPERTY = "edu.ufp.inf.sd.project.transfer.chunkSize";
+    public static final String WINDOW_PROPERTY = "edu.ufp.inf.sd.project.transfer.window";
+
+    private static final long IDLE_TIMEOUT_MILLIS = 10 * 60 * 1000;
+
+    private static TransferManager instance;
+
+    private final Storage storage;
+    private final String root;
+    private final ChunkStore chunkStore;
+    private final int chunkSize;
+    private final int window;
+    private final Map<String, Transfer> transfers = new ConcurrentHashMap<>();
+    private final Map<String, Upload> uploadsByTarget = new ConcurrentHashMap<>();
+
+    /**
+     * Applies a complete upload, moving its upload file over the file.
+     */
+    public interface Committer {
+        /**
+         * @param path        The folder of the file, relative to the server root
+         * @param name        The name of the file
+         * @param contentHash The SHA-256 of the uploaded file
+         * @param size        The size of the uploaded file
+         * @throws IOException If the upload could not be applied
+         */
+        void commit(String path, String name, String contentHash, long size) throws IOException;
+    }
+
+    /**
+     * @param storage    The storage of the files
+     * @param root       The folder of the server's tree in the storage
+     * @param chunkStore The store of the shared views, or null if there are none
+     */
+    public TransferManager(Storage storage, String root, ChunkStore chunkStore, int chunkSize, int window) {
+        if (chunkSize <= 0 || window <= 0) {
+            throw new IllegalArgumentException("Chunk size and window must be positive");
+        }
+        this.storage = storage;
+        this.root = root;
+        this.chunkStore = chunkStore;
+        this.chunkSize = chunkSize;
+        this.window = window;
+    }
+
+    /**
+     * @return The name of the upload file of a file, next to it
+     */
+    static String partialName(String name) {
+        return "." + name + ".upload";
+    }
+
+    protected static synchronized TransferManager getTransferManagerInstance() {
+        if (instance == null) {
+            instance = new TransferManager(Storage.getStorageInstance(), Storage.SERVER, ChunkStore.getChunkStoreInstance(),
+                    Integer.getInteger(CHUNK_SIZE_PROPERTY, 256 * 1024), Integer.getInteger(WINDOW_PROPERTY, 8));
+        }
+        return instance;
+    }
+
+    /**
+     * Opens an upload, or resumes the unfinished upload of the same file.
+     *
+     * @param username The user uploading, who must own the folder
+     * @param path The folder of the file, relative to the server root (e.g. "alice/docs")
+     * @param name The name of the file
+     * @param size     The size of the file
+     * @param accepted The codecs the client can compress chunks with, or null
+     * @return The transfer handle, whose offset is the number of bytes already received
+     * @throws IOException If the folder is not the user's or the upload file cannot be opened
+     */
+    public synchronized FileTransfer openUpload(String username, String path, String name, long size, Set<Compression> accepted) throws IOException {
+        expireIdleTransfers();
+        path = authorize(username, path);
+        String target = resolve(path, name);
+        Compression compression = Compression.negotiate(accepted);
+        Upload upload = uploadsByTarget.get(target);
+        if (upload != null && (upload.size != size || upload.compression != compression || !upload.username.equals(username))) {
+            forget(upload);
+            upload = null;
+        }
+        if (upload == null) {
+            String folder = Storage.path(root, path);
+            if (!storage.createDirectories(folder)) {
+                throw new IOException("Cannot create the folder " + path);
+            }
+            String partial = Storage.path(folder, partialName(name));
+            long received = storage.isFile(partial) ? storage.size(partial) : 0;
+            if (received > size) {
+                received = 0;
+            }
+            // Also creates it if missing
+            storage.truncate(partial, received);
+            upload = new Upload(UUID.randomUUID().toString(), username, path, name, target, partial, received, size, compression);
+            transfers.put(upload.id, upload);
+            uploadsByTarget.put(target, upload);
+        }
+        return new FileTransfer(upload.id, size, upload.committed(), chunkSize, window, compression, null);
+    }
+
+    /**
+     * Receives one chunk of an upload. Chunks already received are ignored, so a chunk may safely be sent again.
+     *
+     * @param username The user who opened the upload
+     * @param id       The upload
+     * @param offset   The offset of the chunk in the file
+     * @param data     The chunk, at most one chunk size long once decompressed
+     * @return The number of contiguous bytes received so far
+     * @throws IOException If the chunk is outside the window or cannot be written
+     */
+    public long writeChunk(String username, String id, long offset, byte[] data) throws IOException {
+        Upload upload = transfer(username, id, Upload.class);
+        if (upload.compression != Compression.NONE) {
+            data = Compression.decode(data, (int) Math.max(0, Math.min(chunkSize, upload.size - offset)), upload.stats);
+        }
+        return upload.write(offset, data);
+    }
+
+    /**
+     * Finishes an upload, having the committer move the uploaded file over the target. If the committer fails the
+     * upload is kept, so completing it can be tried again.
+     *
+     * @param username    The user who opened the upload
+     * @param id          The upload
+     * @param contentHash The expected SHA-256 of the file, or null to skip the check
+     * @param committer   Applies the uploaded file
+     * @throws IOException If bytes are missing, the hash does not match or the file cannot be committed
+     */
+    public void completeUpload(String username, String id, String contentHash, Committer committer) throws IOException {
+        Upload upload = transfer(username, id, Upload.class);
+        synchronized (upload) {
+            if (upload.committed() != upload.size) {
+                throw new IOException("Upload incomplete: " + upload.committed() + " of " + upload.size + " bytes received");
+            }
+            storage.force(upload.partial);
+            String hash = hash(upload.partial, upload.size);
+            if (contentHash != null && !contentHash.equals(hash)) {
+                storage.delete(upload.partial);
+                forget(upload);
+                throw new IOException("Uploaded file does not match its hash, discarded");
+            }
+            committer.commit(upload.path, upload.name, hash, upload.size);
+            forget(upload);
+        }
+        System.out.println("Upload of " + upload.target + " complete (" + upload.size + " bytes"
+                + (upload.compression == Compression.NONE ? "" : ", " + upload.compression + " compression: " + upload.stats) + ")");
+    }
+
+    /**
+     * Opens a download.
+     *
+     * @param username The user downloading, who must own the folder
+     * @param path The folder of the file, relative to the server root
+     * @param name     The name of the file
+     * @param accepted The codecs the client can decompress chunks with, or null
+     * @return The transfer handle, with the hash of the file so the client can tell a partial download of other content
+     * @throws IOException If the folder is not the user's, or the file does not exist or cannot be opened
+     */
+    public FileTransfer openDownload(String username, String path, String name, Set<Compression> accepted) throws IOException {
+        expireIdleTransfers();
+        path = authorize(username, path);
+        String source = resolve(path, name);
+        Download download;
+        String contentHash;
+        if (storage.isFile(source)) {
+            download = new Download(UUID.randomUUID().toString(), username, source, null, storage.size(source),
+                    Compression.negotiate(accepted));
+            contentHash = hash(source, download.size);
+        } else {
+            Manifest.FileEntry entry = openShared(path, name);
+            if (entry == null) {
+                throw new FileNotFoundException("File not found: " + path + "/" + name);
+            }
+            download = new Download(UUID.randomUUID().toString(), username, source, entry, entry.getSize(),
+                    Compression.negotiate(accepted));
+            contentHash = entry.getContentHash();
+        }
+        transfers.put(download.id, download);
+        return new FileTransfer(download.id, download.size, 0, chunkSize, window, download.compression, contentHash);
+    }
+
+    /**
+     * Reads one chunk of a download.
+     *
+     * @param username The user who opened the download
+     * @param id       The download
+     * @param offset   The offset of the chunk in the file
+     * @param length   The length of the chunk, at most one chunk size
+     * @return The bytes read, fewer than requested only at the end of the file, compressed if the download is
+     * @throws IOException If the file cannot be read
+     */
+    public byte[] readChunk(String username, String id, long offset, int length) throws IOException {
+        if (length < 0 || length > chunkSize) {
+            throw new IOException("Chunk length " + length + " outside 0.." + chunkSize);
+        }
+        Download download = transfer(username, id, Download.class);
+        int count = (int) Math.max(0, Math.min(length, download.size - offset));
+        byte[] data = download.entry != null ? chunkStore.read(download.entry, offset, count) : storage.read(download.source, offset, count);
+        return download.compression == Compression.NONE ? data : download.compression.encode(data, download.stats);
+    }
+
+    /**
+     * Releases a transfer. An unfinished upload keeps its upload file so it can be resumed later.
+     *
+     * @param username The user who opened the transfer
+     * @param id       The transfer
+     */
+    public void close(String username, String id) {
+        Transfer transfer = transfers.get(id);
+        if (transfer != null && transfer.username.equals(username)) {
+            forget(transfer);
+        }
+    }
+
+    private void forget(Transfer transfer) {
+        if (transfers.remove(transfer.id) != null && transfer instanceof Download) {
+            if (((Download) transfer).entry != null) {
+                chunkStore.close(((Download) transfer).entry);
+            }
+            if (transfer.compression != Compression.NONE) {
+                System.out.println("Download " + transfer.id + " closed, " + transfer.compression + " compression: " + transfer.stats);
+            }
+        }
+        if (transfer instanceof Upload) {
+            uploadsByTarget.remove(((Upload) transfer).target, transfer);
+        }
+    }
+
+    private void expireIdleTransfers() {
+        long limit = System.currentTimeMillis() - IDLE_TIMEOUT_MILLIS;
+        for (Transfer transfer : transfers.values()) {
+            if (transfer.lastUsed < limit) {
+                System.out.println("Closing idle transfer " + transfer.id);
+                forget(transfer);
+            }
+        }
+    }
+
+    private <T extends Transfer> T transfer(String username, String id, Class<T> type) throws IOException {
+        Transfer transfer = transfers.get(id);
+        if (!type.isInstance(transfer) || !transfer.username.equals(username)) {
+            throw new IOException("Unknown transfer: " + id);
+        }
+        transfer.lastUsed = System.currentTimeMillis();
+        return type.cast(transfer);
+    }
+
+    /**
+     * Checks that a folder is the user's or under it.
+     *
+     * @return The folder, normalized
+     * @throws IOException If it is not
+     */
+    private static String authorize(String username, String path) throws IOException {
+        String folder;
+        try {
+            folder = Storage.normalize(path);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Path outside the server root: " + path);
+        }
+        if (!folder.equals(username) && !folder.startsWith(username + "/")) {
+            throw new IOException("Access denied to " + path + " for user " + username);
+        }
+        return folder;
+    }
+
+    /**
+     * Opens a file of a shared view from the chunk store.
+     *
+     * @param path A normalized folder, e.g. "bob/shared/alice/docs"
+     * @return The file, or null if the folder is not in a shared view or the view has no such file
+     */
+    private Manifest.FileEntry openShared(String path, String name) {
+        String[] parts = path.split("/", 4);
+        if (chunkStore == null || parts.length < 3 || !parts[1].equals("shared")) {
+            return null;
+        }
+        return chunkStore.open(Storage.path(parts[0], parts[1], parts[2]), Storage.path(parts.length > 3 ? parts[3] : "", name));
+    }
+
+    private String resolve(String path, String name) throws IOException {
+        if (name.isEmpty() || name.contains("/") || name.contains("\\") || name.equals("..")) {
+            throw new IOException("Invalid file name: " + name);
+        }
+        try {
+            return Storage.normalize(Storage.path(root, path, name));
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Path outside the server root: " + path);
+        }
+    }
+
+    /**
+     * Computes the SHA-256 of a file as {@link FileIndex#hash} does, reading it a chunk at a time.
+     */
+    private String hash(String path, long size) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+        for (long offset = 0; offset < size; offset += chunkSize) {
+            digest.update(storage.read(path, offset, (int) Math.min(chunkSize, size - offset)));
+        }
+        return FileIndex.toHex(digest.digest());
+    }
+
+    private abstract static class Transfer {
+        final String id;
+        final String username;
+        final Compression compression;
+        final Compression.Stats stats = new Compression.Stats();
+        volatile long lastUsed = System.currentTimeMillis();
+
+        Transfer(String id, String username, Compression compression) {
+            this.id = id;
+            this.username = username;
+            this.compression = compression;
+        }
+    }
+
+    private final class Upload extends Transfer {
+        final String path;
+        final String name;
+        final String target;
+        final String partial;
+        final long size;
+        // The length of the upload file, the contiguous prefix received so far
+        private long committed;
+        // Chunks received ahead of the contiguous prefix, bounded by the window
+        private final TreeMap<Long, byte[]> ahead = new TreeMap<>();
+
+        Upload(String id, String username, String path, String name, String target, String partial, long committed, long size,
+               Compression compression) {
+            super(id, username, compression);
+            this.path = path;
+            this.name = name;
+            this.target = target;
+            this.partial = partial;
+            this.committed = committed;
+            this.size = size;
+        }
+
+        synchronized long committed() {
+            return committed;
+        }
+
+        synchronized long write(long offset, byte[] data) throws IOException {
+            if (data.length > chunkSize || offset + data.length > size) {
+                throw new IOException("Chunk at " + offset + " of " + data.length + " bytes does not fit the upload");
+            }
+            if (offset + data.length > committed + (long) window * chunkSize) {
+                throw new IOException("Chunk at " + offset + " is outside the window starting at " + committed);
+            }
+            if (offset < committed) {
+                return committed;
+            }
+            if (offset > committed) {
+                ahead.put(offset, data);
+                return committed;
+            }
+            append(data);
+            Map.Entry<Long, byte[]> next;
+            while ((next = ahead.firstEntry()) != null && next.getKey() <= committed) {
+                ahead.pollFirstEntry();
+                int skip = (int) (committed - next.getKey());
+                if (skip < next.getValue().length) {
+                    append(skip == 0 ? next.getValue() : Arrays.copyOfRange(next.getValue(), skip, next.getValue().length));
+                }
+            }
+            return committed;
+        }
+
+        private void append(byte[] data) throws IOException {
+            storage.append(partial, data);
+            committed += data.length;
+        }
+    }
+
+    private static final class Download extends Transfer {
+        final String source;
+        // The file in the chunk store, for a file of a shared view
+        final Manifest.FileEntry entry;
+        final long size;
+
+        Download(String id, String username, String source, Manifest.FileEntry entry, long size, Compression compression) {
+            super(id, username, compression);
+            this.source = source;
+            this.entry = entry;
+            this.size = size;
+        }
+    }
+}
@@ -0,0 +1,294 @@
+package edu.ufp.inf.sd.project.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serial;
+import java.io.UncheckedIOException;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Fork-join engine that synchronizes directory trees, processing independent files concurrently.
+ * The parallelism of the pool and the number of files being read or written at the same time are configured
+ * with the system properties {@value #PARALLELISM_PROPERTY} and {@value #MAX_CONCURRENT_IO_PROPERTY}.
+ */
+public class TreeSynchronizer {
+
+    public static final String PARALLELISM_PROPERTY = "edu.ufp.inf.sd.project.sync.parallelism";
+    public static final String MAX_CONCURRENT_IO_PROPERTY = "edu.ufp.inf.sd.project.sync.maxConcurrentIo";
+
+    private static TreeSynchronizer instance;
+
+    private final ForkJoinPool pool;
+    private final Semaphore ioPermits;
+    private final int maxConcurrentIo;
+
+    /**
+     * Operation applied to every added or changed file of the source tree.
+     */
+    public interface FileOperation {
+        SyncStats apply(File source, File destination) throws IOException;
+    }
+
+    /**
+     * Function applied to a path of a tree.
+     */
+    public interface PathFunction<T> {
+        T apply(String path) throws IOException;
+    }
+
+    /**
+     * Follows the work of a synchronization as it goes, and can stop it between files.
+     */
+    public interface Progress {
+        Progress NONE = new Progress() {
+            @Override
+            public void planned(int files, long bytes) {
+            }
+
+            @Override
+            public void completed(String path, long bytes) {
+            }
+
+            @Override
+            public boolean isCancelled() {
+                return false;
+            }
+        };
+
+        /**
+         * Called once the files to synchronize are known; may be called once per tree when several are synchronized.
+         */
+        void planned(int files, long bytes);
+
+        void completed(String path, long bytes);
+
+        /**
+         * @return true to stop the synchronization before its next file
+         */
+        boolean isCancelled();
+    }
+
+    /**
+     * Creates a synchronizer.
+     *
+     * @param parallelism     The number of worker threads walking the trees
+     * @param maxConcurrentIo The maximum number of files synchronized at the same time
+     */
+    public TreeSynchronizer(int parallelism, int maxConcurrentIo) {
+        if (parallelism <= 0 || maxConcurrentIo <= 0) {
+            throw new IllegalArgumentException("Parallelism and I/O concurrency must be positive");
+        }
+        this.pool = new ForkJoinPool(parallelism);
+        this.ioPermits = new Semaphore(maxConcurrentIo, true);
+        this.maxConcurrentIo = maxConcurrentIo;
+    }
+
+    protected static synchronized TreeSynchronizer getTreeSynchronizerInstance() {
+        if (instance == null) {
+            int processors = Runtime.getRuntime().availableProcessors();
+            int parallelism = Integer.getInteger(PARALLELISM_PROPERTY, processors);
+            int maxConcurrentIo = Integer.getInteger(MAX_CONCURRENT_IO_PROPERTY, 2 * processors);
+            instance = new TreeSynchronizer(parallelism, maxConcurrentIo);
+            System.out.println("Tree synchronizer started (parallelism: " + parallelism + ", max concurrent I/O: " + maxConcurrentIo + ")");
+        }
+        return instance;
+    }
+
+    public int getParallelism() {
+        return pool.getParallelism();
+    }
+
+    public int getMaxConcurrentIo() {
+        return maxConcurrentIo;
+    }
+
+    /**
+     * Brings the destination tree up to date with the source tree by diffing their indexes: only the files
+     * added or changed in the source are handed to the operation, and the files and directories that are
+     * gone from the source are deleted. The destination index is updated to the new state of the destination.
+     *
+     * @param source           The root of the up to date tree
+     * @param sourceIndex      The refreshed index of the source tree
+     * @param destination      The root of the tree to update
+     * @param destinationIndex The refreshed index of the destination tree
+     * @param operation        The operation applied to each added or changed file
+     * @return The statistics of the synchronization
+     * @throws IOException If any file fails to synchronize
+     */
+    public SyncStats synchronize(File source, FileIndex sourceIndex, File destination, FileIndex destinationIndex,
+                                 FileOperation operation) throws IOException {
+        return synchronize(source, sourceIndex, destination, destinationIndex, operation, Progress.NONE);
+    }
+
+    /**
+     * Same as {@link #synchronize(File, FileIndex, File, FileIndex, FileOperation)}, reporting each file to a progress.
+     * When the progress is cancelled, the files not started yet are skipped and nothing is deleted; the destination
+     * index still records the files that were synchronized.
+     *
+     * @throws CancellationException If the progress was cancelled before the synchronization finished
+     */
+    public SyncStats synchronize(File source, FileIndex sourceIndex, File destination, FileIndex destinationIndex,
+                                 FileOperation operation, Progress progress) throws IOException {
+        SyncStats stats = new SyncStats();
+
+        for (String directory : sourceIndex.getDirectories()) {
+            File destDir = new File(destination, directory);
+            if (!destDir.isDirectory() && !destDir.mkdirs()) {
+                throw new IOException("Could not create directory " + destDir.getAbsolutePath());
+            }
+            destinationIndex.addDirectory(directory);
+        }
+
+        List<String> changed = new ArrayList<>();
+        long changedBytes = 0;
+        for (Map.Entry<String, FileIndex.Entry> entry : sourceIndex.getFiles().entrySet()) {
+            FileIndex.Entry current = destinationIndex.get(entry.getKey());
+            if (current == null || !current.getHash().equals(entry.getValue().getHash())) {
+                changed.add(entry.getKey());
+                changedBytes += entry.getValue().getSize();
+            } else {
+                stats.unchangedFiles++;
+            }
+        }
+        progress.planned(changed.size(), changedBytes);
+
+        long racyLimit = System.currentTimeMillis() - FileIndex.RACY_WINDOW_MILLIS;
+        Map<String, SyncStats> results = forEachPath(changed, path -> {
+            if (progress.isCancelled()) {
+                throw new CancellationException("Synchronization of " + destination + " cancelled");
+            }
+            File destFile = new File(destination, path);
+            destFile.getParentFile().mkdirs();
+            SyncStats fileStats = operation.apply(new File(source, path), destFile);
+            long modified = destFile.lastModified();
+            destinationIndex.put(path, new FileIndex.Entry(destFile.length(), modified < racyLimit ? modified : -1,
+                    sourceIndex.get(path).getHash()));
+            progress.completed(path, sourceIndex.get(path).getSize());
+            return fileStats;
+        });
+        for (SyncStats fileStats : results.values()) {
+            stats.add(fileStats);
+        }
+
+        for (String path : new ArrayList<>(destinationIndex.getFiles().keySet())) {
+            if (sourceIndex.get(path) == null) {
+                File destFile = new File(destination, path);
+                if (destFile.delete() || !destFile.exists()) {
+                    destinationIndex.remove(path);
+                    stats.deletedFiles++;
+                }
+            }
+        }
+        List<String> directories = new ArrayList<>(destinationIndex.getDirectories());
+        Collections.reverse(directories);
+        for (String directory : directories) {
+            if (!sourceIndex.getDirectories().contains(directory)) {
+                File destDir = new File(destination, directory);
+                // Only empty directories are removed, files the index does not know about are kept
+                if (destDir.delete() || !destDir.exists()) {
+                    destinationIndex.removeDirectory(directory);
+                }
+            }
+        }
+        return stats;
+    }
+
+    /**
+     * Applies a function to many files of a tree in parallel, with at most the configured number of files
+     * being read or written at the same time.
+     *
+     * @param paths    The paths to process
+     * @param function The function applied to each path
+     * @param <T>      The type of the results
+     * @return The result of each path
+     * @throws IOException If the function fails for any path
+     */
+    public <T> Map<String, T> forEachPath(Collection<String> paths, PathFunction<T> function) throws IOException {
+        Map<String, T> results = new ConcurrentHashMap<>();
+        if (paths.isEmpty()) {
+            return results;
+        }
+        List<ForkJoinTask<?>> tasks = new ArrayList<>(paths.size());
+        for (String path : paths) {
+            tasks.add(new PathTask<>(path, function, results));
+        }
+        try {
+            pool.invoke(ForkJoinTask.adapt(() -> ForkJoinTask.invokeAll(tasks)));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        return results;
+    }
+
+    /**
+     * Runs independent jobs (e.g. the synchronization of each owner) in parallel and waits for all of them.
+     * Each job is expected to handle its own failures.
+     *
+     * @param jobs The jobs to run
+     */
+    public void runAll(List<Runnable> jobs) {
+        List<ForkJoinTask<?>> tasks = new ArrayList<>(jobs.size());
+        for (Runnable job : jobs) {
+            tasks.add(ForkJoinTask.adapt(job));
+        }
+        pool.invoke(ForkJoinTask.adapt(() -> ForkJoinTask.invokeAll(tasks)));
+    }
+
+    private final class PathTask<T> extends RecursiveAction {
+        @Serial
+        private static final long serialVersionUID = 1L;
+
+        private final String path;
+        private final PathFunction<T> function;
+        private final Map<String, T> results;
+
+        PathTask(String path, PathFunction<T> function, Map<String, T> results) {
+            this.path = path;
+            this.function = function;
+            this.results = results;
+        }
+
+        @Override
+        protected void compute() {
+            try {
+                ForkJoinPool.managedBlock(new IoPermit());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new CancellationException("Interrupted while waiting for an I/O permit");
+            }
+            try {
+                results.put(path, function.apply(path));
+            } catch (IOException e) {
+                System.err.println("Failed to process file: " + path + " - " + e.getMessage());
+                throw new UncheckedIOException(e);
+            } finally {
+                ioPermits.release();
+            }
+        }
+    }
+
+    /**
+     * Lets the pool compensate for workers blocked waiting for an I/O permit.
+     */
+    private final class IoPermit implements ForkJoinPool.ManagedBlocker {
+        private boolean acquired;
+
+        @Override
+        public boolean block() throws InterruptedException {
+            if (!acquired) {
+                ioPermits.acquire();
+                acquired = true;
+            }
+            return true;
+        }
+
+        @Override
+        public boolean isReleasable() {
+            if (!acquired) {
+                acquired = ioPermits.tryAcquire();
+            }
+            return acquired;
+        }
+    }
+}
@@ -41,14 +41,12 @@ public class User implements Serializable {
 
     /**
      * Validates the provided password against the stored hash.
-     * In a real system, this should use proper password hashing.
+     * This is slow by design; use the {@link Authenticator} to call it off the RMI threads.
      *
      * @param password The password to validate
      * @return true if the password is valid, false otherwise
      */
     public boolean validatePassword(String password) {
-        // In a real system, use a proper password hashing algorithm
-        // For this example, we're just comparing strings
-        return passwordHash.equals(password);
+        return PasswordHasher.verify(password, passwordHash);
     }
 }
@@ -0,0 +1,112 @@
+package edu.ufp.inf.sd.project.server;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Immutable version vector: for every user who edited a file, the number of that user's edits it includes.
+ * Encoded as {@code user:count} pairs separated by commas, sorted by user, so it can travel as an operation parameter;
+ * the empty string is the version of a file no one edited.
+ */
+public final class VersionVector {
+
+    public static final VersionVector EMPTY = new VersionVector(new TreeMap<>());
+
+    /**
+     * How two versions relate.
+     */
+    public enum Order {
+        EQUAL, BEFORE, AFTER, CONCURRENT
+    }
+
+    private final TreeMap<String, Long> counters;
+
+    private VersionVector(TreeMap<String, Long> counters) {
+        this.counters = counters;
+    }
+
+    /**
+     * Parses an encoded version.
+     *
+     * @throws IllegalArgumentException If it is not a valid version
+     */
+    public static VersionVector parse(String encoded) {
+        TreeMap<String, Long> counters = new TreeMap<>();
+        if (encoded != null && !encoded.isEmpty()) {
+            for (String pair : encoded.split(",")) {
+                int separator = pair.lastIndexOf(':');
+                if (separator <= 0) {
+                    throw new IllegalArgumentException("Invalid version: " + encoded);
+                }
+                long count = Long.parseLong(pair.substring(separator + 1));
+                if (count > 0) {
+                    counters.put(pair.substring(0, separator), count);
+                }
+            }
+        }
+        return new VersionVector(counters);
+    }
+
+    /**
+     * @return The version that includes every edit of both versions
+     */
+    public VersionVector merge(VersionVector other) {
+        TreeMap<String, Long> merged = new TreeMap<>(counters);
+        for (Map.Entry<String, Long> entry : other.counters.entrySet()) {
+            merged.merge(entry.getKey(), entry.getValue(), Math::max);
+        }
+        return new VersionVector(merged);
+    }
+
+    /**
+     * @return This version plus one more edit of the user
+     */
+    public VersionVector increment(String user) {
+        TreeMap<String, Long> incremented = new TreeMap<>(counters);
+        incremented.merge(user, 1L, Long::sum);
+        return new VersionVector(incremented);
+    }
+
+    public Order compareTo(VersionVector other) {
+        boolean before = false;
+        boolean after = false;
+        TreeMap<String, Long> users = new TreeMap<>(counters);
+        users.putAll(other.counters);
+        for (String user : users.keySet()) {
+            long mine = counters.getOrDefault(user, 0L);
+            long theirs = other.counters.getOrDefault(user, 0L);
+            before |= mine < theirs;
+            after |= mine > theirs;
+        }
+        if (before && after) {
+            return Order.CONCURRENT;
+        }
+        return before ? Order.BEFORE : after ? Order.AFTER : Order.EQUAL;
+    }
+
+    public boolean isEmpty() {
+        return counters.isEmpty();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof VersionVector && counters.equals(((VersionVector) o).counters);
+    }
+
+    @Override
+    public int hashCode() {
+        return counters.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder encoded = new StringBuilder();
+        for (Map.Entry<String, Long> entry : counters.entrySet()) {
+            if (encoded.length() > 0) {
+                encoded.append(',');
+            }
+            encoded.append(entry.getKey()).append(':').append(entry.getValue());
+        }
+        return encoded.toString();
+    }
+}